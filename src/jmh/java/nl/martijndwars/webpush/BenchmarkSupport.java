@@ -0,0 +1,45 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Arrays;
+
+/**
+ * Keys and notifications shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private BenchmarkSupport() {
+    }
+
+    static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) 'a');
+
+        return payload;
+    }
+
+    static Notification notification(String endpoint, KeyPair userKeyPair, int payloadSize) {
+        return Notification.builder()
+                .endpoint(endpoint)
+                .userPublicKey(userKeyPair.getPublic())
+                .userAuth(new byte[16])
+                .payload(payload(payloadSize))
+                .build();
+    }
+}
@@ -0,0 +1,56 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption of a payload, with a fixed local key pair ({@link HttpEce#encrypt}) and with a fresh local key pair per
+ * message, as the push services do ({@link AbstractPushService#encrypt}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class HttpEceBenchmark {
+    @Param({"AES128GCM", "AESGCM"})
+    public Encoding encoding;
+
+    @Param({"0", "128", "1024", "4096"})
+    public int payloadSize;
+
+    private HttpEce httpEce;
+    private ECPublicKey userPublicKey;
+    private byte[] userAuth;
+    private byte[] payload;
+    private byte[] salt;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        Map<String, KeyPair> keys = new HashMap<>();
+        keys.put(AbstractPushService.SERVER_KEY_ID, BenchmarkSupport.generateKeyPair());
+
+        Map<String, String> labels = new HashMap<>();
+        labels.put(AbstractPushService.SERVER_KEY_ID, AbstractPushService.SERVER_KEY_CURVE);
+
+        httpEce = new HttpEce(keys, labels);
+        userPublicKey = (ECPublicKey) BenchmarkSupport.generateKeyPair().getPublic();
+        userAuth = new byte[16];
+        payload = BenchmarkSupport.payload(payloadSize);
+        salt = new byte[16];
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws GeneralSecurityException {
+        return httpEce.encrypt(payload, salt, null, AbstractPushService.SERVER_KEY_ID, userPublicKey, userAuth, encoding);
+    }
+
+    @Benchmark
+    public Encrypted encryptWithLocalKeyPair() throws GeneralSecurityException {
+        return AbstractPushService.encrypt(payload, userPublicKey, userAuth, encoding);
+    }
+}
@@ -0,0 +1,36 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a subscription's public key, and generating the local key pair of a message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class KeyBenchmark {
+    private String encodedPublicKey;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        ECPublicKey publicKey = (ECPublicKey) BenchmarkSupport.generateKeyPair().getPublic();
+        encodedPublicKey = Base64.getUrlEncoder().withoutPadding().encodeToString(Utils.encode(publicKey));
+    }
+
+    @Benchmark
+    public PublicKey loadPublicKey() throws GeneralSecurityException {
+        return Utils.loadPublicKey(encodedPublicKey);
+    }
+
+    @Benchmark
+    public KeyPair generateLocalKeyPair() throws GeneralSecurityException {
+        return AbstractPushService.generateLocalKeyPair();
+    }
+}
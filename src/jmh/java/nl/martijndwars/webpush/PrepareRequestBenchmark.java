@@ -0,0 +1,47 @@
+package nl.martijndwars.webpush;
+
+import org.jose4j.lang.JoseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparing a request: encryption, headers and, with VAPID, signing the token. Both the library's
+ * {@link HttpRequest} and the request for the Java HTTP client are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class PrepareRequestBenchmark {
+    @Param({"true", "false"})
+    public boolean vapid;
+
+    @Param({"AES128GCM", "AESGCM"})
+    public Encoding encoding;
+
+    private PushAsyncService pushService;
+    private Notification notification;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        HttpClient httpClient = HttpClient.newHttpClient();
+
+        pushService = vapid
+                ? new PushAsyncService(httpClient, BenchmarkSupport.generateKeyPair(), "mailto:admin@example.com")
+                : new PushAsyncService(httpClient);
+        notification = BenchmarkSupport.notification("https://updates.push.services.mozilla.com/wpush/v2/abc", BenchmarkSupport.generateKeyPair(), 1024);
+    }
+
+    @Benchmark
+    public HttpRequest prepareRequest() throws GeneralSecurityException, JoseException {
+        return pushService.prepareRequest(notification, encoding);
+    }
+
+    @Benchmark
+    public java.net.http.HttpRequest preparePost() throws GeneralSecurityException, IOException, JoseException {
+        return pushService.preparePost(notification, encoding).build();
+    }
+}
@@ -0,0 +1,58 @@
+package nl.martijndwars.webpush;
+
+import com.sun.net.httpserver.HttpServer;
+import org.jose4j.lang.JoseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a notification end to end, against a push service on localhost that accepts every message. Run with
+ * several threads to see how the service scales across cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SendBenchmark {
+    @Param({"0", "1024"})
+    public int payloadSize;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private PushAsyncService pushService;
+    private Notification notification;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException, IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/push", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(201, -1);
+            exchange.close();
+        });
+        server.setExecutor(executor);
+        server.start();
+
+        pushService = new PushAsyncService(HttpClient.newHttpClient(), BenchmarkSupport.generateKeyPair(), "mailto:admin@example.com");
+        notification = BenchmarkSupport.notification("http://127.0.0.1:" + server.getAddress().getPort() + "/push", BenchmarkSupport.generateKeyPair(), payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public HttpResponse<String> send() throws GeneralSecurityException, IOException, JoseException {
+        return pushService.send(notification).join();
+    }
+}
@@ -8,18 +8,35 @@ import org.jose4j.jws.JsonWebSignature;
 import org.jose4j.jwt.JwtClaims;
 import org.jose4j.lang.JoseException;
 
+import java.io.IOException;
 import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 public abstract class AbstractPushService<T extends AbstractPushService<T>> {
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
     public static final String SERVER_KEY_ID = "server-key-id";
     public static final String SERVER_KEY_CURVE = "P-256";
 
+    /**
+     * How long a VAPID token stays valid after it is signed
+     */
+    public static final Duration VAPID_TOKEN_VALIDITY = Duration.ofHours(12);
+
+    /**
+     * Upper bound on the size of the headers of a push message (VAPID token, keys, TTL, etc.)
+     */
+    private static final int HEADERS_SIZE = 1024;
+
     protected final HttpClient httpClient;
 
     /**
@@ -43,6 +60,31 @@ public abstract class AbstractPushService<T extends AbstractPushService<T>> {
      */
     private PrivateKey privateKey;
 
+    /**
+     * Policy for re-sending failed requests. When left as null, failed requests are not retried.
+     */
+    private RetryPolicy retryPolicy;
+
+    /**
+     * Recognizes the push service of an endpoint and holds the settings for sending to it
+     */
+    private VendorRegistry vendorRegistry = VendorRegistry.getDefault();
+
+    /**
+     * Receives the timings of the stages of sending and the responses
+     */
+    private MetricsListener metricsListener = MetricsListener.NONE;
+
+    /**
+     * Header values derived from the keys, rebuilt when the keys change
+     */
+    private volatile HeaderTemplate headerTemplate;
+
+    /**
+     * The TTL header of the last request
+     */
+    private volatile TtlValue lastTtl;
+
     public AbstractPushService(HttpClient httpClient) {
         this.httpClient = httpClient;
     }
@@ -87,8 +129,28 @@ public abstract class AbstractPushService<T extends AbstractPushService<T>> {
      * @throws GeneralSecurityException
      */
     public static Encrypted encrypt(byte[] payload, ECPublicKey userPublicKey, byte[] userAuth, Encoding encoding) throws GeneralSecurityException {
+        return encrypt(payload, userPublicKey, userAuth, encoding, MetricsListener.NONE);
+    }
+
+    /**
+     * Encrypt the payload, reporting the time spent in each step to the given listener.
+     *
+     * @param payload
+     * @param userPublicKey
+     * @param userAuth
+     * @param encoding
+     * @param metricsListener
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public static Encrypted encrypt(byte[] payload, ECPublicKey userPublicKey, byte[] userAuth, Encoding encoding, MetricsListener metricsListener) throws GeneralSecurityException {
+        long start = metricsListener == MetricsListener.NONE ? 0 : System.nanoTime();
         KeyPair localKeyPair = generateLocalKeyPair();
 
+        if (metricsListener != MetricsListener.NONE) {
+            metricsListener.onStage(MetricsListener.Stage.KEY_GENERATION, System.nanoTime() - start);
+        }
+
         Map<String, KeyPair> keys = new HashMap<>();
         keys.put(SERVER_KEY_ID, localKeyPair);
 
@@ -98,7 +160,7 @@ public abstract class AbstractPushService<T extends AbstractPushService<T>> {
         byte[] salt = new byte[16];
         SECURE_RANDOM.nextBytes(salt);
 
-        HttpEce httpEce = new HttpEce(keys, labels);
+        HttpEce httpEce = new HttpEce(keys, labels, metricsListener);
         byte[] ciphertext = httpEce.encrypt(payload, salt, null, SERVER_KEY_ID, userPublicKey, userAuth, encoding);
 
         return new Encrypted.Builder()
@@ -116,7 +178,7 @@ public abstract class AbstractPushService<T extends AbstractPushService<T>> {
      * @throws NoSuchProviderException
      * @throws InvalidAlgorithmParameterException
      */
-    private static KeyPair generateLocalKeyPair() throws NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException {
+    static KeyPair generateLocalKeyPair() throws NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException {
         ECNamedCurveParameterSpec parameterSpec = ECNamedCurveTable.getParameterSpec("prime256v1");
         KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
         keyPairGenerator.initialize(parameterSpec);
@@ -125,67 +187,148 @@ public abstract class AbstractPushService<T extends AbstractPushService<T>> {
     }
 
     protected final HttpRequest prepareRequest(Notification notification, Encoding encoding) throws GeneralSecurityException, JoseException {
-        if (getPrivateKey() != null && getPublicKey() != null) {
-            if (!Utils.verifyKeyPair(getPrivateKey(), getPublicKey())) {
-                throw new IllegalStateException("Public key and private key do not match.");
-            }
+        return prepareRequest(notification, encoding, classify(notification));
+    }
+
+    /**
+     * Recognize the vendor of the notification's push service. With the default registry, this is cached in the
+     * notification's parsed endpoint.
+     *
+     * @param notification
+     * @return
+     */
+    protected final PushVendor classify(Notification notification) {
+        if (vendorRegistry == VendorRegistry.getDefault()) {
+            return notification.getParsedEndpoint().getVendor();
         }
 
+        return vendorRegistry.classify(notification.getEndpoint());
+    }
+
+    /**
+     * Prepare a request for a notification whose vendor is already known.
+     *
+     * @param notification
+     * @param encoding
+     * @param vendor
+     * @return
+     * @throws GeneralSecurityException
+     * @throws JoseException
+     */
+    protected final HttpRequest prepareRequest(Notification notification, Encoding encoding, PushVendor vendor) throws GeneralSecurityException, JoseException {
+        PushEvents.Preparation event = new PushEvents.Preparation();
+        event.begin();
+
+        Encrypted encrypted = encrypt(notification, encoding);
+        Map<String, String> headers = new HashMap<>();
+        String url = writeHeaders(notification, encoding, vendor, encrypted, headers::put);
+
+        event.finish(notification, encoding);
+
+        return new HttpRequest(url, headers, notification.hasPayload() ? encrypted.getCiphertext() : null);
+    }
+
+    /**
+     * Assemble the POST request for the Java HTTP client directly, without going through {@link HttpRequest}. The
+     * settings of the vendor's profile are not applied.
+     *
+     * @param notification
+     * @param encoding
+     * @param vendor
+     * @return
+     * @throws GeneralSecurityException
+     * @throws JoseException
+     */
+    protected final java.net.http.HttpRequest.Builder assembleRequest(Notification notification, Encoding encoding, PushVendor vendor) throws GeneralSecurityException, JoseException {
+        PushEvents.Preparation event = new PushEvents.Preparation();
+        event.begin();
+
+        Encrypted encrypted = encrypt(notification, encoding);
+        java.net.http.HttpRequest.Builder request = java.net.http.HttpRequest.newBuilder();
+        String url = writeHeaders(notification, encoding, vendor, encrypted, request::header);
+
+        event.finish(notification, encoding);
+
+        return request
+                .uri(notification.getParsedEndpoint().toUri(url))
+                .POST(notification.hasPayload()
+                        ? java.net.http.HttpRequest.BodyPublishers.ofByteArray(encrypted.getCiphertext())
+                        : java.net.http.HttpRequest.BodyPublishers.noBody());
+    }
+
+    private Encrypted encrypt(Notification notification, Encoding encoding) throws GeneralSecurityException {
+        PushEvents.Encryption event = new PushEvents.Encryption();
+        event.begin();
+
         Encrypted encrypted = encrypt(
                 notification.getPayload(),
                 notification.getUserPublicKey(),
                 notification.getUserAuth(),
-                encoding
+                encoding,
+                metricsListener
         );
 
-        byte[] dh = Utils.encode((ECPublicKey) encrypted.getPublicKey());
-        byte[] salt = encrypted.getSalt();
+        event.finish(notification, encoding);
+
+        return encrypted;
+    }
 
+    /**
+     * Write the headers of a request to the given sink, each header exactly once. Values that only depend on the
+     * encoding or on the keys of this service come from the header template; only the values that differ per
+     * message are encoded here.
+     *
+     * @param notification
+     * @param encoding
+     * @param vendor
+     * @param encrypted
+     * @param headers
+     * @return The URL to send the request to.
+     * @throws JoseException
+     */
+    private String writeHeaders(Notification notification, Encoding encoding, PushVendor vendor, Encrypted encrypted, BiConsumer<String, String> headers) throws JoseException {
+        HeaderTemplate template = getHeaderTemplate();
         String url = notification.getEndpoint();
-        Map<String, String> headers = new HashMap<>();
-        byte[] body = null;
+        String cryptoKey = null;
 
-        headers.put("TTL", String.valueOf(notification.getTTL()));
+        headers.accept("TTL", ttlValue(notification.getTTL()));
 
         if (notification.hasUrgency()) {
-            headers.put("Urgency", notification.getUrgency().getHeaderValue());
+            headers.accept("Urgency", notification.getUrgency().getHeaderValue());
         }
 
         if (notification.hasTopic()) {
-            headers.put("Topic", notification.getTopic());
+            headers.accept("Topic", notification.getTopic());
         }
 
-
         if (notification.hasPayload()) {
-            headers.put("Content-Type", "application/octet-stream");
+            headers.accept("Content-Type", HeaderTemplate.CONTENT_TYPE);
 
             if (encoding == Encoding.AES128GCM) {
-                headers.put("Content-Encoding", "aes128gcm");
+                headers.accept("Content-Encoding", HeaderTemplate.AES128GCM);
             } else if (encoding == Encoding.AESGCM) {
-                headers.put("Content-Encoding", "aesgcm");
-                headers.put("Encryption", "salt=" + Base64.getUrlEncoder().withoutPadding().encodeToString(salt));
-                headers.put("Crypto-Key", "dh=" + Base64.getUrlEncoder().withoutPadding().encodeToString(dh));
+                headers.accept("Content-Encoding", HeaderTemplate.AESGCM);
+                headers.accept("Encryption", "salt=" + BASE64.encodeToString(encrypted.getSalt()));
+                cryptoKey = "dh=" + BASE64.encodeToString(Utils.encode((ECPublicKey) encrypted.getPublicKey()));
             }
-
-            body = encrypted.getCiphertext();
         }
 
-        if (notification.isGcm()) {
-            if (getGcmApiKey() == null) {
+        if (vendor == PushVendor.GCM) {
+            if (template.gcmAuthorization == null) {
                 throw new IllegalStateException("An GCM API key is needed to send a push notification to a GCM endpoint.");
             }
 
-            headers.put("Authorization", "key=" + getGcmApiKey());
-        } else if (vapidEnabled()) {
+            headers.accept("Authorization", template.gcmAuthorization);
+        } else if (template.vapidKey != null) {
             if (encoding == Encoding.AES128GCM) {
-                if (notification.getEndpoint().startsWith("https://fcm.googleapis.com")) {
-                    url = notification.getEndpoint().replace("fcm/send", "wp");
-                }
+                url = vendorRegistry == VendorRegistry.getDefault()
+                        ? notification.getParsedEndpoint().getRewrittenUrl()
+                        : vendorRegistry.getProfile(vendor).rewrite(url);
             }
 
             JwtClaims claims = new JwtClaims();
             claims.setAudience(notification.getOrigin());
-            claims.setExpirationTimeMinutesInTheFuture(12 * 60);
+            claims.setExpirationTimeMinutesInTheFuture(VAPID_TOKEN_VALIDITY.toMinutes());
             if (getSubject() != null) {
                 claims.setSubject(getSubject());
             }
@@ -197,24 +340,218 @@ public abstract class AbstractPushService<T extends AbstractPushService<T>> {
             jws.setKey(getPrivateKey());
             jws.setAlgorithmHeaderValue(AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256);
 
-            byte[] pk = Utils.encode((ECPublicKey) getPublicKey());
+            PushEvents.Signing event = new PushEvents.Signing();
+            event.begin();
+            long start = metricsListener == MetricsListener.NONE ? 0 : System.nanoTime();
+            String token = jws.getCompactSerialization();
+
+            if (metricsListener != MetricsListener.NONE) {
+                metricsListener.onStage(MetricsListener.Stage.SIGNING, System.nanoTime() - start);
+            }
+
+            event.finish(notification.getOrigin());
 
             if (encoding == Encoding.AES128GCM) {
-                headers.put("Authorization", "vapid t=" + jws.getCompactSerialization() + ", k=" + Base64.getUrlEncoder().withoutPadding().encodeToString(pk));
+                headers.accept("Authorization", "vapid t=" + token + template.vapidKey);
             } else if (encoding == Encoding.AESGCM) {
-                headers.put("Authorization", "WebPush " + jws.getCompactSerialization());
+                headers.accept("Authorization", "WebPush " + token);
             }
 
-            if (headers.containsKey("Crypto-Key")) {
-                headers.put("Crypto-Key", headers.get("Crypto-Key") + ";p256ecdsa=" + Base64.getUrlEncoder().withoutPadding().encodeToString(pk));
+            cryptoKey = cryptoKey == null ? template.vapidCryptoKey : cryptoKey + ";" + template.vapidCryptoKey;
+        } else if (vendor == PushVendor.FCM && template.gcmAuthorization != null) {
+            headers.accept("Authorization", template.gcmAuthorization);
+        }
+
+        if (cryptoKey != null) {
+            headers.accept("Crypto-Key", cryptoKey);
+        }
+
+        return url;
+    }
+
+    /**
+     * Get the header template for the current keys, building it (and checking the key pair) only when the keys have
+     * changed since the last request.
+     *
+     * @return
+     */
+    private HeaderTemplate getHeaderTemplate() {
+        HeaderTemplate template = headerTemplate;
+
+        if (template == null || !template.isFor(publicKey, privateKey, gcmApiKey)) {
+            headerTemplate = template = new HeaderTemplate(publicKey, privateKey, gcmApiKey);
+        }
+
+        return template;
+    }
+
+    /**
+     * Get the value of the TTL header. Notifications sent in bulk usually share their TTL, so the last value is
+     * reused.
+     *
+     * @param ttl
+     * @return
+     */
+    private String ttlValue(int ttl) {
+        TtlValue last = lastTtl;
+
+        if (last == null || last.ttl != ttl) {
+            lastTtl = last = new TtlValue(ttl);
+        }
+
+        return last.value;
+    }
+
+    private static class TtlValue {
+        private final int ttl;
+        private final String value;
+
+        TtlValue(int ttl) {
+            this.ttl = ttl;
+            this.value = String.valueOf(ttl);
+        }
+    }
+
+    /**
+     * The header values that do not change from one message to the next: the constants of each encoding, and the
+     * values derived from the keys of the service.
+     */
+    private static class HeaderTemplate {
+        static final String CONTENT_TYPE = "application/octet-stream";
+        static final String AES128GCM = "aes128gcm";
+        static final String AESGCM = "aesgcm";
+
+        private final PublicKey publicKey;
+        private final PrivateKey privateKey;
+        private final String gcmApiKey;
+
+        /**
+         * The {@code Authorization} header for GCM, or null without an API key
+         */
+        private final String gcmAuthorization;
+
+        /**
+         * The suffix of the VAPID {@code Authorization} header of the aes128gcm encoding, or null without VAPID keys
+         */
+        private final String vapidKey;
+
+        /**
+         * The VAPID part of the {@code Crypto-Key} header, or null without VAPID keys
+         */
+        private final String vapidCryptoKey;
+
+        HeaderTemplate(PublicKey publicKey, PrivateKey privateKey, String gcmApiKey) {
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+            this.gcmApiKey = gcmApiKey;
+            this.gcmAuthorization = gcmApiKey == null ? null : "key=" + gcmApiKey;
+
+            if (publicKey != null && privateKey != null) {
+                if (!Utils.verifyKeyPair(privateKey, publicKey)) {
+                    throw new IllegalStateException("Public key and private key do not match.");
+                }
+
+                String encoded = BASE64.encodeToString(Utils.encode((ECPublicKey) publicKey));
+                this.vapidKey = ", k=" + encoded;
+                this.vapidCryptoKey = "p256ecdsa=" + encoded;
             } else {
-                headers.put("Crypto-Key", "p256ecdsa=" + Base64.getUrlEncoder().withoutPadding().encodeToString(pk));
+                this.vapidKey = null;
+                this.vapidCryptoKey = null;
             }
-        } else if (notification.isFcm() && getGcmApiKey() != null) {
-            headers.put("Authorization", "key=" + getGcmApiKey());
         }
 
-        return new HttpRequest(url, headers, body);
+        boolean isFor(PublicKey publicKey, PrivateKey privateKey, String gcmApiKey) {
+            return this.publicKey == publicKey && this.privateKey == privateKey && this.gcmApiKey == gcmApiKey;
+        }
+    }
+
+    /**
+     * Estimate the size of the request for the given notification before it is prepared. The size of the ciphertext
+     * is exact, the size of the headers is an upper bound.
+     *
+     * @param notification
+     * @param encoding
+     * @return
+     */
+    public static long estimateRequestSize(Notification notification, Encoding encoding) {
+        if (!notification.hasPayload()) {
+            return HEADERS_SIZE;
+        }
+
+        int payload = notification.getPayload().length;
+
+        if (encoding == Encoding.AES128GCM) {
+            // Header (salt, record size, key id length, key id), payload, padding delimiter and tag
+            return HEADERS_SIZE + HttpEce.KEY_LENGTH + 4 + 1 + 65 + payload + 1 + HttpEce.TAG_SIZE;
+        }
+
+        // Two bytes of padding, payload and tag
+        return HEADERS_SIZE + 2 + payload + HttpEce.TAG_SIZE;
+    }
+
+    /**
+     * Prepare a POST request for the Java HTTP client, with the settings of the vendor's profile applied. Every
+     * request that is sent, including a re-signed retry, is prepared here, so subclasses may override this to adjust
+     * requests.
+     *
+     * @param notification
+     * @param encoding
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     * @throws JoseException
+     */
+    public java.net.http.HttpRequest.Builder preparePost(Notification notification, Encoding encoding) throws GeneralSecurityException, IOException, JoseException {
+        PushVendor vendor = classify(notification);
+
+        return getVendorRegistry().getProfile(vendor).apply(assembleRequest(notification, encoding, vendor));
+    }
+
+    /**
+     * Send a prepared request, retrying it according to the retry policy (if any).
+     *
+     * @param notification The notification the request was prepared from.
+     * @param encoding
+     * @param request
+     * @return
+     */
+    protected CompletableFuture<HttpResponse<String>> dispatch(Notification notification, Encoding encoding, java.net.http.HttpRequest request) {
+        if (retryPolicy == null) {
+            return transmit(notification, request);
+        }
+
+        return new RetryingRequest(this, retryPolicy, notification, encoding, request).execute();
+    }
+
+    /**
+     * Perform a single attempt at sending a prepared request. Every attempt, including retries, goes through this
+     * method.
+     *
+     * @param notification The notification the request was prepared from.
+     * @param request
+     * @return
+     */
+    protected CompletableFuture<HttpResponse<String>> transmit(Notification notification, java.net.http.HttpRequest request) {
+        MetricsListener metricsListener = this.metricsListener;
+        PushEvents.Dispatch event = new PushEvents.Dispatch();
+
+        if (metricsListener == MetricsListener.NONE && !event.isEnabled()) {
+            return httpClient.sendAsync(request, BodyHandlers.ofString());
+        }
+
+        event.begin();
+        long start = System.nanoTime();
+
+        return httpClient.sendAsync(request, BodyHandlers.ofString()).whenComplete((response, throwable) -> {
+            int statusCode = response != null ? response.statusCode() : 0;
+
+            if (metricsListener != MetricsListener.NONE) {
+                metricsListener.onStage(MetricsListener.Stage.ROUND_TRIP, System.nanoTime() - start);
+                metricsListener.onResponse(notification.getOrigin(), statusCode);
+            }
+
+            event.finish(notification, request, statusCode);
+        });
     }
 
     /**
@@ -233,6 +570,57 @@ public abstract class AbstractPushService<T extends AbstractPushService<T>> {
         return gcmApiKey;
     }
 
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Set the listener for the timings of each stage of sending and the responses of the push services. Pass null to
+     * stop recording.
+     *
+     * @param metricsListener
+     * @return
+     */
+    public T setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener != null ? metricsListener : MetricsListener.NONE;
+
+        return (T) this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Set the policy for re-sending failed requests. Retries reuse the encrypted request, so they cost almost no CPU.
+     *
+     * @param retryPolicy
+     * @return
+     */
+    public T setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+
+        return (T) this;
+    }
+
+    public VendorRegistry getVendorRegistry() {
+        return vendorRegistry;
+    }
+
+    /**
+     * Set the registry that recognizes push services and holds the HTTP version, timeout and URL rewrites for
+     * sending to them. The default registry only rewrites URLs; the HTTP version and timeout are left to the HTTP
+     * client.
+     *
+     * @param vendorRegistry
+     * @return
+     */
+    public T setVendorRegistry(VendorRegistry vendorRegistry) {
+        this.vendorRegistry = vendorRegistry;
+
+        return (T) this;
+    }
+
     public String getSubject() {
         return subject;
     }
@@ -322,6 +710,16 @@ public abstract class AbstractPushService<T extends AbstractPushService<T>> {
         return (T) this;
     }
 
+    /**
+     * Check if a request for the notification would be rejected before it is sent, for example by a circuit breaker.
+     *
+     * @param notification
+     * @return
+     */
+    protected boolean isRejecting(Notification notification) {
+        return false;
+    }
+
     /**
      * Check if VAPID is enabled
      *
@@ -0,0 +1,410 @@
+package nl.martijndwars.webpush;
+
+import org.jose4j.lang.JoseException;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bulk send that can be paused, resumed, cancelled and throttled while it runs.
+ * <p>
+ * The campaign pulls notifications from an iterator and hands them to the push service at the target rate, with at
+ * most a fixed number in flight. Notifications are only taken from the iterator when they are about to be sent, so if
+ * the iterator builds them lazily (for instance from a {@link SubscriptionTable.Cursor}), nothing is built or
+ * encrypted ahead of time. Pausing stops taking notifications from the iterator, and lets those in flight complete.
+ * Cancelling also cancels the notifications in flight, so those still waiting in the push service's queues are not
+ * encrypted either.
+ * <p>
+ * The outcome of every notification is counted as sent (2xx), gone (404 or 410, or a known dead endpoint), dropped
+ * (rejected or cancelled before sending, for instance because it expired or its circuit is open) or failed (anything
+ * else).
+ */
+public class Campaign {
+    public enum State {
+        RUNNING, PAUSED, CANCELLED, COMPLETED
+    }
+
+    /**
+     * Sends that are due later than this are put off until the next wakeup; sends that are overdue by more than this
+     * are not caught up on, so a late timer does not cause a burst.
+     */
+    private static final long SLACK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final PushAsyncService pushService;
+    private final Iterator<Notification> notifications;
+    private final Encoding encoding;
+    private final int maxInFlight;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private final Set<CompletableFuture<HttpResponse<String>>> responses = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder gone = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private State state = State.PAUSED;
+    private double rate;
+    private long interval;
+    private long nextSendAt = System.nanoTime();
+    private long wakeupAt;
+    private boolean wakeupScheduled;
+    private int inFlight;
+    private boolean exhausted;
+    private RuntimeException failure;
+
+    private boolean pumping;
+    private boolean requested;
+
+    private Campaign(PushAsyncService pushService, Iterator<Notification> notifications, Encoding encoding, int maxInFlight, double rate) {
+        this.pushService = pushService;
+        this.notifications = notifications;
+        this.encoding = encoding;
+        this.maxInFlight = maxInFlight;
+        this.rate = rate;
+        this.interval = interval(rate);
+    }
+
+    /**
+     * Start sending.
+     *
+     * @return A future that completes once the campaign completed or was cancelled, and nothing is in flight.
+     */
+    public CompletableFuture<Void> start() {
+        return resume();
+    }
+
+    /**
+     * Stop taking notifications from the iterator. Notifications in flight still complete.
+     *
+     * @return
+     */
+    public synchronized Campaign pause() {
+        if (state == State.RUNNING) {
+            state = State.PAUSED;
+        }
+
+        return this;
+    }
+
+    /**
+     * Continue a paused campaign.
+     *
+     * @return A future that completes once the campaign completed or was cancelled, and nothing is in flight.
+     */
+    public CompletableFuture<Void> resume() {
+        synchronized (this) {
+            if (state == State.PAUSED) {
+                state = State.RUNNING;
+            }
+        }
+
+        pump();
+
+        return done;
+    }
+
+    /**
+     * Stop the campaign for good. The rest of the notifications are not taken from the iterator, and the notifications
+     * in flight are cancelled; those that were not encrypted yet are not sent, and are counted as dropped.
+     *
+     * @return A future that completes once the notifications in flight have completed.
+     */
+    public CompletableFuture<Void> cancel() {
+        synchronized (this) {
+            if (state != State.COMPLETED) {
+                state = State.CANCELLED;
+            }
+        }
+
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            response.cancel(false);
+        }
+
+        pump();
+
+        return done;
+    }
+
+    /**
+     * Change the target rate, taking effect right away.
+     *
+     * @param rate The number of notifications per second, or {@link Double#POSITIVE_INFINITY} for no limit.
+     * @return
+     */
+    public Campaign setRate(double rate) {
+        long interval = interval(rate);
+
+        synchronized (this) {
+            this.rate = rate;
+            this.interval = interval;
+
+            // Do not make the next send wait out an interval of the old rate
+            nextSendAt = Math.min(nextSendAt, System.nanoTime() + interval);
+        }
+
+        pump();
+
+        return this;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getGone() {
+        return gone.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Take and send notifications while the campaign runs, the rate allows it and there is room. Notifications that
+     * complete right away ask for another round instead of recursing, so a long run of rejections does not grow the
+     * stack.
+     */
+    private void pump() {
+        synchronized (this) {
+            requested = true;
+
+            if (pumping) {
+                return;
+            }
+
+            pumping = true;
+        }
+
+        while (true) {
+            List<Notification> batch = new ArrayList<>();
+            long wakeup = -1;
+            boolean finished = false;
+
+            synchronized (this) {
+                if (!requested) {
+                    pumping = false;
+
+                    if (inFlight == 0 && (exhausted || state == State.CANCELLED)) {
+                        if (state != State.CANCELLED) {
+                            state = State.COMPLETED;
+                        }
+
+                        finished = true;
+                    } else {
+                        return;
+                    }
+                } else {
+                    requested = false;
+
+                    if (state == State.RUNNING) {
+                        wakeup = take(batch);
+                    }
+                }
+            }
+
+            if (finished) {
+                if (failure != null) {
+                    done.completeExceptionally(failure);
+                } else {
+                    done.complete(null);
+                }
+
+                return;
+            }
+
+            if (wakeup >= 0) {
+                CompletableFuture.delayedExecutor(wakeup, TimeUnit.NANOSECONDS).execute(this::wakeup);
+            }
+
+            for (Notification notification : batch) {
+                send(notification);
+            }
+        }
+    }
+
+    /**
+     * Take the notifications that may be sent now. Must be called while holding the lock.
+     *
+     * @return The delay after which to look again, or -1 if no wakeup needs to be scheduled.
+     */
+    private long take(List<Notification> batch) {
+        long now = System.nanoTime();
+
+        while (!exhausted && inFlight < maxInFlight) {
+            if (interval > 0) {
+                if (nextSendAt - now > SLACK) {
+                    if (!wakeupScheduled || nextSendAt - wakeupAt < 0) {
+                        wakeupScheduled = true;
+                        wakeupAt = nextSendAt;
+                        return nextSendAt - now;
+                    }
+
+                    return -1;
+                }
+
+                nextSendAt = Math.max(nextSendAt, now - SLACK) + interval;
+            }
+
+            try {
+                if (!notifications.hasNext()) {
+                    exhausted = true;
+                    break;
+                }
+
+                batch.add(notifications.next());
+            } catch (RuntimeException e) {
+                exhausted = true;
+                failure = e;
+                break;
+            }
+
+            inFlight++;
+        }
+
+        return -1;
+    }
+
+    private void wakeup() {
+        synchronized (this) {
+            if (wakeupScheduled && System.nanoTime() - wakeupAt >= 0) {
+                wakeupScheduled = false;
+            }
+        }
+
+        pump();
+    }
+
+    private void send(Notification notification) {
+        CompletableFuture<HttpResponse<String>> response;
+
+        try {
+            response = pushService.send(notification, encoding);
+        } catch (GeneralSecurityException | IOException | JoseException | RuntimeException e) {
+            complete(null, e);
+            return;
+        }
+
+        responses.add(response);
+
+        response.whenComplete((httpResponse, throwable) -> {
+            responses.remove(response);
+            complete(httpResponse, throwable);
+        });
+    }
+
+    private void complete(HttpResponse<String> response, Throwable throwable) {
+        if (throwable != null) {
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+
+            if (cause instanceof EndpointGoneException) {
+                gone.increment();
+            } else if (cause instanceof RejectedExecutionException || cause instanceof CancellationException) {
+                dropped.increment();
+            } else {
+                failed.increment();
+            }
+        } else if (response.statusCode() == 404 || response.statusCode() == 410) {
+            gone.increment();
+        } else if (response.statusCode() / 100 == 2) {
+            sent.increment();
+        } else {
+            failed.increment();
+        }
+
+        synchronized (this) {
+            inFlight--;
+        }
+
+        pump();
+    }
+
+    private static long interval(double rate) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("The rate must be positive, " + rate + " given.");
+        }
+
+        return rate == Double.POSITIVE_INFINITY ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    public static Builder builder(PushAsyncService pushService, Iterator<Notification> notifications) {
+        return new Builder(pushService, notifications);
+    }
+
+    public static class Builder {
+        private final PushAsyncService pushService;
+        private final Iterator<Notification> notifications;
+        private Encoding encoding = Encoding.AES128GCM;
+        private int maxInFlight = 256;
+        private double rate = Double.POSITIVE_INFINITY;
+
+        private Builder(PushAsyncService pushService, Iterator<Notification> notifications) {
+            this.pushService = pushService;
+            this.notifications = notifications;
+        }
+
+        public Campaign build() {
+            return new Campaign(pushService, notifications, encoding, maxInFlight, rate);
+        }
+
+        public Builder encoding(Encoding encoding) {
+            this.encoding = encoding;
+            return this;
+        }
+
+        /**
+         * The maximum number of notifications handed to the push service but not yet completed.
+         *
+         * @param maxInFlight
+         * @return
+         */
+        public Builder maxInFlight(int maxInFlight) {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("At least 1 notification must be allowed in flight, " + maxInFlight + " given.");
+            }
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * The initial target rate, which can be changed with {@link Campaign#setRate(double)}.
+         *
+         * @param rate The number of notifications per second, or {@link Double#POSITIVE_INFINITY} for no limit.
+         * @return
+         */
+        public Builder rate(double rate) {
+            interval(rate);
+
+            this.rate = rate;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package nl.martijndwars.webpush;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A circuit breaker with one circuit per push service origin.
+ * <p>
+ * Each circuit keeps the outcomes of the last calls in a sliding window. When the share of failed calls (transport
+ * errors and 5xx responses) or slow calls crosses its threshold, the circuit opens and notifications for that origin
+ * are rejected before any encryption work is done. After a while, the circuit lets a few probe calls through
+ * (half-open); depending on their outcome it closes again or stays open.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Receives state changes of the circuits.
+     */
+    @FunctionalInterface
+    public interface StateListener {
+        void onStateChange(String origin, State from, State to);
+    }
+
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallDuration;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final long openDuration;
+    private final int halfOpenCalls;
+
+    private final List<StateListener> listeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private CircuitBreaker(double failureRateThreshold, double slowCallRateThreshold, Duration slowCallDuration, int windowSize, int minimumCalls, Duration openDuration, int halfOpenCalls) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = slowCallDuration.toNanos();
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.openDuration = openDuration.toNanos();
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Check if a call to the given origin is permitted. In the half-open state, this takes one of the probe calls.
+     *
+     * @param origin
+     * @return
+     */
+    public boolean tryAcquire(String origin) {
+        return circuit(origin).tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Check if a call to the given origin would be rejected right now, without taking a probe call. Use this to
+     * reject work early, and {@link #tryAcquire(String)} right before the call is made.
+     *
+     * @param origin
+     * @return
+     */
+    public boolean isRejecting(String origin) {
+        return circuit(origin).isRejecting(System.nanoTime());
+    }
+
+    /**
+     * Record the outcome of a call to the given origin.
+     *
+     * @param origin
+     * @param duration The duration of the call in nanoseconds.
+     * @param failed   Whether the call failed.
+     */
+    public void onResult(String origin, long duration, boolean failed) {
+        circuit(origin).onResult(System.nanoTime(), duration >= slowCallDuration, failed);
+    }
+
+    /**
+     * Get the state of the circuit for the given origin.
+     *
+     * @param origin
+     * @return
+     */
+    public State getState(String origin) {
+        return circuit(origin).getState(System.nanoTime());
+    }
+
+    /**
+     * Get the state of every circuit.
+     *
+     * @return
+     */
+    public Map<String, State> getStates() {
+        long now = System.nanoTime();
+        Map<String, State> states = new HashMap<>();
+        circuits.forEach((origin, circuit) -> states.put(origin, circuit.getState(now)));
+
+        return states;
+    }
+
+    public CircuitBreaker addListener(StateListener listener) {
+        listeners.add(listener);
+
+        return this;
+    }
+
+    public CircuitBreaker removeListener(StateListener listener) {
+        listeners.remove(listener);
+
+        return this;
+    }
+
+    private Circuit circuit(String origin) {
+        return circuits.computeIfAbsent(origin, Circuit::new);
+    }
+
+    private void notifyListeners(String origin, State from, State to) {
+        for (StateListener listener : listeners) {
+            listener.onStateChange(origin, from, to);
+        }
+    }
+
+    class Circuit {
+        private static final byte FAILED = 1;
+        private static final byte SLOW = 2;
+
+        private final String origin;
+
+        /**
+         * Ring buffer with the outcome of the last calls, as a combination of the FAILED and SLOW flags
+         */
+        private final byte[] outcomes = new byte[windowSize];
+        private int position;
+        private int calls;
+        private int failures;
+        private int slowCalls;
+
+        private State state = State.CLOSED;
+        private long openUntil;
+        private int probesLeft;
+
+        Circuit(String origin) {
+            this.origin = origin;
+        }
+
+        boolean tryAcquire(long now) {
+            State from;
+
+            synchronized (this) {
+                from = state;
+
+                if (state == State.CLOSED) {
+                    return true;
+                }
+
+                if (state == State.OPEN) {
+                    if (now < openUntil) {
+                        return false;
+                    }
+
+                    transition(State.HALF_OPEN);
+                }
+
+                if (probesLeft == 0) {
+                    return false;
+                }
+
+                probesLeft--;
+            }
+
+            if (from == State.OPEN) {
+                notifyListeners(origin, from, State.HALF_OPEN);
+            }
+
+            return true;
+        }
+
+        synchronized boolean isRejecting(long now) {
+            if (state == State.OPEN) {
+                return now < openUntil;
+            }
+
+            return state == State.HALF_OPEN && probesLeft == 0;
+        }
+
+        void onResult(long now, boolean slow, boolean failed) {
+            State from;
+            State to;
+
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    return;
+                }
+
+                from = state;
+                record((byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0)));
+
+                if (state == State.CLOSED && calls >= minimumCalls && isTripped()) {
+                    open(now);
+                } else if (state == State.HALF_OPEN && calls >= halfOpenCalls) {
+                    if (isTripped()) {
+                        open(now);
+                    } else {
+                        transition(State.CLOSED);
+                    }
+                }
+
+                to = state;
+            }
+
+            if (from != to) {
+                notifyListeners(origin, from, to);
+            }
+        }
+
+        State getState(long now) {
+            synchronized (this) {
+                if (state != State.OPEN || now < openUntil) {
+                    return state;
+                }
+            }
+
+            // The open period is over; report half-open as soon as the next call would be let through
+            return State.HALF_OPEN;
+        }
+
+        private boolean isTripped() {
+            return failures >= failureRateThreshold * calls || slowCalls >= slowCallRateThreshold * calls;
+        }
+
+        private void record(byte outcome) {
+            if (calls == outcomes.length) {
+                byte evicted = outcomes[position];
+                failures -= evicted & FAILED;
+                slowCalls -= (evicted & SLOW) >> 1;
+            } else {
+                calls++;
+            }
+
+            outcomes[position] = outcome;
+            position = (position + 1) % outcomes.length;
+            failures += outcome & FAILED;
+            slowCalls += (outcome & SLOW) >> 1;
+        }
+
+        private void open(long now) {
+            transition(State.OPEN);
+            openUntil = now + openDuration;
+        }
+
+        private void transition(State to) {
+            state = to;
+            position = 0;
+            calls = 0;
+            failures = 0;
+            slowCalls = 0;
+            probesLeft = to == State.HALF_OPEN ? halfOpenCalls : 0;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private double failureRateThreshold = 0.5;
+        private double slowCallRateThreshold = 1.0;
+        private Duration slowCallDuration = Duration.ofSeconds(10);
+        private int windowSize = 100;
+        private int minimumCalls = 20;
+        private Duration openDuration = Duration.ofSeconds(30);
+        private int halfOpenCalls = 5;
+
+        private Builder() {
+        }
+
+        public CircuitBreaker build() {
+            if (halfOpenCalls > windowSize) {
+                throw new IllegalStateException("The number of half-open calls cannot exceed the window size.");
+            }
+
+            return new CircuitBreaker(failureRateThreshold, slowCallRateThreshold, slowCallDuration, windowSize, Math.min(minimumCalls, windowSize), openDuration, halfOpenCalls);
+        }
+
+        /**
+         * Open the circuit when at least this share of the calls in the window failed.
+         *
+         * @param failureRateThreshold A number between 0 (exclusive) and 1 (inclusive).
+         * @return
+         */
+        public Builder failureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = requireRate(failureRateThreshold);
+            return this;
+        }
+
+        /**
+         * Open the circuit when at least this share of the calls in the window took longer than the given duration.
+         *
+         * @param slowCallRateThreshold A number between 0 (exclusive) and 1 (inclusive).
+         * @param slowCallDuration
+         * @return
+         */
+        public Builder slowCallRateThreshold(double slowCallRateThreshold, Duration slowCallDuration) {
+            this.slowCallRateThreshold = requireRate(slowCallRateThreshold);
+            this.slowCallDuration = slowCallDuration;
+            return this;
+        }
+
+        /**
+         * The number of most recent calls the rates are computed over.
+         *
+         * @param windowSize
+         * @return
+         */
+        public Builder windowSize(int windowSize) {
+            if (windowSize < 1) {
+                throw new IllegalArgumentException("The window size must be at least 1, " + windowSize + " given.");
+            }
+
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * The number of calls that must be recorded before the circuit can open.
+         *
+         * @param minimumCalls
+         * @return
+         */
+        public Builder minimumCalls(int minimumCalls) {
+            this.minimumCalls = Math.max(1, minimumCalls);
+            return this;
+        }
+
+        /**
+         * How long the circuit stays open before probe calls are let through.
+         *
+         * @param openDuration
+         * @return
+         */
+        public Builder openDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+            return this;
+        }
+
+        /**
+         * The number of probe calls let through in the half-open state.
+         *
+         * @param halfOpenCalls
+         * @return
+         */
+        public Builder halfOpenCalls(int halfOpenCalls) {
+            if (halfOpenCalls < 1) {
+                throw new IllegalArgumentException("The number of half-open calls must be at least 1, " + halfOpenCalls + " given.");
+            }
+
+            this.halfOpenCalls = halfOpenCalls;
+            return this;
+        }
+
+        private static double requireRate(double rate) {
+            if (rate <= 0 || rate > 1) {
+                throw new IllegalArgumentException("Expected a rate between 0 and 1, " + rate + " given.");
+            }
+
+            return rate;
+        }
+    }
+}
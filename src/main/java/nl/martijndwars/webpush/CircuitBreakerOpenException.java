@@ -0,0 +1,19 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a notification is rejected because the circuit for its push service is open.
+ */
+public class CircuitBreakerOpenException extends RejectedExecutionException {
+    private final String origin;
+
+    public CircuitBreakerOpenException(String origin) {
+        super("The circuit for " + origin + " is open.");
+        this.origin = origin;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+}
@@ -0,0 +1,176 @@
+package nl.martijndwars.webpush;
+
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces queued notifications that share an endpoint and a topic.
+ * <p>
+ * A push service replaces a stored message with a newer one with the same topic, so only the newest is ever
+ * delivered. This class applies the same rule locally: while a notification with a topic is waiting to be sent, a
+ * newer notification for the same endpoint and topic takes its place in the queue, and the older one is dropped with a
+ * {@link NotificationSupersededException}. Only the newest value is encrypted and sent.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8030#section-5.4">Replacing Push Messages</a>
+ */
+public class Coalescer {
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final LongAdder superseded = new LongAdder();
+
+    /**
+     * Offer a notification with a topic.
+     *
+     * @param notification
+     * @param encoding
+     * @param enqueue      Called with a new queue entry when no notification with the same endpoint and topic is
+     *                     waiting. The caller is responsible for sending the entry once it leaves the queue.
+     * @return A future for the response to the notification.
+     */
+    CompletableFuture<HttpResponse<String>> offer(Notification notification, Encoding encoding, Consumer<Pending> enqueue) {
+        String key = notification.getEndpoint() + '\0' + notification.getTopic();
+
+        while (true) {
+            Pending fresh = new Pending(key, notification, encoding);
+            CompletableFuture<HttpResponse<String>> result = fresh.result;
+            Pending existing = pending.putIfAbsent(key, fresh);
+
+            if (existing == null) {
+                enqueue.accept(fresh);
+                return result;
+            }
+
+            result = existing.replace(notification, encoding);
+
+            if (result != null) {
+                superseded.increment();
+                return result;
+            }
+
+            // The existing entry was claimed concurrently, and is about to leave the map
+            pending.remove(key, existing);
+        }
+    }
+
+    /**
+     * Get the number of notifications with a topic that are waiting to be sent.
+     *
+     * @return
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Get the number of notifications that were replaced by a newer one before they were sent.
+     *
+     * @return
+     */
+    public long getSupersededCount() {
+        return superseded.sum();
+    }
+
+    /**
+     * A queue entry for one endpoint and topic. Until it is claimed, newer notifications replace the one it holds.
+     */
+    class Pending {
+        private final String key;
+        private Notification notification;
+        private Encoding encoding;
+        private CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+        private boolean claimed;
+
+        private final Notification first;
+
+        Pending(String key, Notification notification, Encoding encoding) {
+            this.key = key;
+            this.notification = notification;
+            this.encoding = encoding;
+            this.first = notification;
+        }
+
+        /**
+         * Replace the queued notification with a newer one.
+         *
+         * @return The future for the newer notification, or null if the entry has already left the queue.
+         */
+        private CompletableFuture<HttpResponse<String>> replace(Notification newer, Encoding newerEncoding) {
+            Notification older;
+            CompletableFuture<HttpResponse<String>> olderResult;
+            CompletableFuture<HttpResponse<String>> newerResult = new CompletableFuture<>();
+
+            synchronized (this) {
+                if (claimed) {
+                    return null;
+                }
+
+                older = notification;
+                olderResult = result;
+
+                notification = newer;
+                encoding = newerEncoding;
+                result = newerResult;
+            }
+
+            olderResult.completeExceptionally(new NotificationSupersededException(older));
+
+            return newerResult;
+        }
+
+        /**
+         * Take the newest notification out of the queue, together with its encoding and future. After this, the entry
+         * can no longer be replaced.
+         */
+        synchronized Claim claim() {
+            if (!claimed) {
+                claimed = true;
+                pending.remove(key, this);
+            }
+
+            return new Claim(notification, encoding, result);
+        }
+
+        /**
+         * The encoding of the notification the entry holds now, which changes when it is replaced.
+         */
+        synchronized Encoding getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * The notification the entry was queued with, which determines its place in the queue.
+         */
+        Notification getFirst() {
+            return first;
+        }
+    }
+
+    /**
+     * The notification a queue entry held when it was claimed, with the encoding and future that belong to it.
+     */
+    static class Claim {
+        private final Notification notification;
+        private final Encoding encoding;
+        private final CompletableFuture<HttpResponse<String>> result;
+
+        private Claim(Notification notification, Encoding encoding, CompletableFuture<HttpResponse<String>> result) {
+            this.notification = notification;
+            this.encoding = encoding;
+            this.result = result;
+        }
+
+        Notification getNotification() {
+            return notification;
+        }
+
+        Encoding getEncoding() {
+            return encoding;
+        }
+
+        CompletableFuture<HttpResponse<String>> getResult() {
+            return result;
+        }
+    }
+}
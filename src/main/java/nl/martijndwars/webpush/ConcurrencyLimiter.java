@@ -0,0 +1,338 @@
+package nl.martijndwars.webpush;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An adaptive limit on the number of requests in flight, with one window per push service origin.
+ * <p>
+ * The limit follows TCP Vegas: every round trip is compared to the lowest round trip seen so far, which estimates
+ * the latency without queueing. From the ratio between the two, the number of requests queued at the push service is
+ * estimated. While that estimate stays below alpha the window grows, once it exceeds beta the window shrinks.
+ * Dropped requests (429, 5xx and transport errors) shrink the window multiplicatively.
+ * <p>
+ * Acquiring a permit never blocks a thread: when the window is full, the returned future completes once another
+ * request to the same origin finishes.
+ */
+public class ConcurrencyLimiter {
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int alpha;
+    private final int beta;
+    private final double backoffRatio;
+    private final long probeInterval;
+    private final VendorRegistry vendorRegistry;
+
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+
+    private ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, int alpha, int beta, double backoffRatio, long probeInterval, VendorRegistry vendorRegistry) {
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.backoffRatio = backoffRatio;
+        this.probeInterval = probeInterval;
+        this.vendorRegistry = vendorRegistry;
+    }
+
+    /**
+     * Acquire a slot in the given origin's window.
+     *
+     * @param origin
+     * @return A future that completes with the permit once a slot is free.
+     */
+    public CompletableFuture<Permit> acquire(String origin) {
+        return window(origin).acquire();
+    }
+
+    /**
+     * Record the outcome of a single request, which adjusts the origin's limit.
+     *
+     * @param origin
+     * @param rtt     The round trip time in nanoseconds.
+     * @param dropped Whether the push service rejected or failed the request.
+     */
+    public void onSample(String origin, long rtt, boolean dropped) {
+        window(origin).onSample(rtt, dropped);
+    }
+
+    /**
+     * Get the current limit for the given origin.
+     *
+     * @param origin
+     * @return
+     */
+    public int getLimit(String origin) {
+        return window(origin).getLimit();
+    }
+
+    /**
+     * Get the number of requests in flight for the given origin.
+     *
+     * @param origin
+     * @return
+     */
+    public int getInFlight(String origin) {
+        return window(origin).getInFlight();
+    }
+
+    /**
+     * Get the current limit of every origin that has been sent to.
+     *
+     * @return
+     */
+    public Map<String, Integer> getLimits() {
+        Map<String, Integer> limits = new HashMap<>();
+        windows.forEach((origin, window) -> limits.put(origin, window.getLimit()));
+
+        return limits;
+    }
+
+    private Window window(String origin) {
+        return windows.computeIfAbsent(origin, key -> new Window(initialLimit(key)));
+    }
+
+    /**
+     * The concurrency of the vendor's profile, if it has one, kept within the bounds of the limiter. Only called when
+     * the origin's window is created.
+     */
+    private int initialLimit(String origin) {
+        if (vendorRegistry == null) {
+            return initialLimit;
+        }
+
+        int limit = vendorRegistry.getProfile(origin).getMaxConcurrency().orElse(initialLimit);
+
+        return Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+
+    /**
+     * A slot in an origin's window. Must be released exactly once.
+     */
+    public static class Permit {
+        private final Window window;
+        private boolean released;
+
+        private Permit(Window window) {
+            this.window = window;
+        }
+
+        public void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+
+            window.release();
+        }
+    }
+
+    class Window {
+        private final ArrayDeque<CompletableFuture<Permit>> waiting = new ArrayDeque<>();
+        private double limit;
+        private int inFlight;
+        private long minRtt = Long.MAX_VALUE;
+        private long minRttResetAt = System.nanoTime() + probeInterval;
+
+        Window(int initialLimit) {
+            this.limit = initialLimit;
+        }
+
+        CompletableFuture<Permit> acquire() {
+            synchronized (this) {
+                if (inFlight >= (int) limit || !waiting.isEmpty()) {
+                    CompletableFuture<Permit> permit = new CompletableFuture<>();
+                    waiting.add(permit);
+
+                    return permit;
+                }
+
+                inFlight++;
+            }
+
+            return CompletableFuture.completedFuture(new Permit(this));
+        }
+
+        void release() {
+            CompletableFuture<Permit> next;
+
+            synchronized (this) {
+                inFlight--;
+                next = poll();
+            }
+
+            complete(next);
+        }
+
+        void onSample(long rtt, boolean dropped) {
+            CompletableFuture<Permit> next;
+
+            synchronized (this) {
+                long now = System.nanoTime();
+
+                // Periodically forget the minimum, so a permanent change in network latency is picked up
+                if (now >= minRttResetAt) {
+                    minRtt = rtt;
+                    minRttResetAt = now + probeInterval;
+                }
+
+                minRtt = Math.min(minRtt, rtt);
+
+                if (dropped) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                } else {
+                    double queueSize = limit * (1 - (double) minRtt / rtt);
+
+                    if (queueSize < alpha && inFlight * 2 >= limit) {
+                        limit = Math.min(maxLimit, limit + 1);
+                    } else if (queueSize > beta) {
+                        limit = Math.max(minLimit, limit - 1);
+                    }
+                }
+
+                next = poll();
+            }
+
+            complete(next);
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * Take the next waiter if the window has room. Must be called while holding the lock.
+         */
+        private CompletableFuture<Permit> poll() {
+            if (inFlight >= (int) limit || waiting.isEmpty()) {
+                return null;
+            }
+
+            inFlight++;
+
+            return waiting.poll();
+        }
+
+        /**
+         * Hand a slot to a waiter. Called outside the lock, since completing the future runs its dependents.
+         */
+        private void complete(CompletableFuture<Permit> next) {
+            if (next != null && !next.complete(new Permit(this))) {
+                release();
+            }
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 1000;
+        private int alpha = 3;
+        private int beta = 6;
+        private double backoffRatio = 0.9;
+        private long probeInterval = TimeUnit.SECONDS.toNanos(30);
+        private VendorRegistry vendorRegistry;
+
+        private Builder() {
+        }
+
+        public ConcurrencyLimiter build() {
+            if (minLimit > initialLimit || initialLimit > maxLimit) {
+                throw new IllegalStateException("Expected minLimit <= initialLimit <= maxLimit.");
+            }
+
+            return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, alpha, beta, backoffRatio, probeInterval, vendorRegistry);
+        }
+
+        public Builder initialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        public Builder minLimit(int minLimit) {
+            if (minLimit < 1) {
+                throw new IllegalArgumentException("The minimum limit must be at least 1, " + minLimit + " given.");
+            }
+
+            this.minLimit = minLimit;
+            return this;
+        }
+
+        public Builder maxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * Grow the window while fewer than alpha requests are estimated to be queued, and shrink it once more than
+         * beta requests are.
+         *
+         * @param alpha
+         * @param beta
+         * @return
+         */
+        public Builder queueThresholds(int alpha, int beta) {
+            if (alpha < 0 || alpha > beta) {
+                throw new IllegalArgumentException("Expected 0 <= alpha <= beta, " + alpha + " and " + beta + " given.");
+            }
+
+            this.alpha = alpha;
+            this.beta = beta;
+            return this;
+        }
+
+        /**
+         * The factor the limit is multiplied with when a request is dropped.
+         *
+         * @param backoffRatio
+         * @return
+         */
+        public Builder backoffRatio(double backoffRatio) {
+            if (backoffRatio <= 0 || backoffRatio >= 1) {
+                throw new IllegalArgumentException("The backoff ratio must be between 0 and 1, " + backoffRatio + " given.");
+            }
+
+            this.backoffRatio = backoffRatio;
+            return this;
+        }
+
+        /**
+         * How often the lowest observed round trip time is reset.
+         *
+         * @param probeInterval
+         * @return
+         */
+        public Builder probeInterval(Duration probeInterval) {
+            this.probeInterval = probeInterval.toNanos();
+            return this;
+        }
+
+        /**
+         * Start the window of an origin at the concurrency of its vendor's profile, if it has one.
+         *
+         * @param vendorRegistry
+         * @return
+         */
+        public Builder vendorRegistry(VendorRegistry vendorRegistry) {
+            this.vendorRegistry = vendorRegistry;
+            return this;
+        }
+    }
+}
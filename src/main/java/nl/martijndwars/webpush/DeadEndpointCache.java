@@ -0,0 +1,381 @@
+package nl.martijndwars.webpush;
+
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Remembers endpoints whose subscription has expired, so notifications for them are rejected before any encryption
+ * work is done.
+ * <p>
+ * A push service answers 404 (Not Found) or 410 (Gone) when a subscription no longer exists. Such endpoints are kept
+ * in a bounded concurrent set, so checking an endpoint takes no lock. Once the set is full, an endpoint that has not
+ * been seen since it was added (or last spared) is evicted, which approximates evicting the least recently seen one.
+ * Optionally, a Bloom filter sits in front of the set: most notifications go to live endpoints, and the filter
+ * answers those without touching the set. Evicted endpoints cannot be removed from a Bloom filter, so the filter is
+ * rebuilt from the endpoints in the set before the evicted ones push it past the size it was built for.
+ * <p>
+ * Newly expired endpoints are collected and handed to a listener in batches, so a subscription store can delete them
+ * in bulk.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8030#section-7.3">Subscription Expiration</a>
+ */
+public class DeadEndpointCache {
+    private final int maxEntries;
+    private final long bloomFilterCapacity;
+    private final double falsePositiveRate;
+    private final Consumer<List<String>> batchListener;
+    private final int batchSize;
+    private final Duration flushInterval;
+
+    private final ConcurrentHashMap<String, Entry> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * The entries in the order they were added or last spared from eviction. Guarded by this.
+     */
+    private final ArrayDeque<Entry> evictionQueue = new ArrayDeque<>();
+
+    private volatile BloomFilter bloomFilter;
+    private long evictionsSinceRebuild;
+
+    private List<String> batch = new ArrayList<>();
+    private boolean flushScheduled;
+
+    private DeadEndpointCache(int maxEntries, long bloomFilterCapacity, double falsePositiveRate, Consumer<List<String>> batchListener, int batchSize, Duration flushInterval) {
+        this.maxEntries = maxEntries;
+        this.bloomFilterCapacity = bloomFilterCapacity;
+        this.falsePositiveRate = falsePositiveRate;
+        this.batchListener = batchListener;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.bloomFilter = newBloomFilter();
+    }
+
+    /**
+     * Check if the given endpoint is known to be expired.
+     *
+     * @param endpoint
+     * @return
+     */
+    public boolean isDead(String endpoint) {
+        BloomFilter bloomFilter = this.bloomFilter;
+
+        if (bloomFilter != null && !bloomFilter.mightContain(endpoint)) {
+            return false;
+        }
+
+        Entry entry = endpoints.get(endpoint);
+
+        if (entry == null) {
+            return false;
+        }
+
+        if (!entry.seen) {
+            entry.seen = true;
+        }
+
+        return true;
+    }
+
+    /**
+     * Mark the given endpoint as expired.
+     *
+     * @param endpoint
+     */
+    public void markDead(String endpoint) {
+        List<String> full = null;
+
+        synchronized (this) {
+            Entry existing = endpoints.get(endpoint);
+
+            if (existing != null) {
+                existing.seen = true;
+                return;
+            }
+
+            Entry entry = new Entry(endpoint);
+
+            // Add to the filter first, so the endpoint is never in the set without being in the filter
+            if (bloomFilter != null) {
+                bloomFilter.put(endpoint);
+            }
+
+            endpoints.put(endpoint, entry);
+            evictionQueue.addLast(entry);
+
+            while (endpoints.size() > maxEntries) {
+                evict();
+            }
+
+            if (batchListener == null) {
+                return;
+            }
+
+            batch.add(endpoint);
+
+            if (batch.size() >= batchSize) {
+                full = batch;
+                batch = new ArrayList<>();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                CompletableFuture.delayedExecutor(flushInterval.toNanos(), TimeUnit.NANOSECONDS).execute(this::flush);
+            }
+        }
+
+        if (full != null) {
+            batchListener.accept(full);
+        }
+    }
+
+    /**
+     * Evict the first entry in the queue that was not seen since it was queued, sparing the others. Must be called
+     * while holding the lock.
+     */
+    private void evict() {
+        Entry entry;
+
+        while ((entry = evictionQueue.pollFirst()).seen) {
+            entry.seen = false;
+            evictionQueue.addLast(entry);
+        }
+
+        endpoints.remove(entry.endpoint);
+
+        if (bloomFilter != null && ++evictionsSinceRebuild >= bloomFilterCapacity / 2) {
+            BloomFilter rebuilt = newBloomFilter();
+
+            for (String endpoint : endpoints.keySet()) {
+                rebuilt.put(endpoint);
+            }
+
+            bloomFilter = rebuilt;
+            evictionsSinceRebuild = 0;
+        }
+    }
+
+    /**
+     * Create a filter for the endpoints in the set and the endpoints that are evicted before the next rebuild.
+     *
+     * @return
+     */
+    private BloomFilter newBloomFilter() {
+        return bloomFilterCapacity > 0 ? new BloomFilter(bloomFilterCapacity, falsePositiveRate) : null;
+    }
+
+    /**
+     * Feed the push service's response back into the cache.
+     *
+     * @param endpoint
+     * @param response
+     */
+    public void onResponse(String endpoint, HttpResponse<?> response) {
+        if (response.statusCode() == 404 || response.statusCode() == 410) {
+            markDead(endpoint);
+        }
+    }
+
+    /**
+     * Hand the endpoints that expired since the last batch to the listener.
+     */
+    public void flush() {
+        List<String> pending;
+
+        synchronized (this) {
+            flushScheduled = false;
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            pending = batch;
+            batch = new ArrayList<>();
+        }
+
+        batchListener.accept(pending);
+    }
+
+    /**
+     * Get the number of endpoints in the cache.
+     *
+     * @return
+     */
+    public int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Check if the Bloom filter (if any) might contain the given endpoint.
+     *
+     * @param endpoint
+     * @return
+     */
+    boolean bloomFilterMightContain(String endpoint) {
+        BloomFilter bloomFilter = this.bloomFilter;
+
+        return bloomFilter == null || bloomFilter.mightContain(endpoint);
+    }
+
+    private static class Entry {
+        private final String endpoint;
+
+        /**
+         * Whether the endpoint was seen since it was queued for eviction
+         */
+        private volatile boolean seen;
+
+        Entry(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    /**
+     * A Bloom filter over strings. Bits are only ever set, so lookups need no lock.
+     */
+    static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+
+        BloomFilter(long expectedInsertions, double falsePositiveRate) {
+            long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, (optimalBits + 63) / 64));
+
+            this.bits = new AtomicLongArray(words);
+            this.bitCount = words * 64L;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+        }
+
+        boolean mightContain(String value) {
+            long hash = hash(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        void put(String value) {
+            long hash = hash(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current;
+
+                do {
+                    current = bits.get(word);
+                } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+            }
+        }
+
+        /**
+         * 64-bit FNV-1a over the characters, followed by a finalizer that spreads the bits.
+         */
+        static long hash(String value) {
+            long hash = 0xcbf29ce484222325L;
+
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+
+            return hash;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int maxEntries = 1_000_000;
+        private long expectedInsertions;
+        private double falsePositiveRate;
+        private Consumer<List<String>> batchListener;
+        private int batchSize = 1000;
+        private Duration flushInterval = Duration.ofSeconds(5);
+
+        private Builder() {
+        }
+
+        public DeadEndpointCache build() {
+            // The filter holds the endpoints in the cache, plus the evicted ones until it is rebuilt
+            long bloomFilterCapacity = expectedInsertions > 0 ? 2 * Math.max(expectedInsertions, maxEntries) : 0;
+
+            return new DeadEndpointCache(maxEntries, bloomFilterCapacity, falsePositiveRate, batchListener, batchSize, flushInterval);
+        }
+
+        /**
+         * The maximum number of endpoints to remember.
+         *
+         * @param maxEntries
+         * @return
+         */
+        public Builder maxEntries(int maxEntries) {
+            if (maxEntries < 1) {
+                throw new IllegalArgumentException("The cache must hold at least 1 entry, " + maxEntries + " given.");
+            }
+
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Put a Bloom filter in front of the cache.
+         *
+         * @param expectedInsertions The number of expired endpoints the filter is sized for. The filter is never sized for
+         *                           fewer endpoints than the cache holds.
+         * @param falsePositiveRate  The rate at which the filter sends a live endpoint on to the exact lookup.
+         * @return
+         */
+        public Builder bloomFilter(long expectedInsertions, double falsePositiveRate) {
+            if (expectedInsertions < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+                throw new IllegalArgumentException("Expected a positive number of insertions and a false positive rate between 0 and 1.");
+            }
+
+            this.expectedInsertions = expectedInsertions;
+            this.falsePositiveRate = falsePositiveRate;
+            return this;
+        }
+
+        /**
+         * Receive newly expired endpoints in batches.
+         *
+         * @param batchListener
+         * @param batchSize     Hand over a batch as soon as it holds this many endpoints.
+         * @param flushInterval Hand over a partial batch at most this long after its first endpoint was added.
+         * @return
+         */
+        public Builder batchListener(Consumer<List<String>> batchListener, int batchSize, Duration flushInterval) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("The batch size must be at least 1, " + batchSize + " given.");
+            }
+
+            this.batchListener = batchListener;
+            this.batchSize = batchSize;
+            this.flushInterval = flushInterval;
+            return this;
+        }
+    }
+}
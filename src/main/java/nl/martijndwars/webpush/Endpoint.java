@@ -0,0 +1,139 @@
+package nl.martijndwars.webpush;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A push subscription's endpoint, parsed once.
+ * <p>
+ * Sending a notification needs the endpoint in several forms: its origin (the key of the per-origin limiters and the
+ * audience of the VAPID token), its vendor, and the URI the request is sent to, which for some vendors is rewritten.
+ * An endpoint computes all of these when it is created. Origins are interned, so the many endpoints of a push service
+ * share one origin string.
+ * <p>
+ * A {@link Notification} parses its endpoint the first time it is needed. When sending several notifications to the
+ * same subscription, parse the endpoint up front and pass it to {@link Notification.NotificationBuilder#endpoint(Endpoint)}.
+ */
+public final class Endpoint {
+    /**
+     * Stop interning once this many origins are known, so endpoints with made-up hosts cannot fill up memory
+     */
+    private static final int MAX_INTERNED_ORIGINS = 10_000;
+
+    private static final ConcurrentHashMap<String, String> ORIGINS = new ConcurrentHashMap<>();
+
+    private final String url;
+    private final URI uri;
+    private final String origin;
+    private final PushVendor vendor;
+    private final String rewrittenUrl;
+    private final URI rewrittenUri;
+
+    private Endpoint(String url) {
+        this.url = url;
+        this.uri = URI.create(url);
+        this.origin = intern(uri.getScheme() + "://" + uri.getHost());
+        this.vendor = VendorRegistry.getDefault().classify(url);
+
+        String rewritten = VendorRegistry.getDefault().getProfile(vendor).rewrite(url);
+        this.rewrittenUrl = rewritten.equals(url) ? url : rewritten;
+        this.rewrittenUri = rewrittenUrl == url ? uri : URI.create(rewrittenUrl);
+    }
+
+    /**
+     * Parse an endpoint.
+     *
+     * @param url
+     * @return
+     * @throws IllegalArgumentException If the endpoint is not a valid URI.
+     */
+    public static Endpoint of(String url) {
+        return new Endpoint(url);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Get the scheme and host, such as {@code https://fcm.googleapis.com}. The returned string is shared by all
+     * endpoints with the same origin.
+     *
+     * @return
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Get the vendor, as recognized by the default {@link VendorRegistry}.
+     *
+     * @return
+     */
+    public PushVendor getVendor() {
+        return vendor;
+    }
+
+    /**
+     * Get the URL a request with VAPID and the aes128gcm encoding is sent to, after the rewrite of the vendor's
+     * default profile.
+     *
+     * @return
+     */
+    public String getRewrittenUrl() {
+        return rewrittenUrl;
+    }
+
+    /**
+     * Get the URI for the given URL, without parsing it again if it is this endpoint or its rewritten form.
+     *
+     * @param url
+     * @return
+     */
+    public URI toUri(String url) {
+        if (url.equals(this.url)) {
+            return uri;
+        }
+
+        if (url.equals(rewrittenUrl)) {
+            return rewrittenUri;
+        }
+
+        return URI.create(url);
+    }
+
+    private static String intern(String origin) {
+        String interned = ORIGINS.get(origin);
+
+        if (interned != null) {
+            return interned;
+        }
+
+        if (ORIGINS.size() >= MAX_INTERNED_ORIGINS) {
+            return origin;
+        }
+
+        interned = ORIGINS.putIfAbsent(origin, origin);
+
+        return interned != null ? interned : origin;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Endpoint && ((Endpoint) o).url.equals(url);
+    }
+
+    @Override
+    public int hashCode() {
+        return url.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
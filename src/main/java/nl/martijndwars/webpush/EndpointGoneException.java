@@ -0,0 +1,19 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a notification is rejected because its endpoint was earlier reported as expired by the push service.
+ */
+public class EndpointGoneException extends RejectedExecutionException {
+    private final String endpoint;
+
+    public EndpointGoneException(String endpoint) {
+        super("The subscription for " + endpoint + " has expired.");
+        this.endpoint = endpoint;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
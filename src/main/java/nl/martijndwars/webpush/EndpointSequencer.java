@@ -0,0 +1,147 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Runs asynchronous tasks one at a time per endpoint, while tasks for different endpoints run in parallel.
+ * <p>
+ * Endpoints are hashed onto a fixed number of stripes. Each stripe is a lock-free serial queue: a task starts once
+ * the future of the task before it in the same stripe has completed. Memory use therefore does not grow with the
+ * number of subscribers, at the cost of an occasional wait behind an unrelated endpoint that hashes to the same
+ * stripe; more stripes make that less likely.
+ */
+public class EndpointSequencer {
+    private final Stripe[] stripes;
+
+    public EndpointSequencer() {
+        this(1024);
+    }
+
+    /**
+     * @param stripes The number of serial queues, rounded up to a power of two.
+     */
+    public EndpointSequencer(int stripes) {
+        if (stripes < 1 || stripes > 1 << 30) {
+            throw new IllegalArgumentException("Expected between 1 and 2^30 stripes, " + stripes + " given.");
+        }
+
+        int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new Stripe[size];
+
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Run the given task after all earlier tasks for the same endpoint have completed.
+     *
+     * @param endpoint
+     * @param task     Starts the work, and returns a future that completes when it is done.
+     * @return A future for the result of the task.
+     */
+    public <T> CompletableFuture<T> submit(String endpoint, Supplier<CompletableFuture<T>> task) {
+        Task<T> queued = new Task<>(task);
+        stripe(endpoint).submit(queued);
+
+        return queued.result;
+    }
+
+    /**
+     * Get the number of tasks that are waiting for an earlier task in their stripe.
+     *
+     * @return
+     */
+    public int getQueued() {
+        int queued = 0;
+
+        for (Stripe stripe : stripes) {
+            queued += stripe.queue.size();
+        }
+
+        return queued;
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    private Stripe stripe(String endpoint) {
+        int hash = endpoint.hashCode();
+
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    private static class Stripe {
+        private final ConcurrentLinkedQueue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean active = new AtomicBoolean();
+
+        void submit(Task<?> task) {
+            queue.add(task);
+
+            if (active.compareAndSet(false, true)) {
+                drain();
+            }
+        }
+
+        /**
+         * Start queued tasks until one does not complete right away. Must only be called by the thread that set the
+         * active flag.
+         */
+        private void drain() {
+            while (true) {
+                Task<?> task = queue.poll();
+
+                if (task == null) {
+                    active.set(false);
+
+                    // A task may have been added after the poll, by a thread that saw the flag still set
+                    if (queue.isEmpty() || !active.compareAndSet(false, true)) {
+                        return;
+                    }
+
+                    continue;
+                }
+
+                CompletableFuture<?> running = task.start();
+
+                if (!running.isDone()) {
+                    running.whenComplete((result, throwable) -> drain());
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Task<T> {
+        private final Supplier<CompletableFuture<T>> supplier;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private Task(Supplier<CompletableFuture<T>> supplier) {
+            this.supplier = supplier;
+        }
+
+        CompletableFuture<?> start() {
+            CompletableFuture<T> running;
+
+            try {
+                running = supplier.get();
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return result;
+            }
+
+            return running.whenComplete((value, throwable) -> {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable);
+                } else {
+                    result.complete(value);
+                }
+            });
+        }
+    }
+}
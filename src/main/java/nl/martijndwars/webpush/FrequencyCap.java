@@ -0,0 +1,260 @@
+package nl.martijndwars.webpush;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Caps the number of notifications per endpoint within a sliding window, in memory that does not grow with the number
+ * of subscribers.
+ * <p>
+ * The window is divided into slices, and each slice counts notifications in a count-min sketch: a table of depth rows
+ * of width 8-bit counters, where every endpoint hashes to one counter per row. The count for an endpoint is the
+ * smallest of its counters, summed over the slices in the window. Collisions can only make that count too high, never
+ * too low, so the cap may reject a notification early but never lets too many through. Counters are updated
+ * conservatively (only those that hold the current minimum are raised), which keeps the overestimate small. When a
+ * new slice starts, the sketch of the oldest slice is cleared and reused.
+ * <p>
+ * The default sketch takes 4 slices of 3 rows of 4M counters, which is 48 MB. With width w, the count of an endpoint is
+ * overestimated by at most e/w times the number of notifications in the slice, with probability 1 - e^-depth. In
+ * practice the overestimate is much smaller: the default is sized for up to 1M notifications per slice, for example
+ * 1M subscribers that are each notified once per slice. At that load about 1 in 100 endpoints is overestimated by one
+ * per slice, and none by more, so an endpoint is capped at most a few notifications early. Larger populations need a
+ * proportionally wider sketch, about four counters per notification in a slice; 50M subscribers would take several
+ * gigabytes, and are better served by splitting them over several caps or by a shared store.
+ */
+public class FrequencyCap {
+    private final int limit;
+    private final long sliceDuration;
+    private final int depth;
+    private final int width;
+    private final Sketch[] sketches;
+    private final long startTime = System.nanoTime();
+
+    private FrequencyCap(int limit, Duration window, int slices, int depth, int width) {
+        this.limit = limit;
+        this.sliceDuration = Math.max(1, window.toNanos() / slices);
+        this.depth = depth;
+        this.width = width;
+        this.sketches = new Sketch[slices];
+
+        for (int i = 0; i < slices; i++) {
+            sketches[i] = new Sketch();
+        }
+    }
+
+    /**
+     * Count a notification for the given endpoint, unless the endpoint has reached the cap.
+     * <p>
+     * The check and the count are not atomic, so concurrent notifications for the same endpoint may exceed the cap by
+     * the number of threads involved.
+     *
+     * @param endpoint
+     * @return Whether the notification may be sent.
+     */
+    public boolean tryAcquire(String endpoint) {
+        long hash = DeadEndpointCache.BloomFilter.hash(endpoint);
+        long slice = (System.nanoTime() - startTime) / sliceDuration;
+        Sketch current = sketch(slice);
+
+        if (count(hash, slice) >= limit) {
+            return false;
+        }
+
+        current.increment(hash);
+
+        return true;
+    }
+
+    /**
+     * Get the estimated number of notifications counted for the given endpoint within the window.
+     *
+     * @param endpoint
+     * @return
+     */
+    public int getCount(String endpoint) {
+        long slice = (System.nanoTime() - startTime) / sliceDuration;
+
+        return count(DeadEndpointCache.BloomFilter.hash(endpoint), slice);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the number of bytes taken by the sketches.
+     *
+     * @return
+     */
+    public long getMemoryUsage() {
+        return (long) sketches.length * depth * width;
+    }
+
+    private int count(long hash, long slice) {
+        int count = 0;
+
+        for (Sketch sketch : sketches) {
+            long epoch = sketch.epoch;
+
+            if (epoch <= slice && epoch > slice - sketches.length) {
+                count += sketch.estimate(hash);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the sketch for the given slice, clearing it first if it still holds an older slice.
+     */
+    private Sketch sketch(long slice) {
+        Sketch sketch = sketches[(int) (slice % sketches.length)];
+
+        if (sketch.epoch < slice) {
+            synchronized (sketch) {
+                if (sketch.epoch < slice) {
+                    sketch.clear();
+                    sketch.epoch = slice;
+                }
+            }
+        }
+
+        return sketch;
+    }
+
+    /**
+     * A count-min sketch with 8-bit saturating counters, packed four to an int.
+     */
+    private class Sketch {
+        private final AtomicIntegerArray counters = new AtomicIntegerArray(depth * width / 4);
+        private volatile long epoch = Long.MIN_VALUE;
+
+        int estimate(long hash) {
+            int estimate = 0xFF;
+
+            for (int row = 0; row < depth; row++) {
+                estimate = Math.min(estimate, get(index(hash, row)));
+            }
+
+            return estimate;
+        }
+
+        void increment(long hash) {
+            int target = Math.min(0xFF, estimate(hash) + 1);
+
+            for (int row = 0; row < depth; row++) {
+                raise(index(hash, row), target);
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+
+        private int index(long hash, int row) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+
+            return row * width + ((h1 + row * h2) & (width - 1));
+        }
+
+        private int get(int index) {
+            return (counters.get(index >>> 2) >>> ((index & 3) << 3)) & 0xFF;
+        }
+
+        private void raise(int index, int target) {
+            int word = index >>> 2;
+            int shift = (index & 3) << 3;
+
+            while (true) {
+                int current = counters.get(word);
+
+                if (((current >>> shift) & 0xFF) >= target) {
+                    return;
+                }
+
+                int updated = (current & ~(0xFF << shift)) | (target << shift);
+
+                if (counters.compareAndSet(word, current, updated)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int limit = 10;
+        private Duration window = Duration.ofHours(1);
+        private int slices = 4;
+        private int depth = 3;
+        private int width = 1 << 22;
+
+        private Builder() {
+        }
+
+        public FrequencyCap build() {
+            return new FrequencyCap(limit, window, slices, depth, width);
+        }
+
+        /**
+         * Allow at most the given number of notifications per endpoint within the given window.
+         *
+         * @param limit  At most 255.
+         * @param window
+         * @return
+         */
+        public Builder limit(int limit, Duration window) {
+            if (limit < 1 || limit > 0xFF) {
+                throw new IllegalArgumentException("The limit must be between 1 and 255, " + limit + " given.");
+            }
+
+            this.limit = limit;
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * The number of slices the window slides by. The oldest slice is dropped as a whole, so notifications are
+         * counted for between (slices - 1) / slices and 1 times the window.
+         *
+         * @param slices
+         * @return
+         */
+        public Builder slices(int slices) {
+            if (slices < 1) {
+                throw new IllegalArgumentException("There must be at least 1 slice, " + slices + " given.");
+            }
+
+            this.slices = slices;
+            return this;
+        }
+
+        /**
+         * The size of the sketch of each slice.
+         *
+         * @param depth The number of rows, which lowers the chance of an overestimate.
+         * @param width The number of counters per row, rounded up to a power of two, which lowers the size of an
+         *              overestimate.
+         * @return
+         */
+        public Builder sketch(int depth, int width) {
+            if (depth < 1 || width < 4 || width > 1 << 28) {
+                throw new IllegalArgumentException("Expected at least 1 row and between 4 and 2^28 counters per row.");
+            }
+
+            if ((long) depth * width > Integer.MAX_VALUE / 2) {
+                throw new IllegalArgumentException("The sketch is too large.");
+            }
+
+            this.depth = depth;
+            this.width = Integer.highestOneBit(width - 1) << 1;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a notification is rejected because its subscriber has reached the frequency cap.
+ */
+public class FrequencyCappedException extends RejectedExecutionException {
+    private final Notification notification;
+
+    public FrequencyCappedException(Notification notification) {
+        super("The notification for " + notification.getEndpoint() + " was rejected because the subscriber reached the frequency cap.");
+        this.notification = notification;
+    }
+
+    public Notification getNotification() {
+        return notification;
+    }
+}
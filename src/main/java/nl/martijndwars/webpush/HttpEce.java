@@ -42,14 +42,25 @@ public class HttpEce {
 
     private Map<String, KeyPair> keys;
     private Map<String, String> labels;
+    private MetricsListener metricsListener;
 
     public HttpEce() {
         this(new HashMap<String, KeyPair>(), new HashMap<String, String>());
     }
 
     public HttpEce(Map<String, KeyPair> keys, Map<String, String> labels) {
+        this(keys, labels, MetricsListener.NONE);
+    }
+
+    /**
+     * @param keys
+     * @param labels
+     * @param metricsListener Receives the time spent in key agreement, key derivation and encryption.
+     */
+    public HttpEce(Map<String, KeyPair> keys, Map<String, String> labels, MetricsListener metricsListener) {
         this.keys = keys;
         this.labels = labels;
+        this.metricsListener = metricsListener;
     }
 
     /**
@@ -72,6 +83,8 @@ public class HttpEce {
         byte[] key = keyAndNonce[0];
         byte[] nonce = keyAndNonce[1];
 
+        long start = metricsListener == MetricsListener.NONE ? 0 : System.nanoTime();
+
         // Note: Cipher adds the tag to the end of the ciphertext
         Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
         GCMParameterSpec params = new GCMParameterSpec(TAG_SIZE * 8, nonce);
@@ -87,10 +100,14 @@ public class HttpEce {
 
             byte[][] encrypted = {cipher.update(plaintext), cipher.update(padding), cipher.doFinal()};
             log("encrypted", concat(encrypted));
+            record(MetricsListener.Stage.ENCRYPTION, start);
 
             return log("ciphertext", concat(header, concat(encrypted)));
         } else {
-            return concat(cipher.update(new byte[2]), cipher.doFinal(plaintext));
+            byte[] ciphertext = concat(cipher.update(new byte[2]), cipher.doFinal(plaintext));
+            record(MetricsListener.Stage.ENCRYPTION, start);
+
+            return ciphertext;
         }
     }
 
@@ -103,6 +120,26 @@ public class HttpEce {
      * @return
      */
     public byte[] decrypt(byte[] payload, byte[] salt, byte[] key, String keyid, Encoding version) throws InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, InvalidAlgorithmParameterException, BadPaddingException, NoSuchProviderException, NoSuchPaddingException {
+        return decrypt(payload, salt, key, keyid, null, null, version);
+    }
+
+    /**
+     * Decrypt the payload of a Web Push message, as the user agent.
+     * <p>
+     * The key pair saved for the keyid holds the sender's public key (Web Push: the local public key of the message)
+     * and the user agent's private key. For AES128GCM, the keyid is the sender's public key in the header, as a
+     * string.
+     *
+     * @param payload    Header and body (ciphertext)
+     * @param salt       May be null when version is AES128GCM; the salt is extracted from the header.
+     * @param key        An explicit key, or null.
+     * @param keyid
+     * @param dh         The user agent's public key (keys.p256dh)
+     * @param authSecret The user agent's authentication secret (keys.auth)
+     * @param version    AES128GCM or AESGCM.
+     * @return
+     */
+    public byte[] decrypt(byte[] payload, byte[] salt, byte[] key, String keyid, ECPublicKey dh, byte[] authSecret, Encoding version) throws InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, InvalidAlgorithmParameterException, BadPaddingException, NoSuchProviderException, NoSuchPaddingException {
         byte[] body;
 
         // Parse and strip the header
@@ -117,7 +154,7 @@ public class HttpEce {
         }
 
         // Derive key and nonce.
-        byte[][] keyAndNonce = deriveKeyAndNonce(salt, key, keyid, null, null, version, DECRYPT_MODE);
+        byte[][] keyAndNonce = deriveKeyAndNonce(salt, key, keyid, dh, authSecret, version, DECRYPT_MODE);
 
         return decryptRecord(body, keyAndNonce[0], keyAndNonce[1], version);
     }
@@ -218,6 +255,10 @@ public class HttpEce {
     }
 
     public byte[][] extractSecretAndContext(byte[] key, String keyId, ECPublicKey dh, byte[] authSecret) throws InvalidKeyException, NoSuchAlgorithmException {
+        return extractSecretAndContext(key, keyId, dh, authSecret, ENCRYPT_MODE);
+    }
+
+    public byte[][] extractSecretAndContext(byte[] key, String keyId, ECPublicKey dh, byte[] authSecret, int mode) throws InvalidKeyException, NoSuchAlgorithmException {
         byte[] secret = null;
         byte[] context = null;
 
@@ -227,7 +268,7 @@ public class HttpEce {
                 throw new IllegalStateException("An explicit key must be " + KEY_LENGTH + " bytes.");
             }
         } else if (dh != null) {
-            byte[][] bytes = extractDH(keyId, dh);
+            byte[][] bytes = extractDH(keyId, dh, mode);
             secret = bytes[0];
             context = bytes[1];
         } else if (keyId != null) {
@@ -254,7 +295,7 @@ public class HttpEce {
         byte[] nonceInfo;
 
         if (version == Encoding.AESGCM) {
-            byte[][] secretAndContext = extractSecretAndContext(key, keyId, dh, authSecret);
+            byte[][] secretAndContext = extractSecretAndContext(key, keyId, dh, authSecret, mode);
             secret = secretAndContext[0];
 
             keyInfo = buildInfo("aesgcm", secretAndContext[1]);
@@ -268,8 +309,10 @@ public class HttpEce {
             throw new IllegalStateException("Unknown version: " + version);
         }
 
+        long start = metricsListener == MetricsListener.NONE ? 0 : System.nanoTime();
         byte[] hkdf_key = hkdfExpand(secret, salt, keyInfo, 16);
         byte[] hkdf_nonce = hkdfExpand(secret, salt, nonceInfo, 12);
+        record(MetricsListener.Stage.KEY_DERIVATION, start);
 
         log("key", hkdf_key);
         log("nonce", hkdf_nonce);
@@ -335,10 +378,12 @@ public class HttpEce {
         log("sender pubkey", encode(senderPubKey));
         log("receiver pubkey", encode(receiverPubKey));
 
+        long start = metricsListener == MetricsListener.NONE ? 0 : System.nanoTime();
         KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
         keyAgreement.init(getPrivateKey(keyId));
         keyAgreement.doPhase(remotePubKey, true);
         byte[] secret = keyAgreement.generateSecret();
+        record(MetricsListener.Stage.KEY_AGREEMENT, start);
 
         byte[] ikm = secret;
         byte[] salt = authSecret;
@@ -349,19 +394,25 @@ public class HttpEce {
 
     /**
      * Compute the shared secret (using the server's key pair and the client's public key) and the context.
+     * <p>
+     * When decrypting, the key pair holds the sender's public key and the receiver's private key (as in
+     * {@link #webpushSecret}), so the secret is agreed with the sender's public key.
      *
      * @param keyid
-     * @param publicKey
+     * @param publicKey The receiver's public key
+     * @param mode
      * @return
      */
-    private  byte[][] extractDH(String keyid, ECPublicKey publicKey) throws NoSuchAlgorithmException, InvalidKeyException {
+    private  byte[][] extractDH(String keyid, ECPublicKey publicKey, int mode) throws NoSuchAlgorithmException, InvalidKeyException {
         ECPublicKey senderPubKey = getPublicKey(keyid);
 
+        long start = metricsListener == MetricsListener.NONE ? 0 : System.nanoTime();
         KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
         keyAgreement.init(getPrivateKey(keyid));
-        keyAgreement.doPhase(publicKey, true);
+        keyAgreement.doPhase(mode == DECRYPT_MODE ? senderPubKey : publicKey, true);
 
         byte[] secret = keyAgreement.generateSecret();
+        record(MetricsListener.Stage.KEY_AGREEMENT, start);
         byte[] context = concat(labels.get(keyid).getBytes(UTF_8), new byte[1], lengthPrefix(publicKey), lengthPrefix(senderPubKey));
 
         return new byte[][]{
@@ -370,6 +421,12 @@ public class HttpEce {
         };
     }
 
+    private void record(MetricsListener.Stage stage, long start) {
+        if (metricsListener != MetricsListener.NONE) {
+            metricsListener.onStage(stage, System.nanoTime() - start);
+        }
+    }
+
     /**
      * Get the public key for the given keyid.
      *
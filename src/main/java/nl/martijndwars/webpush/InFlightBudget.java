@@ -0,0 +1,150 @@
+package nl.martijndwars.webpush;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A global budget on the number of requests, and the number of encrypted bytes, that are outstanding at once.
+ * <p>
+ * Every notification reserves its request size when it is accepted and gives it back when its last attempt completes.
+ * When the budget is exhausted, the notification either waits (without blocking a thread) until enough is released,
+ * or is rejected immediately with a {@link RejectedExecutionException}, depending on the {@link OverflowPolicy}.
+ */
+public class InFlightBudget {
+    public enum OverflowPolicy {
+        /**
+         * Wait asynchronously until the budget has room.
+         */
+        WAIT,
+
+        /**
+         * Reject the notification immediately.
+         */
+        FAIL
+    }
+
+    private final long maxBytes;
+    private final int maxRequests;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ArrayDeque<Reservation> waiting = new ArrayDeque<>();
+    private long bytes;
+    private int requests;
+
+    public InFlightBudget(long maxBytes, int maxRequests, OverflowPolicy overflowPolicy) {
+        if (maxBytes <= 0 || maxRequests <= 0) {
+            throw new IllegalArgumentException("The budget must be positive, " + maxBytes + " bytes and " + maxRequests + " requests given.");
+        }
+
+        this.maxBytes = maxBytes;
+        this.maxRequests = maxRequests;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Reserve room for a single request of the given size.
+     * <p>
+     * A request larger than the whole byte budget is admitted once nothing else is in flight.
+     *
+     * @param size The size of the request in bytes.
+     * @return A future that completes once the room is reserved.
+     */
+    public CompletableFuture<Void> acquire(long size) {
+        synchronized (this) {
+            if (waiting.isEmpty() && fits(size)) {
+                bytes += size;
+                requests++;
+
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if (overflowPolicy == OverflowPolicy.FAIL) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("In-flight budget exhausted: " + requests + " requests and " + bytes + " bytes in flight."));
+            }
+
+            Reservation reservation = new Reservation(size);
+            waiting.add(reservation);
+
+            return reservation.future;
+        }
+    }
+
+    /**
+     * Give back the room reserved for a request of the given size.
+     *
+     * @param size
+     */
+    public void release(long size) {
+        ArrayDeque<Reservation> admitted = new ArrayDeque<>();
+
+        synchronized (this) {
+            bytes -= size;
+            requests--;
+
+            while (!waiting.isEmpty() && fits(waiting.peek().size)) {
+                Reservation reservation = waiting.poll();
+                bytes += reservation.size;
+                requests++;
+                admitted.add(reservation);
+            }
+        }
+
+        // Complete outside the lock, since completing the future runs its dependents
+        for (Reservation reservation : admitted) {
+            reservation.future.complete(null);
+        }
+    }
+
+    /**
+     * Get the number of encrypted bytes currently in flight.
+     *
+     * @return
+     */
+    public synchronized long getBytesInFlight() {
+        return bytes;
+    }
+
+    /**
+     * Get the number of requests currently in flight.
+     *
+     * @return
+     */
+    public synchronized int getRequestsInFlight() {
+        return requests;
+    }
+
+    /**
+     * Get the number of notifications waiting for room in the budget.
+     *
+     * @return
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    private boolean fits(long size) {
+        if (requests == 0) {
+            return true;
+        }
+
+        return requests < maxRequests && bytes + size <= maxBytes;
+    }
+
+    private static class Reservation {
+        private final long size;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Reservation(long size) {
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package nl.martijndwars.webpush;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MetricsListener} that keeps a {@link LatencyHistogram} per stage and counts the status codes of the
+ * responses per origin. Take a {@link #snapshot()} to export them, for example on a timer to a monitoring system.
+ */
+public class InMemoryMetrics implements MetricsListener {
+    private final EnumMap<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, LongAdder>> responses = new ConcurrentHashMap<>();
+
+    public InMemoryMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void onStage(Stage stage, long duration) {
+        stages.get(stage).record(duration);
+    }
+
+    @Override
+    public void onResponse(String origin, int statusCode) {
+        responses.computeIfAbsent(origin, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(statusCode, key -> new LongAdder())
+                .increment();
+    }
+
+    public Snapshot snapshot() {
+        EnumMap<Stage, LatencyHistogram.Snapshot> stageSnapshots = new EnumMap<>(Stage.class);
+        stages.forEach((stage, histogram) -> stageSnapshots.put(stage, histogram.snapshot()));
+
+        Map<String, Map<Integer, Long>> responseCounts = new TreeMap<>();
+        responses.forEach((origin, counts) -> {
+            Map<Integer, Long> statusCounts = new TreeMap<>();
+            counts.forEach((statusCode, count) -> statusCounts.put(statusCode, count.sum()));
+            responseCounts.put(origin, Collections.unmodifiableMap(statusCounts));
+        });
+
+        return new Snapshot(stageSnapshots, Collections.unmodifiableMap(responseCounts));
+    }
+
+    /**
+     * The metrics at a point in time.
+     */
+    public static class Snapshot {
+        private final Map<Stage, LatencyHistogram.Snapshot> stages;
+        private final Map<String, Map<Integer, Long>> responses;
+
+        private Snapshot(Map<Stage, LatencyHistogram.Snapshot> stages, Map<String, Map<Integer, Long>> responses) {
+            this.stages = stages;
+            this.responses = responses;
+        }
+
+        public LatencyHistogram.Snapshot getStage(Stage stage) {
+            return stages.get(stage);
+        }
+
+        /**
+         * Get the number of responses per status code, per origin. Requests that failed without a response are
+         * counted under status code 0.
+         *
+         * @return
+         */
+        public Map<String, Map<Integer, Long>> getResponses() {
+            return responses;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+
+            stages.forEach((stage, histogram) -> builder.append(stage).append(": ").append(histogram).append('\n'));
+            responses.forEach((origin, counts) -> builder.append(origin).append(": ").append(counts).append('\n'));
+
+            return builder.toString();
+        }
+    }
+}
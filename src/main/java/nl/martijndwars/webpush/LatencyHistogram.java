@@ -0,0 +1,161 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Durations are counted in log-linear buckets: each power of two is split into {@value #SUB_BUCKETS} buckets of equal
+ * width, so a recorded duration is reported with an error of at most 12.5%. Recording is a single atomic increment in
+ * a fixed array, which never allocates. A snapshot is a copy of the counts; it is consistent per bucket, not across
+ * buckets, which is good enough for monitoring.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Durations below {@code SUB_BUCKETS} get a bucket each, after that every power of two gets {@code SUB_BUCKETS}
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param duration The duration in nanoseconds. Negative durations are recorded as 0.
+     */
+    public void record(long duration) {
+        if (duration < 0) {
+            duration = 0;
+        }
+
+        counts.getAndIncrement(bucket(duration));
+        sum.add(duration);
+
+        long current;
+        while (duration > (current = max.get()) && !max.compareAndSet(current, duration)) {
+            // Retry until this duration is stored or a larger one is
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+
+        return new Snapshot(copy, sum.sum(), max.get());
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        // The position of the highest bit, and the next SUB_BUCKET_BITS bits below it
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+
+        return (exponent + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Get the largest value that falls into the given bucket.
+     *
+     * @param bucket
+     * @return
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << exponent;
+
+        return lower + (1L << exponent) - 1;
+    }
+
+    /**
+     * The counts of a histogram at a point in time.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+
+            for (long c : counts) {
+                count += c;
+            }
+
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the mean duration in nanoseconds, or 0 if nothing was recorded.
+         *
+         * @return
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Get the duration (in nanoseconds) below which the given share of the recorded durations falls. The result
+         * is the upper bound of a bucket, and never more than the largest recorded duration.
+         *
+         * @param quantile A number between 0 and 1, such as 0.99.
+         * @return
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException("Expected a quantile between 0 and 1, " + quantile + " given.");
+            }
+
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + (long) getMean() + "ns, p50=" + getValueAtQuantile(0.5)
+                    + "ns, p99=" + getValueAtQuantile(0.99) + "ns, max=" + max + "ns";
+        }
+    }
+}
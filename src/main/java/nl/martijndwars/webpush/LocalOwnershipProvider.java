@@ -0,0 +1,154 @@
+package nl.martijndwars.webpush;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Assigns partitions to the nodes in this process, for instance to run several {@link PartitionedDispatcher}s on one
+ * machine, or to test partitioned sending without a coordination service.
+ * <p>
+ * Partitions are assigned by rendezvous hashing: every partition goes to the node with the highest hash of node and
+ * partition. When a node joins or leaves, only the partitions it gains or loses move. Rebalances run one at a time;
+ * each one first revokes the moving partitions from their old owners, waits for those to drain, and then assigns them
+ * to their new owners.
+ */
+public class LocalOwnershipProvider implements PartitionedDispatcher.OwnershipProvider {
+    private final Map<String, PartitionedDispatcher.Member> members = new LinkedHashMap<>();
+    private final Map<PartitionedDispatcher.Member, BitSet> assignments = new HashMap<>();
+
+    private CompletableFuture<Void> rebalance = CompletableFuture.completedFuture(null);
+
+    @Override
+    public synchronized CompletableFuture<Void> join(PartitionedDispatcher.Member member) {
+        PartitionedDispatcher.Member any = members.values().stream().findAny().orElse(member);
+
+        if (any.getPartitionCount() != member.getPartitionCount()) {
+            throw new IllegalArgumentException("Every node must have " + any.getPartitionCount() + " partitions, " + member.getNodeId() + " has " + member.getPartitionCount() + ".");
+        }
+
+        if (members.putIfAbsent(member.getNodeId(), member) != null) {
+            throw new IllegalArgumentException("A node with id " + member.getNodeId() + " already joined.");
+        }
+
+        return rebalance();
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> leave(PartitionedDispatcher.Member member) {
+        if (!members.remove(member.getNodeId(), member)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return rebalance();
+    }
+
+    /**
+     * Get the partitions currently assigned to the given node.
+     *
+     * @param nodeId
+     * @return
+     */
+    public synchronized BitSet getAssignment(String nodeId) {
+        PartitionedDispatcher.Member member = members.get(nodeId);
+        BitSet assignment = member == null ? null : assignments.get(member);
+
+        return assignment == null ? new BitSet() : (BitSet) assignment.clone();
+    }
+
+    /**
+     * Get the owner of a partition among the given nodes, by rendezvous hashing.
+     *
+     * @param nodeIds
+     * @param partition
+     * @return
+     */
+    public static String owner(Collection<String> nodeIds, int partition) {
+        String owner = null;
+        long best = 0;
+
+        for (String nodeId : nodeIds) {
+            long score = mix(PartitionedDispatcher.hash(nodeId) ^ partition * 0x9e3779b97f4a7c15L);
+
+            if (owner == null || Long.compareUnsigned(score, best) > 0) {
+                owner = nodeId;
+                best = score;
+            }
+        }
+
+        return owner;
+    }
+
+    /**
+     * Queue a rebalance behind the running one. Must be called while holding the lock.
+     */
+    private CompletableFuture<Void> rebalance() {
+        rebalance = rebalance.exceptionally(throwable -> null).thenCompose(ignored -> rebalanceNow());
+
+        return rebalance;
+    }
+
+    private CompletableFuture<Void> rebalanceNow() {
+        Map<PartitionedDispatcher.Member, BitSet> target = new HashMap<>();
+        Map<PartitionedDispatcher.Member, BitSet> current;
+
+        synchronized (this) {
+            for (PartitionedDispatcher.Member member : members.values()) {
+                target.put(member, new BitSet());
+            }
+
+            if (!members.isEmpty()) {
+                int partitions = members.values().iterator().next().getPartitionCount();
+
+                for (int partition = 0; partition < partitions; partition++) {
+                    target.get(members.get(owner(members.keySet(), partition))).set(partition);
+                }
+            }
+
+            current = new HashMap<>(assignments);
+        }
+
+        // Revoke first, including from members that left
+        List<CompletableFuture<Void>> drained = new ArrayList<>();
+
+        current.forEach((member, owned) -> {
+            BitSet revoked = (BitSet) owned.clone();
+            revoked.andNot(target.getOrDefault(member, new BitSet()));
+
+            if (!revoked.isEmpty()) {
+                drained.add(member.revoke(revoked));
+            }
+        });
+
+        return CompletableFuture.allOf(drained.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            target.forEach((member, owned) -> {
+                BitSet assigned = (BitSet) owned.clone();
+                assigned.andNot(current.getOrDefault(member, new BitSet()));
+
+                if (!assigned.isEmpty()) {
+                    member.assign(assigned);
+                }
+            });
+
+            synchronized (this) {
+                assignments.clear();
+                assignments.putAll(target);
+            }
+        });
+    }
+
+    /**
+     * The finalizer of SplitMix64, which spreads the bits of the combined hash.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+
+        return value ^ (value >>> 31);
+    }
+}
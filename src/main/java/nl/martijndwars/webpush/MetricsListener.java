@@ -0,0 +1,77 @@
+package nl.martijndwars.webpush;
+
+/**
+ * Receives the timings of the stages of sending a notification and the responses of the push services. Register one
+ * with {@link AbstractPushService#setMetricsListener(MetricsListener)}; {@link InMemoryMetrics} keeps them in
+ * histograms that can be exported as a snapshot.
+ * <p>
+ * Listeners are called on the sending threads, often on the hot path, so they must be thread-safe and must not
+ * block. Without a listener, the stages are not timed at all.
+ */
+public interface MetricsListener {
+    /**
+     * A listener that ignores everything. The services skip their timing code when this is the listener.
+     */
+    MetricsListener NONE = new MetricsListener() {
+        @Override
+        public void onStage(Stage stage, long duration) {
+        }
+
+        @Override
+        public void onResponse(String origin, int statusCode) {
+        }
+    };
+
+    enum Stage {
+        /**
+         * Generating the local key pair of a message
+         */
+        KEY_GENERATION,
+
+        /**
+         * The ECDH key agreement between the local key pair and the user agent's key
+         */
+        KEY_AGREEMENT,
+
+        /**
+         * Deriving the content encryption key and nonce with HKDF
+         */
+        KEY_DERIVATION,
+
+        /**
+         * Encrypting the payload with AES-GCM
+         */
+        ENCRYPTION,
+
+        /**
+         * Signing the VAPID token
+         */
+        SIGNING,
+
+        /**
+         * Waiting for admission (limiters, budgets and schedulers) before the notification is prepared
+         */
+        QUEUEING,
+
+        /**
+         * A single HTTP request to the push service, until its response arrives
+         */
+        ROUND_TRIP
+    }
+
+    /**
+     * Record the duration of a stage.
+     *
+     * @param stage
+     * @param duration The duration in nanoseconds.
+     */
+    void onStage(Stage stage, long duration);
+
+    /**
+     * Record the response of a push service to a single request.
+     *
+     * @param origin
+     * @param statusCode The status code, or 0 if the request failed without a response.
+     */
+    void onResponse(String origin, int statusCode);
+}
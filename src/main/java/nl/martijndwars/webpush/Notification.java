@@ -2,12 +2,14 @@ package nl.martijndwars.webpush;
 
 import org.bouncycastle.jce.interfaces.ECPublicKey;
 
-import java.net.URI;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Base64;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -17,6 +19,11 @@ public class Notification {
      */
     private final String endpoint;
 
+    /**
+     * The endpoint, parsed when it is first needed
+     */
+    private volatile Endpoint parsedEndpoint;
+
     /**
      * The client's public key
      */
@@ -53,10 +60,26 @@ public class Notification {
      */
     private final int ttl;
 
+    /**
+     * Point in time after which the notification is no longer worth sending. When left as null, the deadline is
+     * derived from the TTL.
+     */
+    private final Instant deadline;
+
+    /**
+     * When the notification was accepted for sending (in terms of {@link System#nanoTime()})
+     */
+    private volatile long enqueuedAt;
+
+    /**
+     * When the notification expires (in terms of {@link System#nanoTime()})
+     */
+    private volatile long expiresAt = Long.MAX_VALUE;
+
     private static final int ONE_DAY_DURATION_IN_SECONDS = 86400;
     private static final int DEFAULT_TTL = 28 * ONE_DAY_DURATION_IN_SECONDS;
 
-    public Notification(String endpoint, ECPublicKey userPublicKey, byte[] userAuth, byte[] payload, int ttl, Urgency urgency, String topic) {
+    public Notification(String endpoint, ECPublicKey userPublicKey, byte[] userAuth, byte[] payload, int ttl, Urgency urgency, String topic, Instant deadline) {
         this.endpoint = endpoint;
         this.userPublicKey = userPublicKey;
         this.userAuth = userAuth;
@@ -64,6 +87,11 @@ public class Notification {
         this.ttl = ttl;
         this.urgency = urgency;
         this.topic = topic;
+        this.deadline = deadline;
+    }
+
+    public Notification(String endpoint, ECPublicKey userPublicKey, byte[] userAuth, byte[] payload, int ttl, Urgency urgency, String topic) {
+        this(endpoint, userPublicKey, userAuth, payload, ttl, urgency, topic, null);
     }
 
     public Notification(String endpoint, PublicKey userPublicKey, byte[] userAuth, byte[] payload, int ttl) {
@@ -104,6 +132,22 @@ public class Notification {
         return endpoint;
     }
 
+    /**
+     * Get the endpoint with its origin, vendor and URI, which are computed only once.
+     *
+     * @return
+     */
+    public Endpoint getParsedEndpoint() {
+        Endpoint parsed = parsedEndpoint;
+
+        if (parsed == null) {
+            // Racing threads parse the same value, so there is no need to lock
+            parsedEndpoint = parsed = Endpoint.of(endpoint);
+        }
+
+        return parsed;
+    }
+
     public ECPublicKey getUserPublicKey() {
         return userPublicKey;
     }
@@ -134,11 +178,20 @@ public class Notification {
      * @return
      */
     public boolean isGcm() {
-        return getEndpoint().indexOf("https://android.googleapis.com/gcm/send") == 0;
+        return getVendor() == PushVendor.GCM;
     }
 
     public boolean isFcm() {
-        return getEndpoint().indexOf("https://fcm.googleapis.com/fcm/send") == 0;
+        return getVendor() == PushVendor.FCM;
+    }
+
+    /**
+     * Get the vendor of the push service, as recognized by the default {@link VendorRegistry}.
+     *
+     * @return
+     */
+    public PushVendor getVendor() {
+        return getParsedEndpoint().getVendor();
     }
 
     public int getTTL() {
@@ -153,10 +206,68 @@ public class Notification {
         return topic;
     }
 
-    public String getOrigin() {
-        var url = URI.create(getEndpoint());
+    public Instant getDeadline() {
+        return deadline;
+    }
 
-        return url.getScheme() + "://" + url.getHost();
+    /**
+     * Stamp the notification with the time it was accepted for sending, and compute when it expires: at the explicit
+     * deadline if there is one, otherwise when its TTL has passed. A TTL of 0 asks the push service to deliver
+     * immediately or not at all, so on its own it does not make the notification expire locally.
+     *
+     * @param now The current time in terms of {@link System#nanoTime()}.
+     */
+    void stamp(long now) {
+        enqueuedAt = now;
+
+        if (deadline != null) {
+            expiresAt = now + Duration.between(Instant.now(), deadline).toNanos();
+        } else if (ttl > 0) {
+            expiresAt = now + TimeUnit.SECONDS.toNanos(ttl);
+        } else {
+            expiresAt = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Get the time the notification was accepted for sending, in terms of {@link System#nanoTime()}.
+     *
+     * @return
+     */
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    /**
+     * Get the time the notification expires, in terms of {@link System#nanoTime()}, or {@link Long#MAX_VALUE} if it
+     * does not expire.
+     *
+     * @return
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Check if the notification's deadline has passed. A notification that was never accepted for sending only
+     * expires through its explicit deadline.
+     *
+     * @return
+     */
+    public boolean isExpired() {
+        if (expiresAt == Long.MAX_VALUE && deadline != null) {
+            return !Instant.now().isBefore(deadline);
+        }
+
+        return isExpired(System.nanoTime());
+    }
+
+    boolean isExpired(long now) {
+        return expiresAt != Long.MAX_VALUE && now - expiresAt >= 0;
+    }
+
+    public String getOrigin() {
+        return getParsedEndpoint().getOrigin();
     }
 
     public static NotificationBuilder builder() {
@@ -165,22 +276,40 @@ public class Notification {
 
     public static class NotificationBuilder {
         private String endpoint = null;
+        private Endpoint parsedEndpoint = null;
         private ECPublicKey userPublicKey = null;
         private byte[] userAuth = null;
         private byte[] payload = null;
         private int ttl = DEFAULT_TTL;
         private Urgency urgency = null;
         private String topic = null;
+        private Instant deadline = null;
 
         private NotificationBuilder() {
         }
 
         public Notification build() {
-            return new Notification(endpoint, userPublicKey, userAuth, payload, ttl, urgency, topic);
+            Notification notification = new Notification(endpoint, userPublicKey, userAuth, payload, ttl, urgency, topic, deadline);
+            notification.parsedEndpoint = parsedEndpoint;
+
+            return notification;
         }
 
         public NotificationBuilder endpoint(String endpoint) {
             this.endpoint = endpoint;
+            this.parsedEndpoint = null;
+            return this;
+        }
+
+        /**
+         * Use an endpoint that was parsed before, so it is not parsed again for this notification.
+         *
+         * @param endpoint
+         * @return
+         */
+        public NotificationBuilder endpoint(Endpoint endpoint) {
+            this.endpoint = endpoint.getUrl();
+            this.parsedEndpoint = endpoint;
             return this;
         }
 
@@ -233,6 +362,11 @@ public class Notification {
             this.topic = topic;
             return this;
         }
+
+        public NotificationBuilder deadline(Instant deadline) {
+            this.deadline = deadline;
+            return this;
+        }
     }
 
 }
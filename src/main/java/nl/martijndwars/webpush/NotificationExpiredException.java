@@ -0,0 +1,19 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a notification is dropped because its deadline passed while it was waiting to be sent.
+ */
+public class NotificationExpiredException extends RejectedExecutionException {
+    private final Notification notification;
+
+    public NotificationExpiredException(Notification notification) {
+        super("The notification for " + notification.getEndpoint() + " expired before it could be sent.");
+        this.notification = notification;
+    }
+
+    public Notification getNotification() {
+        return notification;
+    }
+}
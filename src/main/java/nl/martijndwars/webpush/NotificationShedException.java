@@ -0,0 +1,19 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a low-urgency notification is dropped because the dispatch queue is overloaded.
+ */
+public class NotificationShedException extends RejectedExecutionException {
+    private final Notification notification;
+
+    public NotificationShedException(Notification notification) {
+        super("The notification for " + notification.getEndpoint() + " was shed because the dispatch queue is overloaded.");
+        this.notification = notification;
+    }
+
+    public Notification getNotification() {
+        return notification;
+    }
+}
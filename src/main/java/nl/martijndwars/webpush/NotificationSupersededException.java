@@ -0,0 +1,22 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a queued notification is replaced by a newer notification with the same endpoint and topic before it
+ * was sent.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8030#section-5.4">Replacing Push Messages</a>
+ */
+public class NotificationSupersededException extends RejectedExecutionException {
+    private final Notification notification;
+
+    public NotificationSupersededException(Notification notification) {
+        super("The notification for " + notification.getEndpoint() + " with topic " + notification.getTopic() + " was replaced by a newer one.");
+        this.notification = notification;
+    }
+
+    public Notification getNotification() {
+        return notification;
+    }
+}
@@ -0,0 +1,662 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * A local, crash-safe journal of notifications that were accepted but not yet delivered.
+ * <p>
+ * The outbox is a directory of fixed-size, memory-mapped segment files. Every accepted notification is appended as a
+ * record with a sequence number; once its outcome is known, an acknowledgement record for that number is appended.
+ * Appending is a copy into mapped memory, so records survive a crash of the JVM as soon as they are appended. They
+ * survive a crash of the operating system once they are forced to disk, which happens in batches: every sync interval,
+ * after every so many appends, and whenever a segment is full.
+ * <p>
+ * When the outbox is opened, the segments are scanned and the notifications that were never acknowledged are kept
+ * for replay. Segments are deleted once they are no longer the active segment and everything in them, and in every
+ * older segment, has been acknowledged.
+ * <p>
+ * Each record is laid out as a 4-byte length, a 4-byte CRC32C checksum, a type byte and the body. The length is
+ * written last, so a record that was cut off by a crash reads as the end of the segment.
+ */
+public class Outbox implements Closeable {
+    private static final byte NOTIFICATION = 1;
+    private static final byte ACK = 2;
+    private static final int HEADER_SIZE = 9;
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final int syncEvery;
+
+    /**
+     * Segments by the first sequence number that may be stored in them
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final List<Entry> recovered = new ArrayList<>();
+
+    private Segment active;
+    private long nextId;
+    private long pending;
+    private int unsynced;
+    private boolean closed;
+
+    private final Thread syncer;
+
+    private Outbox(Path directory, int segmentSize, Duration syncInterval, int syncEvery) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval.toNanos();
+        this.syncEvery = syncEvery;
+
+        Files.createDirectories(directory);
+        recover();
+
+        if (this.syncInterval > 0) {
+            syncer = new Thread(this::runSyncer, "webpush-outbox-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Append a notification to the outbox.
+     *
+     * @param notification
+     * @param encoding
+     * @return The sequence number, which is used to acknowledge the notification.
+     * @throws IOException
+     */
+    public long append(Notification notification, Encoding encoding) throws IOException {
+        // Encode outside the lock; only the copy into the segment is serialised
+        byte[] body = encode(notification, encoding);
+        boolean sync;
+        long id;
+
+        synchronized (this) {
+            ensureOpen();
+
+            id = nextId++;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 8);
+            new DataOutputStream(bytes).writeLong(id);
+            bytes.write(body);
+
+            write(NOTIFICATION, bytes.toByteArray());
+            active.appended(id);
+            pending++;
+
+            sync = syncEvery > 0 && ++unsynced >= syncEvery;
+        }
+
+        if (sync) {
+            if (syncer != null) {
+                LockSupport.unpark(syncer);
+            } else {
+                sync();
+            }
+        }
+
+        return id;
+    }
+
+    /**
+     * Mark a notification as handled, so it is not replayed. Acknowledging a sequence number more than once has no
+     * effect.
+     *
+     * @param id
+     */
+    public void acknowledge(long id) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            Map.Entry<Long, Segment> entry = segments.floorEntry(id);
+
+            if (entry == null || !entry.getValue().acknowledge(id)) {
+                return;
+            }
+
+            try {
+                write(ACK, toBytes(id));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            pending--;
+            deleteAcknowledgedSegments();
+        }
+    }
+
+    /**
+     * Take the notifications that were not acknowledged when the outbox was last closed. They should be sent again
+     * and acknowledged under their original sequence number. Returns an empty list once they have been taken.
+     *
+     * @return
+     */
+    public synchronized List<Entry> takeRecovered() {
+        List<Entry> entries = new ArrayList<>(recovered);
+        recovered.clear();
+
+        return entries;
+    }
+
+    /**
+     * Force all appended records to disk.
+     */
+    public void sync() {
+        Segment segment;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            unsynced = 0;
+            segment = active;
+        }
+
+        // Forcing can take a while, and appends may continue meanwhile. Full segments were forced when they rolled over
+        segment.buffer.force();
+    }
+
+    /**
+     * Get the number of notifications that were appended, but not yet acknowledged.
+     *
+     * @return
+     */
+    public synchronized long getPending() {
+        return pending;
+    }
+
+    /**
+     * Get the number of segment files.
+     *
+     * @return
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+
+        if (syncer != null) {
+            LockSupport.unpark(syncer);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The outbox is closed.");
+        }
+    }
+
+    /**
+     * Write a record to the active segment, rolling over to a new segment when it does not fit. Must be called while
+     * holding the lock.
+     */
+    private void write(byte type, byte[] body) throws IOException {
+        int length = body.length + 1;
+
+        if (HEADER_SIZE + body.length > segmentSize) {
+            throw new IllegalArgumentException("A record of " + length + " bytes does not fit in a segment of " + segmentSize + " bytes.");
+        }
+
+        if (active.position + HEADER_SIZE + body.length > segmentSize) {
+            active.buffer.force();
+
+            // A segment starts at the sequence number of its first notification; a segment that starts with an
+            // acknowledgement reserves a sequence number, so segment names stay unique
+            active = openSegment(type == NOTIFICATION ? nextId - 1 : nextId++);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(body);
+
+        MappedByteBuffer buffer = active.buffer;
+        int position = active.position;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.put(position + 8, type);
+        buffer.put(position + HEADER_SIZE, body);
+
+        // Written last, so the record only becomes visible once it is complete
+        buffer.putInt(position, length);
+        active.position = position + HEADER_SIZE + body.length;
+    }
+
+    /**
+     * Delete the oldest segments, as long as everything in them has been acknowledged. Segments are only deleted
+     * oldest first, since a newer segment may hold acknowledgements for records in an older one.
+     */
+    private void deleteAcknowledgedSegments() {
+        Iterator<Segment> iterator = segments.values().iterator();
+
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+
+            if (segment == active || segment.unacknowledged > 0) {
+                return;
+            }
+
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                // Deleted on the next open instead
+                return;
+            }
+
+            iterator.remove();
+        }
+    }
+
+    private Segment openSegment(long firstId) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", firstId, SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(path, firstId, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        segments.put(firstId, segment);
+
+        return segment;
+    }
+
+    /**
+     * Scan the existing segments, and collect the notifications that were never acknowledged.
+     */
+    private void recover() throws IOException {
+        List<Path> paths;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+
+        LinkedHashMap<Long, byte[]> unacknowledged = new LinkedHashMap<>();
+        List<Long> acknowledgements = new ArrayList<>();
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            active = openSegment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            nextId = Math.max(nextId, active.firstId);
+
+            MappedByteBuffer buffer = active.buffer;
+            int position = 0;
+
+            while (position + HEADER_SIZE <= segmentSize) {
+                int length = buffer.getInt(position);
+
+                if (length <= 0 || position + 8 + length > segmentSize) {
+                    break;
+                }
+
+                byte[] record = new byte[length];
+                buffer.get(position + 8, record);
+
+                CRC32C crc = new CRC32C();
+                crc.update(record);
+
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+
+                long id = toLong(record);
+
+                if (record[0] == NOTIFICATION) {
+                    unacknowledged.put(id, record);
+                    active.appended(id);
+                    nextId = Math.max(nextId, id + 1);
+                } else if (record[0] == ACK) {
+                    unacknowledged.remove(id);
+                    acknowledgements.add(id);
+                }
+
+                position += 8 + length;
+            }
+
+            active.position = position;
+        }
+
+        if (active != null) {
+            // Clear whatever follows the last complete record, so a torn record is never mistaken for a new one
+            byte[] zeroes = new byte[Math.min(65536, segmentSize)];
+
+            for (int position = active.position; position < segmentSize; position += zeroes.length) {
+                active.buffer.put(position, zeroes, 0, Math.min(zeroes.length, segmentSize - position));
+            }
+        }
+
+        if (active == null) {
+            active = openSegment(0);
+        }
+
+        for (long id : acknowledgements) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(id);
+
+            if (entry != null) {
+                entry.getValue().acknowledge(id);
+            }
+        }
+
+        pending = unacknowledged.size();
+
+        for (Map.Entry<Long, byte[]> entry : unacknowledged.entrySet()) {
+            recovered.add(decode(entry.getKey(), entry.getValue()));
+        }
+
+        deleteAcknowledgedSegments();
+    }
+
+    private void runSyncer() {
+        while (true) {
+            LockSupport.parkNanos(this, syncInterval);
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+
+            sync();
+        }
+    }
+
+    private static byte[] encode(Notification notification, Encoding encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (notification.hasPayload() ? notification.getPayload().length : 0));
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(System.currentTimeMillis());
+        out.writeByte(encoding.ordinal());
+        out.writeUTF(notification.getEndpoint());
+        writeBytes(out, notification.getUserPublicKey() != null ? Utils.encode(notification.getUserPublicKey()) : null);
+        writeBytes(out, notification.getUserAuth());
+        writeBytes(out, notification.getPayload());
+        out.writeInt(notification.getTTL());
+        out.writeByte(notification.hasUrgency() ? notification.getUrgency().ordinal() : -1);
+        out.writeBoolean(notification.hasTopic());
+
+        if (notification.hasTopic()) {
+            out.writeUTF(notification.getTopic());
+        }
+
+        out.writeLong(notification.getDeadline() != null ? notification.getDeadline().toEpochMilli() : Long.MIN_VALUE);
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a notification record. The TTL of the notification is reduced by the time it spent in the outbox; an
+     * entry whose TTL ran out or whose deadline passed meanwhile is marked as expired.
+     */
+    private static Entry decode(long id, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 9, record.length - 9));
+
+        long appendedAt = in.readLong();
+        Encoding encoding = Encoding.values()[in.readByte()];
+        String endpoint = in.readUTF();
+        byte[] userPublicKey = readBytes(in);
+        byte[] userAuth = readBytes(in);
+        byte[] payload = readBytes(in);
+        int ttl = in.readInt();
+        byte urgency = in.readByte();
+        String topic = in.readBoolean() ? in.readUTF() : null;
+        long deadline = in.readLong();
+
+        long now = System.currentTimeMillis();
+        boolean expired = deadline != Long.MIN_VALUE && now >= deadline;
+
+        if (ttl > 0) {
+            long remaining = ttl * 1000L - Math.max(0, now - appendedAt);
+            expired |= remaining <= 0;
+            ttl = (int) Math.max(0, (remaining + 999) / 1000);
+        }
+
+        try {
+            return new Entry(id, encoding, expired, new Notification(
+                    endpoint,
+                    userPublicKey != null ? (ECPublicKey) Utils.loadPublicKey(userPublicKey) : null,
+                    userAuth,
+                    payload,
+                    ttl,
+                    urgency >= 0 ? Urgency.values()[urgency] : null,
+                    topic,
+                    deadline != Long.MIN_VALUE ? Instant.ofEpochMilli(deadline) : null
+            ), Instant.ofEpochMilli(appendedAt));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot decode the user public key of outbox entry " + id + ".", e);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return bytes;
+    }
+
+    private static byte[] toBytes(long value) {
+        byte[] bytes = new byte[8];
+
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Read the sequence number that follows the type byte of a record.
+     */
+    private static long toLong(byte[] record) {
+        long value = 0;
+
+        for (int i = 1; i <= 8; i++) {
+            value = (value << 8) | (record[i] & 0xFF);
+        }
+
+        return value;
+    }
+
+    /**
+     * A notification that was recovered from the outbox.
+     */
+    public static class Entry {
+        private final long id;
+        private final Encoding encoding;
+        private final boolean expired;
+        private final Notification notification;
+        private final Instant appendedAt;
+
+        private Entry(long id, Encoding encoding, boolean expired, Notification notification, Instant appendedAt) {
+            this.id = id;
+            this.encoding = encoding;
+            this.expired = expired;
+            this.notification = notification;
+            this.appendedAt = appendedAt;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Encoding getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * Check if the TTL of the notification ran out, or its deadline passed, before it was recovered.
+         *
+         * @return
+         */
+        public boolean isExpired() {
+            return expired;
+        }
+
+        public Notification getNotification() {
+            return notification;
+        }
+
+        public Instant getAppendedAt() {
+            return appendedAt;
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final long firstId;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        /**
+         * The notifications in this segment that have been acknowledged, by their offset from firstId
+         */
+        private final BitSet acknowledged = new BitSet();
+        private final BitSet appended = new BitSet();
+        private int unacknowledged;
+        private int position;
+
+        private Segment(Path path, long firstId, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.firstId = firstId;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void appended(long id) {
+            appended.set((int) (id - firstId));
+            unacknowledged++;
+        }
+
+        boolean acknowledge(long id) {
+            int offset = (int) (id - firstId);
+
+            if (!appended.get(offset) || acknowledged.get(offset)) {
+                return false;
+            }
+
+            acknowledged.set(offset);
+            unacknowledged--;
+
+            return true;
+        }
+    }
+
+    public static Builder builder(Path directory) {
+        return new Builder(directory);
+    }
+
+    public static class Builder {
+        private final Path directory;
+        private int segmentSize = 64 * 1024 * 1024;
+        private Duration syncInterval = Duration.ofSeconds(1);
+        private int syncEvery = 0;
+
+        private Builder(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Open the outbox, and recover the notifications that were not acknowledged.
+         *
+         * @return
+         * @throws IOException
+         */
+        public Outbox open() throws IOException {
+            return new Outbox(directory, segmentSize, syncInterval, syncEvery);
+        }
+
+        /**
+         * The size of a segment file in bytes.
+         *
+         * @param segmentSize
+         * @return
+         */
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize < 4096) {
+                throw new IllegalArgumentException("A segment must be at least 4096 bytes, " + segmentSize + " given.");
+            }
+
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * How often appended records are forced to disk. With a zero interval, records are only forced when
+         * {@link #syncEvery(int)} says so, when a segment is full, or when {@link Outbox#sync()} is called.
+         *
+         * @param syncInterval
+         * @return
+         */
+        public Builder syncInterval(Duration syncInterval) {
+            this.syncInterval = syncInterval;
+            return this;
+        }
+
+        /**
+         * Also force records to disk after every given number of appends. Zero disables this.
+         *
+         * @param syncEvery
+         * @return
+         */
+        public Builder syncEvery(int syncEvery) {
+            this.syncEvery = Math.max(0, syncEvery);
+            return this;
+        }
+    }
+}
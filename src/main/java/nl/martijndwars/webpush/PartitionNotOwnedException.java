@@ -0,0 +1,25 @@
+package nl.martijndwars.webpush;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a notification is rejected because its endpoint belongs to a partition that another node owns.
+ */
+public class PartitionNotOwnedException extends RejectedExecutionException {
+    private final Notification notification;
+    private final int partition;
+
+    public PartitionNotOwnedException(Notification notification, int partition) {
+        super("The notification for " + notification.getEndpoint() + " was rejected because partition " + partition + " is not owned by this node.");
+        this.notification = notification;
+        this.partition = partition;
+    }
+
+    public Notification getNotification() {
+        return notification;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+}
@@ -0,0 +1,359 @@
+package nl.martijndwars.webpush;
+
+import org.jose4j.lang.JoseException;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads sending over several nodes by partitioning the endpoints.
+ * <p>
+ * Every endpoint hashes to one of a fixed number of partitions, the same on every node. Each node runs a dispatcher in
+ * front of its {@link PushAsyncService}, and only sends notifications whose partition it owns; the others are rejected
+ * with a {@link PartitionNotOwnedException}, or can be skipped up front with {@link #owns(String)}. So every node can
+ * walk the full list of subscribers, and each subscriber is sent to by exactly one node.
+ * <p>
+ * Which node owns which partition is decided by an {@link OwnershipProvider}, such as the
+ * {@link LocalOwnershipProvider} for nodes in the same process. When a partition moves, the provider first revokes it
+ * from its old owner, which stops taking notifications for it and waits for the ones in flight to complete, and only
+ * then assigns it to the new owner. So two nodes never send to the same partition at once.
+ */
+public class PartitionedDispatcher {
+    /**
+     * Decides which node owns which partition.
+     */
+    public interface OwnershipProvider {
+        /**
+         * Add a node. Partitions are revoked from and assigned to the member as ownership changes.
+         *
+         * @param member
+         * @return A future that completes once the member was assigned its partitions.
+         */
+        CompletableFuture<Void> join(Member member);
+
+        /**
+         * Remove a node, revoking its partitions.
+         *
+         * @param member
+         * @return A future that completes once the partitions of the member are owned by the remaining nodes.
+         */
+        CompletableFuture<Void> leave(Member member);
+    }
+
+    /**
+     * A node, as seen by the {@link OwnershipProvider}.
+     */
+    public interface Member {
+        String getNodeId();
+
+        int getPartitionCount();
+
+        /**
+         * Take ownership of the given partitions.
+         *
+         * @param partitions
+         */
+        void assign(BitSet partitions);
+
+        /**
+         * Give up the given partitions.
+         *
+         * @param partitions
+         * @return A future that completes once the notifications in flight for the partitions have completed.
+         */
+        CompletableFuture<Void> revoke(BitSet partitions);
+    }
+
+    private final PushAsyncService pushService;
+    private final String nodeId;
+    private final OwnershipProvider ownershipProvider;
+    private final Partition[] partitions;
+    private final Member member = new DispatcherMember();
+
+    private PartitionedDispatcher(PushAsyncService pushService, String nodeId, int partitionCount, OwnershipProvider ownershipProvider) {
+        this.pushService = pushService;
+        this.nodeId = nodeId;
+        this.ownershipProvider = ownershipProvider;
+        this.partitions = new Partition[partitionCount];
+
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * Join the ownership provider.
+     *
+     * @return A future that completes once this node was assigned its partitions.
+     */
+    public CompletableFuture<Void> start() {
+        return ownershipProvider.join(member);
+    }
+
+    /**
+     * Leave the ownership provider, handing the partitions of this node to the others.
+     *
+     * @return A future that completes once the notifications in flight have completed and the partitions were handed
+     * over.
+     */
+    public CompletableFuture<Void> stop() {
+        return ownershipProvider.leave(member);
+    }
+
+    /**
+     * Send a notification if its partition is owned by this node.
+     *
+     * @param notification
+     * @param encoding
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     * @throws JoseException
+     */
+    public CompletableFuture<HttpResponse<String>> send(Notification notification, Encoding encoding) throws GeneralSecurityException, IOException, JoseException {
+        int index = partition(notification.getEndpoint());
+        Partition partition = partitions[index];
+
+        if (!partition.acquire()) {
+            return CompletableFuture.failedFuture(new PartitionNotOwnedException(notification, index));
+        }
+
+        CompletableFuture<HttpResponse<String>> response;
+
+        try {
+            response = pushService.send(notification, encoding);
+        } catch (GeneralSecurityException | IOException | JoseException | RuntimeException e) {
+            partition.release();
+            throw e;
+        }
+
+        response.whenComplete((result, throwable) -> partition.release());
+
+        return response;
+    }
+
+    public CompletableFuture<HttpResponse<String>> send(Notification notification) throws GeneralSecurityException, IOException, JoseException {
+        return send(notification, Encoding.AES128GCM);
+    }
+
+    /**
+     * Get the partition of the given endpoint. This is the same on every node with the same number of partitions.
+     *
+     * @param endpoint
+     * @return
+     */
+    public int partition(String endpoint) {
+        return Math.floorMod(hash(endpoint), partitions.length);
+    }
+
+    /**
+     * The hash that endpoints are partitioned by, and that nodes are ranked by in {@link LocalOwnershipProvider}.
+     * Every node must agree on it, so it is fixed: 64-bit FNV-1a over the UTF-8 bytes of the value, followed by the
+     * finalizer of MurmurHash3 (fmix64). It must not change between releases, or nodes running different versions
+     * would send to the same endpoint at once.
+     *
+     * @param value
+     * @return
+     */
+    public static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    /**
+     * Check if the partition of the given endpoint is owned by this node, so notifications for other nodes can be
+     * skipped before they are built.
+     *
+     * @param endpoint
+     * @return
+     */
+    public boolean owns(String endpoint) {
+        return partitions[partition(endpoint)].owned;
+    }
+
+    /**
+     * Get the partitions owned by this node.
+     *
+     * @return
+     */
+    public BitSet getOwnedPartitions() {
+        BitSet owned = new BitSet(partitions.length);
+
+        for (int i = 0; i < partitions.length; i++) {
+            if (partitions[i].owned) {
+                owned.set(i);
+            }
+        }
+
+        return owned;
+    }
+
+    /**
+     * Get the number of notifications in flight, over all partitions.
+     *
+     * @return
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+
+        for (Partition partition : partitions) {
+            inFlight += partition.inFlight.get();
+        }
+
+        return inFlight;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    public PushAsyncService getPushService() {
+        return pushService;
+    }
+
+    private static class Partition {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean owned;
+        private volatile CompletableFuture<Void> drained = CompletableFuture.completedFuture(null);
+
+        /**
+         * Count a notification as in flight, unless the partition is not owned. Counting before checking makes sure a
+         * revocation either sees the notification or the notification sees the revocation.
+         */
+        boolean acquire() {
+            inFlight.incrementAndGet();
+
+            if (owned) {
+                return true;
+            }
+
+            release();
+            return false;
+        }
+
+        void release() {
+            if (inFlight.decrementAndGet() == 0 && !owned) {
+                drained.complete(null);
+            }
+        }
+
+        void assign() {
+            owned = true;
+        }
+
+        CompletableFuture<Void> revoke() {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            drained = future;
+            owned = false;
+
+            if (inFlight.get() == 0) {
+                future.complete(null);
+            }
+
+            return future;
+        }
+    }
+
+    private class DispatcherMember implements Member {
+        @Override
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        @Override
+        public int getPartitionCount() {
+            return partitions.length;
+        }
+
+        @Override
+        public void assign(BitSet assigned) {
+            assigned.stream().forEach(i -> partitions[i].assign());
+        }
+
+        @Override
+        public CompletableFuture<Void> revoke(BitSet revoked) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            revoked.stream().forEach(i -> futures.add(partitions[i].revoke()));
+
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        }
+    }
+
+    public static Builder builder(PushAsyncService pushService) {
+        return new Builder(pushService);
+    }
+
+    public static class Builder {
+        private final PushAsyncService pushService;
+        private String nodeId;
+        private int partitions = 256;
+        private OwnershipProvider ownershipProvider;
+
+        private Builder(PushAsyncService pushService) {
+            this.pushService = pushService;
+        }
+
+        public PartitionedDispatcher build() {
+            if (nodeId == null || ownershipProvider == null) {
+                throw new IllegalStateException("A node id and an ownership provider are required.");
+            }
+
+            return new PartitionedDispatcher(pushService, nodeId, partitions, ownershipProvider);
+        }
+
+        /**
+         * The id of this node, unique among the nodes of the ownership provider.
+         *
+         * @param nodeId
+         * @return
+         */
+        public Builder nodeId(String nodeId) {
+            this.nodeId = nodeId;
+            return this;
+        }
+
+        /**
+         * The number of partitions, which must be the same on every node. Use many more partitions than nodes, so
+         * they can be spread evenly.
+         *
+         * @param partitions
+         * @return
+         */
+        public Builder partitions(int partitions) {
+            if (partitions < 1) {
+                throw new IllegalArgumentException("There must be at least 1 partition, " + partitions + " given.");
+            }
+
+            this.partitions = partitions;
+            return this;
+        }
+
+        public Builder ownershipProvider(OwnershipProvider ownershipProvider) {
+            this.ownershipProvider = ownershipProvider;
+            return this;
+        }
+    }
+}
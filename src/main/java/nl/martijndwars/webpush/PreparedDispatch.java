@@ -0,0 +1,156 @@
+package nl.martijndwars.webpush;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Streams a file of prepared requests into a push service, reading ahead only as far as the in-flight limit allows.
+ * <p>
+ * If the file cannot be read to the end, reading stops, and the dispatch fails once the requests in flight have
+ * completed.
+ */
+class PreparedDispatch {
+    private final PushAsyncService pushService;
+    private final PreparedRequestFile.Reader reader;
+    private final int maxInFlight;
+    private final PreparedRequestFile.ResponseHandler handler;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private int inFlight;
+    private boolean exhausted;
+    private IOException failure;
+    private boolean pumping;
+    private boolean requested;
+
+    PreparedDispatch(PushAsyncService pushService, PreparedRequestFile.Reader reader, int maxInFlight, PreparedRequestFile.ResponseHandler handler) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least 1 request must be allowed in flight, " + maxInFlight + " given.");
+        }
+
+        this.pushService = pushService;
+        this.reader = reader;
+        this.maxInFlight = maxInFlight;
+        this.handler = handler;
+    }
+
+    CompletableFuture<Void> start() {
+        pump();
+
+        return done;
+    }
+
+    /**
+     * Read and send requests while there is room. Requests that complete right away ask for another round instead of
+     * recursing, so a long run of rejected requests does not grow the stack.
+     */
+    private void pump() {
+        synchronized (this) {
+            requested = true;
+
+            if (pumping) {
+                return;
+            }
+
+            pumping = true;
+        }
+
+        while (true) {
+            List<PreparedRequest> batch = new ArrayList<>();
+            boolean stop;
+            boolean finished;
+
+            synchronized (this) {
+                if (!requested) {
+                    pumping = false;
+                    stop = true;
+                    finished = exhausted && inFlight == 0;
+                } else {
+                    requested = false;
+                    stop = false;
+                    finished = false;
+
+                    while (!exhausted && inFlight < maxInFlight) {
+                        PreparedRequest request = read();
+
+                        if (request == null) {
+                            break;
+                        }
+
+                        inFlight++;
+                        batch.add(request);
+                    }
+                }
+            }
+
+            if (finished) {
+                close();
+
+                if (failure != null) {
+                    done.completeExceptionally(failure);
+                } else {
+                    done.complete(null);
+                }
+            }
+
+            if (stop) {
+                return;
+            }
+
+            for (PreparedRequest request : batch) {
+                pushService.sendPrepared(request).whenComplete((response, throwable) -> complete(request, response, throwable));
+            }
+        }
+    }
+
+    private void complete(PreparedRequest request, HttpResponse<String> response, Throwable throwable) {
+        try {
+            handler.onResponse(request, response, throwable != null ? unwrap(throwable) : null);
+        } finally {
+            synchronized (this) {
+                inFlight--;
+            }
+
+            pump();
+        }
+    }
+
+    /**
+     * Read the next request. Must be called while holding the lock.
+     */
+    private PreparedRequest read() {
+        try {
+            PreparedRequest request = reader.next();
+
+            if (request == null) {
+                exhausted = true;
+            }
+
+            return request;
+        } catch (IOException e) {
+            exhausted = true;
+            failure = e;
+
+            return null;
+        }
+    }
+
+    private void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            if (failure != null) {
+                failure.addSuppressed(e);
+            } else {
+                failure = e;
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+}
@@ -0,0 +1,115 @@
+package nl.martijndwars.webpush;
+
+import java.net.http.HttpRequest.BodyPublishers;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * A request that was encrypted and signed ahead of time, to be sent later without any crypto work.
+ * <p>
+ * A prepared request can only be sent until its VAPID token expires, or until the deadline of the notification it
+ * was prepared from, whichever comes first.
+ */
+public class PreparedRequest extends HttpRequest {
+    private final String endpoint;
+    private final Encoding encoding;
+    private final Instant notAfter;
+
+    public PreparedRequest(String endpoint, Encoding encoding, Instant notAfter, String url, Map<String, String> headers, byte[] body) {
+        super(url, headers, body);
+        this.endpoint = endpoint;
+        this.encoding = encoding;
+        this.notAfter = notAfter;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Get the point in time after which the request must no longer be sent.
+     *
+     * @return
+     */
+    public Instant getNotAfter() {
+        return notAfter;
+    }
+
+    public boolean isExpired() {
+        return !Instant.now().isBefore(notAfter);
+    }
+
+    /**
+     * Get the size of the request in bytes, not counting the protocol overhead.
+     *
+     * @return
+     */
+    public long getSize() {
+        long size = getUrl().length() + (getBody() != null ? getBody().length : 0);
+
+        for (Map.Entry<String, String> header : getHeaders().entrySet()) {
+            size += header.getKey().length() + header.getValue().length() + 4;
+        }
+
+        return size;
+    }
+
+    /**
+     * Build a request for the Java HTTP client, with the defaults of the default {@link VendorRegistry}. This only
+     * copies references; the body is not copied.
+     *
+     * @return
+     */
+    public java.net.http.HttpRequest toHttpRequest() {
+        Endpoint endpoint = Endpoint.of(this.endpoint);
+
+        return toHttpRequest(endpoint, VendorRegistry.getDefault().getProfile(endpoint.getVendor()));
+    }
+
+    /**
+     * Build a request for the Java HTTP client, the same way a notification is sent: the URI comes from the parsed
+     * endpoint, and the HTTP version and timeout from the profile of its vendor. This only copies references; the body
+     * is not copied.
+     *
+     * @param endpoint The parsed endpoint of this request.
+     * @param profile
+     * @return
+     */
+    public java.net.http.HttpRequest toHttpRequest(Endpoint endpoint, VendorProfile profile) {
+        var httpPost = java.net.http.HttpRequest.newBuilder(endpoint.toUri(getUrl()));
+        getHeaders().forEach(httpPost::header);
+
+        if (getBody() != null) {
+            httpPost.POST(BodyPublishers.ofByteArray(getBody()));
+        } else {
+            httpPost.POST(BodyPublishers.noBody());
+        }
+
+        return profile.apply(httpPost).build();
+    }
+
+    /**
+     * Describe the request as a notification without payload, which carries what admission and feedback need: the
+     * endpoint, the urgency, the topic, the TTL and the deadline.
+     *
+     * @return
+     */
+    Notification toNotification() {
+        Map<String, String> headers = getHeaders();
+        Urgency urgency = null;
+
+        for (Urgency value : Urgency.values()) {
+            if (value.getHeaderValue().equals(headers.get("Urgency"))) {
+                urgency = value;
+            }
+        }
+
+        int ttl = headers.containsKey("TTL") ? Integer.parseInt(headers.get("TTL")) : 0;
+
+        return new Notification(endpoint, null, null, new byte[0], ttl, urgency, headers.get("Topic"), notAfter.equals(Instant.MAX) ? null : notAfter);
+    }
+}
@@ -0,0 +1,255 @@
+package nl.martijndwars.webpush;
+
+import org.jose4j.lang.JoseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary file of prepared requests, for sending a campaign in two phases.
+ * <p>
+ * In the first phase, a {@link Writer} encrypts and signs every notification, which is CPU-bound and can be done
+ * ahead of time. In the second phase, {@link PushAsyncService#sendPrepared(Path, int, ResponseHandler)} streams the
+ * file into the HTTP client, which is I/O-bound and needs almost no CPU. Every request carries the time its VAPID token
+ * expires, minus a safety margin, so a file that is sent too late fails its requests instead of sending them with
+ * expired tokens.
+ * <p>
+ * Header names and values that repeat (content encoding, TTL, the server key) are written once, and referred to by
+ * index after that.
+ */
+public class PreparedRequestFile {
+    private static final int MAGIC = 0x57505052;
+    private static final int VERSION = 1;
+
+    /**
+     * Stop sending a request this long before its VAPID token expires, to allow for clock skew and time in flight.
+     */
+    public static final Duration TOKEN_EXPIRY_MARGIN = Duration.ofMinutes(5);
+
+    /**
+     * The most strings that are remembered for back-references.
+     */
+    private static final int MAX_DICTIONARY_SIZE = 4096;
+
+    /**
+     * Receives the outcome of every request that is sent from a file.
+     */
+    @FunctionalInterface
+    public interface ResponseHandler {
+        /**
+         * @param request
+         * @param response  The response, or null if the request failed.
+         * @param throwable The failure, or null if there is a response.
+         */
+        void onResponse(PreparedRequest request, HttpResponse<String> response, Throwable throwable);
+    }
+
+    public static Writer writer(Path file, AbstractPushService<?> pushService) throws IOException {
+        return new Writer(file, pushService);
+    }
+
+    public static Reader reader(Path file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Prepares notifications and appends them to a file.
+     */
+    public static class Writer implements Closeable {
+        private final AbstractPushService<?> pushService;
+        private final DataOutputStream out;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private long count;
+
+        private Writer(Path file, AbstractPushService<?> pushService) throws IOException {
+            this.pushService = pushService;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        /**
+         * Encrypt and sign the notification, and append the request to the file.
+         *
+         * @param notification
+         * @param encoding
+         * @return The prepared request.
+         * @throws GeneralSecurityException
+         * @throws JoseException
+         * @throws IOException
+         */
+        public PreparedRequest write(Notification notification, Encoding encoding) throws GeneralSecurityException, JoseException, IOException {
+            Instant preparedAt = Instant.now();
+            HttpRequest request = pushService.prepareRequest(notification, encoding);
+
+            Instant notAfter = Instant.MAX;
+
+            if (pushService.vapidEnabled()) {
+                notAfter = preparedAt.plus(AbstractPushService.VAPID_TOKEN_VALIDITY).minus(TOKEN_EXPIRY_MARGIN);
+            }
+
+            if (notification.getDeadline() != null && notification.getDeadline().isBefore(notAfter)) {
+                notAfter = notification.getDeadline();
+            }
+
+            PreparedRequest prepared = new PreparedRequest(notification.getEndpoint(), encoding, notAfter, request.getUrl(), request.getHeaders(), request.getBody());
+            write(prepared);
+
+            return prepared;
+        }
+
+        /**
+         * Append a request that was prepared elsewhere.
+         *
+         * @param request
+         * @throws IOException
+         */
+        public void write(PreparedRequest request) throws IOException {
+            out.writeLong(request.getNotAfter().equals(Instant.MAX) ? Long.MAX_VALUE : request.getNotAfter().toEpochMilli());
+            out.writeByte(request.getEncoding().ordinal());
+            out.writeUTF(request.getEndpoint());
+            out.writeUTF(request.getUrl());
+            out.writeShort(request.getHeaders().size());
+
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                writeString(header.getKey());
+                writeString(header.getValue());
+            }
+
+            byte[] body = request.getBody();
+
+            if (body == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(body.length);
+                out.write(body);
+            }
+
+            count++;
+        }
+
+        /**
+         * Get the number of requests written.
+         *
+         * @return
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        /**
+         * Write a string as a back-reference (index + 1) if it was written before, or as 0 followed by the string.
+         */
+        private void writeString(String value) throws IOException {
+            Integer index = dictionary.get(value);
+
+            if (index != null) {
+                out.writeShort(index + 1);
+                return;
+            }
+
+            out.writeShort(0);
+            out.writeUTF(value);
+
+            if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+                dictionary.put(value, dictionary.size());
+            }
+        }
+    }
+
+    /**
+     * Reads prepared requests from a file, one at a time.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final List<String> dictionary = new ArrayList<>();
+
+        private Reader(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                throw new IOException(file + " is not a prepared request file.");
+            }
+        }
+
+        /**
+         * Read the next request.
+         *
+         * @return The request, or null at the end of the file.
+         * @throws IOException
+         */
+        public PreparedRequest next() throws IOException {
+            long notAfter;
+
+            try {
+                notAfter = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            Encoding encoding = Encoding.values()[in.readByte()];
+            String endpoint = in.readUTF();
+            String url = in.readUTF();
+            int headerCount = in.readUnsignedShort();
+            Map<String, String> headers = new LinkedHashMap<>();
+
+            for (int i = 0; i < headerCount; i++) {
+                headers.put(readString(), readString());
+            }
+
+            int length = in.readInt();
+            byte[] body = null;
+
+            if (length >= 0) {
+                body = new byte[length];
+                in.readFully(body);
+            }
+
+            return new PreparedRequest(endpoint, encoding, notAfter == Long.MAX_VALUE ? Instant.MAX : Instant.ofEpochMilli(notAfter), url, headers, body);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private String readString() throws IOException {
+            int reference = in.readUnsignedShort();
+
+            if (reference > 0) {
+                return dictionary.get(reference - 1);
+            }
+
+            String value = in.readUTF();
+
+            if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+                dictionary.add(value);
+            }
+
+            return value;
+        }
+    }
+}
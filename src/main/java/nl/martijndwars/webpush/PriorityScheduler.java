@@ -0,0 +1,335 @@
+package nl.martijndwars.webpush;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A dispatch queue with one level per {@link Urgency}, in front of a fixed number of dispatch slots.
+ * <p>
+ * When a slot frees up, the next notification is picked by smooth weighted round robin over the non-empty levels: a
+ * level with weight 8 is served eight times as often as a level with weight 1, but no level starves.
+ * <p>
+ * The queue latency is the time the oldest waiting notification of the protected (not shed) levels has been queued.
+ * Once it crosses the threshold, the queue is overloaded, and notifications of the shed levels are either dropped with
+ * a {@link NotificationShedException} or deferred until the protected levels are served, depending on the
+ * {@link SheddingPolicy}.
+ */
+public class PriorityScheduler {
+    public enum SheddingPolicy {
+        /**
+         * Never shed; only the weights decide the order.
+         */
+        NONE,
+
+        /**
+         * Drop queued and new notifications of the shed levels while overloaded.
+         */
+        DROP,
+
+        /**
+         * Only serve the shed levels while no protected notification is waiting.
+         */
+        DEFER
+    }
+
+    private static final Urgency[] LEVELS = Urgency.values();
+
+    private final int slots;
+    private final int[] weights;
+    private final long latencyThreshold;
+    private final SheddingPolicy sheddingPolicy;
+    private final Set<Urgency> shedUrgencies;
+
+    /**
+     * One queue per urgency. An array of a generic type cannot be created, so an array of wildcard queues is cast;
+     * it only ever holds queues of entries.
+     */
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Entry>[] queues = (ArrayDeque<Entry>[]) new ArrayDeque<?>[LEVELS.length];
+    private final int[] credits = new int[LEVELS.length];
+    private final LongAdder shed = new LongAdder();
+
+    private int inFlight;
+
+    private PriorityScheduler(int slots, int[] weights, Duration latencyThreshold, SheddingPolicy sheddingPolicy, Set<Urgency> shedUrgencies) {
+        this.slots = slots;
+        this.weights = weights;
+        this.latencyThreshold = latencyThreshold.toNanos();
+        this.sheddingPolicy = sheddingPolicy;
+        this.shedUrgencies = shedUrgencies;
+
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Queue a notification for dispatch.
+     *
+     * @param notification
+     * @return A future that completes with a callback that frees the dispatch slot, once the notification may be sent.
+     */
+    public CompletableFuture<Runnable> schedule(Notification notification) {
+        Urgency urgency = notification.hasUrgency() ? notification.getUrgency() : Urgency.NORMAL;
+        long now = System.nanoTime();
+        Entry entry = new Entry(notification, now);
+        List<Entry> dropped = new ArrayList<>();
+        List<Entry> ready = new ArrayList<>();
+
+        synchronized (this) {
+            if (sheddingPolicy == SheddingPolicy.DROP && shedUrgencies.contains(urgency) && queueLatency(now) > latencyThreshold) {
+                shed.increment();
+                return CompletableFuture.failedFuture(new NotificationShedException(notification));
+            }
+
+            queues[urgency.ordinal()].add(entry);
+            dispatch(now, dropped, ready);
+        }
+
+        complete(dropped, ready);
+
+        return entry.future;
+    }
+
+    /**
+     * Check if the latency of the protected levels has crossed the threshold.
+     *
+     * @return
+     */
+    public synchronized boolean isOverloaded() {
+        return queueLatency(System.nanoTime()) > latencyThreshold;
+    }
+
+    /**
+     * Get the number of notifications of the given urgency that are waiting for a slot.
+     *
+     * @param urgency
+     * @return
+     */
+    public synchronized int getQueued(Urgency urgency) {
+        return queues[urgency.ordinal()].size();
+    }
+
+    /**
+     * Get the time the oldest waiting protected notification has been queued.
+     *
+     * @return
+     */
+    public synchronized Duration getQueueLatency() {
+        return Duration.ofNanos(queueLatency(System.nanoTime()));
+    }
+
+    /**
+     * Get the number of notifications that were dropped because the queue was overloaded.
+     *
+     * @return
+     */
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    private void release() {
+        List<Entry> dropped = new ArrayList<>();
+        List<Entry> ready = new ArrayList<>();
+
+        synchronized (this) {
+            inFlight--;
+            dispatch(System.nanoTime(), dropped, ready);
+        }
+
+        complete(dropped, ready);
+    }
+
+    /**
+     * Hand free slots to waiting notifications. Must be called while holding the lock.
+     *
+     * @param now
+     * @param dropped Receives the entries that were shed.
+     * @param ready   Receives the entries that got a slot.
+     */
+    private void dispatch(long now, List<Entry> dropped, List<Entry> ready) {
+        boolean overloaded = queueLatency(now) > latencyThreshold;
+
+        if (sheddingPolicy == SheddingPolicy.DROP && overloaded) {
+            for (Urgency urgency : shedUrgencies) {
+                dropped.addAll(queues[urgency.ordinal()]);
+                queues[urgency.ordinal()].clear();
+            }
+        }
+
+        while (inFlight < slots) {
+            Entry entry = next(sheddingPolicy == SheddingPolicy.DEFER && overloaded);
+
+            if (entry == null) {
+                break;
+            }
+
+            inFlight++;
+            entry.dispatched = true;
+            ready.add(entry);
+        }
+    }
+
+    /**
+     * Pick the next entry by smooth weighted round robin over the eligible levels.
+     *
+     * @param defer Whether to skip the shed levels.
+     */
+    private Entry next(boolean defer) {
+        int total = 0;
+        int best = -1;
+
+        for (int level = 0; level < LEVELS.length; level++) {
+            if (queues[level].isEmpty() || (defer && shedUrgencies.contains(LEVELS[level]))) {
+                continue;
+            }
+
+            credits[level] += weights[level];
+            total += weights[level];
+
+            if (best == -1 || credits[level] > credits[best]) {
+                best = level;
+            }
+        }
+
+        if (best == -1) {
+            return null;
+        }
+
+        credits[best] -= total;
+
+        return queues[best].poll();
+    }
+
+    /**
+     * The time the oldest waiting protected notification has been queued. Must be called while holding the lock.
+     */
+    private long queueLatency(long now) {
+        long latency = 0;
+
+        for (Urgency urgency : LEVELS) {
+            Entry head = queues[urgency.ordinal()].peek();
+
+            if (head != null && !shedUrgencies.contains(urgency)) {
+                latency = Math.max(latency, now - head.enqueuedAt);
+            }
+        }
+
+        return latency;
+    }
+
+    /**
+     * Complete the futures of shed and dispatched entries, outside the lock since completing runs their dependents.
+     */
+    private void complete(List<Entry> dropped, List<Entry> ready) {
+        for (Entry entry : dropped) {
+            shed.increment();
+            entry.future.completeExceptionally(new NotificationShedException(entry.notification));
+        }
+
+        for (Entry entry : ready) {
+            entry.future.complete(entry::release);
+        }
+    }
+
+    private class Entry {
+        private final Notification notification;
+        private final long enqueuedAt;
+        private final CompletableFuture<Runnable> future = new CompletableFuture<>();
+        private boolean dispatched;
+        private boolean released;
+
+        private Entry(Notification notification, long enqueuedAt) {
+            this.notification = notification;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        private void release() {
+            synchronized (this) {
+                if (!dispatched || released) {
+                    return;
+                }
+                released = true;
+            }
+
+            PriorityScheduler.this.release();
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int slots = 256;
+        private final int[] weights = {1, 2, 4, 8};
+        private Duration latencyThreshold = Duration.ofSeconds(1);
+        private SheddingPolicy sheddingPolicy = SheddingPolicy.NONE;
+        private final Set<Urgency> shedUrgencies = EnumSet.of(Urgency.VERY_LOW, Urgency.LOW);
+
+        private Builder() {
+        }
+
+        public PriorityScheduler build() {
+            return new PriorityScheduler(slots, weights.clone(), latencyThreshold, sheddingPolicy, EnumSet.copyOf(shedUrgencies));
+        }
+
+        /**
+         * The number of notifications that may be past the queue at once.
+         *
+         * @param slots
+         * @return
+         */
+        public Builder slots(int slots) {
+            if (slots < 1) {
+                throw new IllegalArgumentException("There must be at least 1 slot, " + slots + " given.");
+            }
+
+            this.slots = slots;
+            return this;
+        }
+
+        /**
+         * How often the given level is served relative to the others. Notifications without an urgency count as
+         * {@link Urgency#NORMAL}.
+         *
+         * @param urgency
+         * @param weight
+         * @return
+         */
+        public Builder weight(Urgency urgency, int weight) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("The weight must be at least 1, " + weight + " given.");
+            }
+
+            this.weights[urgency.ordinal()] = weight;
+            return this;
+        }
+
+        /**
+         * Shed the given levels with the given policy once the queue latency crosses the threshold.
+         *
+         * @param sheddingPolicy
+         * @param latencyThreshold
+         * @param shedUrgencies
+         * @return
+         */
+        public Builder shedding(SheddingPolicy sheddingPolicy, Duration latencyThreshold, Urgency... shedUrgencies) {
+            this.sheddingPolicy = sheddingPolicy;
+            this.latencyThreshold = latencyThreshold;
+
+            if (shedUrgencies.length > 0) {
+                this.shedUrgencies.clear();
+                this.shedUrgencies.addAll(List.of(shedUrgencies));
+            }
+
+            return this;
+        }
+    }
+}
@@ -3,18 +3,86 @@ package nl.martijndwars.webpush;
 import org.jose4j.lang.JoseException;
 
 import java.io.IOException;
-import java.net.URI;
 import java.net.http.HttpClient;
-import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 
 public class PushAsyncService extends AbstractPushService<PushAsyncService> {
 
+    /**
+     * Limits the rate at which messages are sent to each push service. When left as null, messages are sent as fast as
+     * they come in.
+     */
+    private RateLimiter rateLimiter;
+
+    /**
+     * Limits the number of requests in flight to each push service. When left as null, there is no limit.
+     */
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * Bounds the requests and encrypted bytes outstanding at once. When left as null, there is no bound.
+     */
+    private InFlightBudget inFlightBudget;
+
+    /**
+     * Rejects notifications for push services that keep failing. When left as null, every notification is sent.
+     */
+    private CircuitBreaker circuitBreaker;
+
+    /**
+     * Remembers expired subscriptions. When left as null, notifications for expired subscriptions are sent anyway.
+     */
+    private DeadEndpointCache deadEndpointCache;
+
+    /**
+     * Coalesces queued notifications with the same endpoint and topic. When left as null, every notification is sent.
+     */
+    private Coalescer coalescer;
+
+    /**
+     * Orders queued notifications by urgency. When left as null, notifications are admitted in arrival order.
+     */
+    private PriorityScheduler priorityScheduler;
+
+    /**
+     * Journals accepted notifications until their outcome is known. When left as null, notifications that are in
+     * flight when the JVM stops are lost.
+     */
+    private Outbox outbox;
+
+    /**
+     * Caps the notifications per endpoint. When left as null, there is no cap.
+     */
+    private FrequencyCap frequencyCap;
+
+    /**
+     * Serialises sends per endpoint. When left as null, sends to the same endpoint may overtake each other.
+     */
+    private EndpointSequencer endpointSequencer;
+
+    /**
+     * Holds scheduled notifications until they are due. Created on first use.
+     */
+    private TimingWheel<ScheduledNotification> timingWheel;
+
+    /**
+     * The resolution of the schedule; scheduled notifications are released at most this late.
+     */
+    private Duration scheduleResolution = Duration.ofMillis(100);
+
+    private static final Runnable NOTHING_TO_RELEASE = () -> {};
 
     public PushAsyncService(HttpClient httpClient) {
         super(httpClient);
@@ -41,7 +109,8 @@ public class PushAsyncService extends AbstractPushService<PushAsyncService> {
     }
 
     /**
-     * Send a notification asynchronously.
+     * Send a notification asynchronously. Cancelling the returned future while the notification still waits to be
+     * admitted keeps it from being encrypted and sent.
      *
      * @param notification
      * @param encoding
@@ -51,8 +120,35 @@ public class PushAsyncService extends AbstractPushService<PushAsyncService> {
      * @throws JoseException
      */
     public CompletableFuture<HttpResponse<String>> send(Notification notification, Encoding encoding) throws GeneralSecurityException, IOException, JoseException {
-        var httpPost = preparePost(notification, encoding);
-        return httpClient.sendAsync(httpPost.build(), BodyHandlers.ofString());
+        if (outbox == null) {
+            return submit(notification, encoding);
+        }
+
+        long id = outbox.append(notification, encoding);
+        CompletableFuture<HttpResponse<String>> response;
+
+        try {
+            response = submit(notification, encoding);
+        } catch (GeneralSecurityException | IOException | JoseException | RuntimeException e) {
+            outbox.acknowledge(id);
+            throw e;
+        }
+
+        CompletableFuture<HttpResponse<String>> acknowledged = new CompletableFuture<>();
+
+        response.whenComplete((httpResponse, throwable) -> {
+            outbox.acknowledge(id);
+            complete(acknowledged, httpResponse, throwable);
+        });
+
+        // Let a cancellation reach the notification, which then completes and is acknowledged
+        acknowledged.whenComplete((httpResponse, throwable) -> {
+            if (acknowledged.isCancelled()) {
+                response.cancel(false);
+            }
+        });
+
+        return acknowledged;
     }
 
     public CompletableFuture<HttpResponse<String>> send(Notification notification) throws GeneralSecurityException, IOException, JoseException {
@@ -60,24 +156,674 @@ public class PushAsyncService extends AbstractPushService<PushAsyncService> {
     }
 
     /**
-     * Prepare a POST request for AHC.
+     * Send the notifications that were recovered from the outbox, under their original sequence numbers. Call this
+     * once after setting the outbox. Notifications that expired while the outbox was closed are acknowledged without
+     * being sent, and fail with a {@link NotificationExpiredException}.
+     *
+     * @return A future for the response to each recovered notification.
+     */
+    public List<CompletableFuture<HttpResponse<String>>> replayOutbox() {
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+
+        for (Outbox.Entry entry : outbox.takeRecovered()) {
+            if (entry.isExpired()) {
+                outbox.acknowledge(entry.getId());
+                responses.add(CompletableFuture.failedFuture(new NotificationExpiredException(entry.getNotification())));
+                continue;
+            }
+
+            CompletableFuture<HttpResponse<String>> response;
+
+            try {
+                response = submit(entry.getNotification(), entry.getEncoding());
+            } catch (GeneralSecurityException | IOException | JoseException | RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+
+            responses.add(response.whenComplete((httpResponse, throwable) -> outbox.acknowledge(entry.getId())));
+        }
+
+        return responses;
+    }
+
+    /**
+     * Send a notification that has been journaled, if there is an outbox.
      *
      * @param notification
      * @param encoding
      * @return
-     * @throws GeneralSecurityException
+     */
+    private CompletableFuture<HttpResponse<String>> submit(Notification notification, Encoding encoding) throws GeneralSecurityException, IOException, JoseException {
+        notification.stamp(System.nanoTime());
+
+        if (coalescer != null && notification.hasTopic()) {
+            return coalescer.offer(notification, encoding, this::enqueue);
+        }
+
+        if (endpointSequencer != null) {
+            CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+            endpointSequencer.submit(notification.getEndpoint(), () -> admitAndDispatch(notification, encoding, result))
+                    .whenComplete((response, throwable) -> complete(result, response, throwable));
+
+            return result;
+        }
+
+        CompletableFuture<Runnable> admitted = admit(notification, encoding);
+
+        if (admitted.isDone() && !admitted.isCompletedExceptionally()) {
+            Runnable release = admitted.join();
+            RuntimeException rejection = rejectBeforePreparing(notification);
+            java.net.http.HttpRequest.Builder httpPost;
+
+            if (rejection != null) {
+                release.run();
+                return CompletableFuture.failedFuture(rejection);
+            }
+
+            try {
+                recordQueueing(notification);
+                httpPost = preparePost(notification, encoding);
+            } catch (GeneralSecurityException | IOException | JoseException | RuntimeException e) {
+                release.run();
+                throw e;
+            }
+
+            return dispatch(notification, encoding, httpPost.build()).whenComplete((response, throwable) -> release.run());
+        }
+
+        CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+        admitted.thenCompose(release -> prepareAndDispatch(notification, encoding, result)
+                .whenComplete((response, throwable) -> release.run()))
+                .whenComplete((response, throwable) -> complete(result, response, throwable));
+
+        return result;
+    }
+
+    /**
+     * Admit, prepare and send a notification. All errors complete the returned future exceptionally.
+     *
+     * @param notification
+     * @param encoding
+     * @param result       The future the caller holds for the notification, which may be cancelled meanwhile.
+     * @return
+     */
+    private CompletableFuture<HttpResponse<String>> admitAndDispatch(Notification notification, Encoding encoding, CompletableFuture<?> result) {
+        return admit(notification, encoding).thenCompose(release -> prepareAndDispatch(notification, encoding, result)
+                .whenComplete((response, throwable) -> release.run()));
+    }
+
+    /**
+     * Send a request that was prepared ahead of time. It goes through the same admission as a notification, but
+     * needs no encryption or signing. A request whose VAPID token or deadline has expired fails with a
+     * {@link NotificationExpiredException}.
+     *
+     * @param prepared
+     * @return
+     */
+    public CompletableFuture<HttpResponse<String>> sendPrepared(PreparedRequest prepared) {
+        Notification notification = prepared.toNotification();
+        notification.stamp(System.nanoTime());
+
+        java.net.http.HttpRequest request = prepared.toHttpRequest(notification.getParsedEndpoint(), getVendorRegistry().getProfile(classify(notification)));
+
+        return admit(notification, prepared.getSize()).thenCompose(release -> dispatch(notification, prepared.getEncoding(), request)
+                .whenComplete((response, throwable) -> release.run()));
+    }
+
+    /**
+     * Stream a file of prepared requests into the HTTP client, with at most the given number of requests in flight.
+     *
+     * @param file        A file written by a {@link PreparedRequestFile.Writer}.
+     * @param maxInFlight
+     * @param handler     Receives the outcome of every request.
+     * @return A future that completes once every request in the file has completed. If the file cannot be read to
+     * the end, it fails with the read error once the requests in flight have completed.
      * @throws IOException
-     * @throws JoseException
      */
-    public java.net.http.HttpRequest.Builder preparePost(Notification notification, Encoding encoding) throws GeneralSecurityException, IOException, JoseException {
-        HttpRequest request = prepareRequest(notification, encoding);
-        var httpPost = java.net.http.HttpRequest.newBuilder(URI.create(request.getUrl()));
-        request.getHeaders().forEach(httpPost::header);
-        if (request.getBody() != null) {
-            httpPost.POST(BodyPublishers.ofByteArray(request.getBody()));
+    public CompletableFuture<Void> sendPrepared(Path file, int maxInFlight, PreparedRequestFile.ResponseHandler handler) throws IOException {
+        return new PreparedDispatch(this, PreparedRequestFile.reader(file), maxInFlight, handler).start();
+    }
+
+    /**
+     * Send a notification at the given point in time. Until then, the notification only takes a slot in the schedule;
+     * it is encrypted once it is released. Its TTL counts from the moment it is released.
+     *
+     * @param notification
+     * @param encoding
+     * @param at
+     * @return A future for the response, which can be cancelled until the notification is released.
+     */
+    public ScheduledNotification schedule(Notification notification, Encoding encoding, Instant at) {
+        ScheduledNotification scheduled = new ScheduledNotification(notification, encoding);
+        scheduled.setTimeout(timingWheel().schedule(scheduled, at));
+
+        return scheduled;
+    }
+
+    public ScheduledNotification schedule(Notification notification, Instant at) {
+        return schedule(notification, Encoding.AES128GCM, at);
+    }
+
+    /**
+     * Send a notification after the given delay.
+     *
+     * @param notification
+     * @param encoding
+     * @param delay
+     * @return A future for the response, which can be cancelled until the notification is released.
+     */
+    public ScheduledNotification schedule(Notification notification, Encoding encoding, Duration delay) {
+        ScheduledNotification scheduled = new ScheduledNotification(notification, encoding);
+        scheduled.setTimeout(timingWheel().schedule(scheduled, delay));
+
+        return scheduled;
+    }
+
+    public ScheduledNotification schedule(Notification notification, Duration delay) {
+        return schedule(notification, Encoding.AES128GCM, delay);
+    }
+
+    private synchronized TimingWheel<ScheduledNotification> timingWheel() {
+        if (timingWheel == null) {
+            timingWheel = new TimingWheel<>(scheduleResolution, 4096, this::release);
+        }
+
+        return timingWheel;
+    }
+
+    /**
+     * Send a batch of scheduled notifications that are due. The batch is handed off the timing wheel's thread as a
+     * whole, so encrypting it does not delay the next tick.
+     *
+     * @param batch
+     */
+    private void release(List<ScheduledNotification> batch) {
+        CompletableFuture.runAsync(() -> {
+            for (ScheduledNotification scheduled : batch) {
+                if (!scheduled.release()) {
+                    continue;
+                }
+
+                try {
+                    send(scheduled.getNotification(), scheduled.getEncoding())
+                            .whenComplete((response, throwable) -> complete(scheduled, response, throwable));
+                } catch (GeneralSecurityException | IOException | JoseException | RuntimeException e) {
+                    scheduled.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a coalesced queue entry, after earlier notifications for the same endpoint when sends are ordered.
+     *
+     * @param pending
+     */
+    private void enqueue(Coalescer.Pending pending) {
+        if (endpointSequencer != null) {
+            endpointSequencer.submit(pending.getFirst().getEndpoint(), () -> dispatchPending(pending));
         } else {
-            httpPost.POST(BodyPublishers.noBody());
+            dispatchPending(pending);
+        }
+    }
+
+    /**
+     * Send a coalesced queue entry. The entry holds its place in the queue with the notification it was created for;
+     * once admitted, the newest notification that replaced it is sent instead.
+     *
+     * @param pending
+     * @return A future that completes once the entry has been handled.
+     */
+    private CompletableFuture<HttpResponse<String>> dispatchPending(Coalescer.Pending pending) {
+        Notification first = pending.getFirst();
+
+        return admit(first, pending.getEncoding()).handle((release, throwable) -> {
+            // The newest notification may have a different encoding than the one the entry was queued with
+            Coalescer.Claim claim = pending.claim();
+            Notification latest = claim.getNotification();
+            Encoding encoding = claim.getEncoding();
+            CompletableFuture<HttpResponse<String>> result = claim.getResult();
+            CompletableFuture<HttpResponse<String>> sent;
+
+            if (throwable != null) {
+                Throwable cause = unwrap(throwable);
+
+                if (cause instanceof NotificationExpiredException && latest != first && !latest.isExpired()) {
+                    // Only the entry's place in the queue expired; the newest notification is still worth sending
+                    sent = admitAndDispatch(latest, encoding, result);
+                } else {
+                    sent = CompletableFuture.failedFuture(cause);
+                }
+            } else if (latest.isExpired()) {
+                release.run();
+                sent = CompletableFuture.failedFuture(new NotificationExpiredException(latest));
+            } else {
+                sent = prepareAndDispatch(latest, encoding, result).whenComplete((response, failure) -> release.run());
+            }
+
+            return sent.whenComplete((response, failure) -> complete(result, response, failure));
+        }).thenCompose(Function.identity());
+    }
+
+    private static <U> void complete(CompletableFuture<U> future, U value, Throwable throwable) {
+        if (throwable != null) {
+            future.completeExceptionally(unwrap(throwable));
+        } else {
+            future.complete(value);
+        }
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    /**
+     * Wait until the notification may be sent. This happens before any encryption work is done. Notifications whose
+     * deadline passes while waiting are dropped with a {@link NotificationExpiredException}.
+     *
+     * @param notification
+     * @param encoding
+     * @return A future that completes with a callback that releases whatever was acquired for the notification.
+     */
+    private CompletableFuture<Runnable> admit(Notification notification, Encoding encoding) {
+        return admit(notification, estimateRequestSize(notification, encoding));
+    }
+
+    /**
+     * Wait until the notification may be sent.
+     *
+     * @param notification
+     * @param size         The size of the request, which is reserved in the in-flight budget.
+     * @return
+     */
+    private CompletableFuture<Runnable> admit(Notification notification, long size) {
+        if (notification.isExpired()) {
+            return CompletableFuture.failedFuture(new NotificationExpiredException(notification));
+        }
+
+        if (deadEndpointCache != null && deadEndpointCache.isDead(notification.getEndpoint())) {
+            return CompletableFuture.failedFuture(new EndpointGoneException(notification.getEndpoint()));
+        }
+
+        // Only a check; the probe of a half-open circuit is taken right before the request is sent, so a
+        // notification that is dropped on the way cannot hold on to it
+        if (circuitBreaker != null && circuitBreaker.isRejecting(notification.getOrigin())) {
+            return CompletableFuture.failedFuture(new CircuitBreakerOpenException(notification.getOrigin()));
+        }
+
+        CompletableFuture<Runnable> admitted = CompletableFuture.completedFuture(NOTHING_TO_RELEASE);
+
+        if (priorityScheduler != null) {
+            admitted = unlessExpired(notification, priorityScheduler.schedule(notification));
+        }
+
+        if (inFlightBudget != null) {
+            admitted = unlessExpired(notification, admitted.thenCompose(release -> inFlightBudget.acquire(size)
+                    .handle((ignored, throwable) -> {
+                        if (throwable != null) {
+                            release.run();
+                            throw new CompletionException(unwrap(throwable));
+                        }
+
+                        return () -> {
+                            inFlightBudget.release(size);
+                            release.run();
+                        };
+                    })));
+        }
+
+        String origin = notification.getOrigin();
+
+        if (rateLimiter != null) {
+            admitted = unlessExpired(notification, admitted.thenCompose(release -> rateLimiter.acquire(origin).thenApply(ignored -> release)));
+        }
+
+        if (concurrencyLimiter != null) {
+            admitted = unlessExpired(notification, admitted.thenCompose(release -> concurrencyLimiter.acquire(origin).thenApply(permit -> () -> {
+                permit.release();
+                release.run();
+            })));
+        }
+
+        if (frequencyCap != null) {
+            // Last, so notifications that are dropped while waiting do not count towards the cap
+            admitted = admitted.thenCompose(release -> {
+                if (!frequencyCap.tryAcquire(notification.getEndpoint())) {
+                    release.run();
+                    return CompletableFuture.failedFuture(new FrequencyCappedException(notification));
+                }
+
+                return CompletableFuture.completedFuture(release);
+            });
+        }
+
+        return admitted;
+    }
+
+    /**
+     * Drop the notification if its deadline passed during the given stage, releasing what was acquired for it.
+     *
+     * @param notification
+     * @param stage
+     * @return
+     */
+    private static CompletableFuture<Runnable> unlessExpired(Notification notification, CompletableFuture<Runnable> stage) {
+        if (stage.isDone()) {
+            // Nothing was waited for, so the deadline was already checked on entry
+            return stage;
+        }
+
+        return stage.thenCompose(release -> {
+            if (notification.isExpired()) {
+                release.run();
+                return CompletableFuture.failedFuture(new NotificationExpiredException(notification));
+            }
+
+            return CompletableFuture.completedFuture(release);
+        });
+    }
+
+    /**
+     * Prepare and send a notification that has been admitted asynchronously. Preparation errors complete the
+     * returned future exceptionally.
+     *
+     * @param notification
+     * @param encoding
+     * @param result       The future the caller holds for the notification. If it was cancelled while the
+     *                     notification waited, the notification is not encrypted.
+     * @return
+     */
+    private CompletableFuture<HttpResponse<String>> prepareAndDispatch(Notification notification, Encoding encoding, CompletableFuture<?> result) {
+        if (result.isCancelled()) {
+            return CompletableFuture.failedFuture(new CancellationException("The notification for " + notification.getEndpoint() + " was cancelled."));
+        }
+
+        RuntimeException rejection = rejectBeforePreparing(notification);
+
+        if (rejection != null) {
+            return CompletableFuture.failedFuture(rejection);
+        }
+
+        try {
+            recordQueueing(notification);
+            return dispatch(notification, encoding, preparePost(notification, encoding).build());
+        } catch (GeneralSecurityException | IOException | JoseException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Check again, right before encryption, whether an admitted notification would be rejected. It may have waited in
+     * the queues while its endpoint expired or the circuit of its origin opened, and should then not be encrypted for
+     * nothing.
+     *
+     * @param notification
+     * @return The exception to fail the notification with, or null if it may be prepared.
+     */
+    private RuntimeException rejectBeforePreparing(Notification notification) {
+        if (deadEndpointCache != null && deadEndpointCache.isDead(notification.getEndpoint())) {
+            return new EndpointGoneException(notification.getEndpoint());
+        }
+
+        if (circuitBreaker != null && circuitBreaker.isRejecting(notification.getOrigin())) {
+            return new CircuitBreakerOpenException(notification.getOrigin());
+        }
+
+        return null;
+    }
+
+    /**
+     * Record the time a notification waited between being accepted for sending and being prepared.
+     *
+     * @param notification
+     */
+    private void recordQueueing(Notification notification) {
+        MetricsListener metricsListener = getMetricsListener();
+
+        if (metricsListener != MetricsListener.NONE) {
+            metricsListener.onStage(MetricsListener.Stage.QUEUEING, System.nanoTime() - notification.getEnqueuedAt());
         }
-        return httpPost;
+    }
+
+    @Override
+    protected CompletableFuture<HttpResponse<String>> transmit(Notification notification, java.net.http.HttpRequest request) {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire(notification.getOrigin())) {
+            return CompletableFuture.failedFuture(new CircuitBreakerOpenException(notification.getOrigin()));
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<String>> response = super.transmit(notification, request);
+
+        if (rateLimiter == null && concurrencyLimiter == null && circuitBreaker == null && deadEndpointCache == null) {
+            return response;
+        }
+
+        String origin = notification.getOrigin();
+
+        return response.whenComplete((httpResponse, throwable) -> {
+            long duration = System.nanoTime() - start;
+            int statusCode = httpResponse != null ? httpResponse.statusCode() : 0;
+
+            if (rateLimiter != null && httpResponse != null) {
+                rateLimiter.onResponse(origin, httpResponse);
+            }
+
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.onSample(origin, duration, throwable != null || statusCode == 429 || statusCode >= 500);
+            }
+
+            if (circuitBreaker != null) {
+                circuitBreaker.onResult(origin, duration, throwable != null || statusCode >= 500);
+            }
+
+            if (deadEndpointCache != null && httpResponse != null) {
+                deadEndpointCache.onResponse(notification.getEndpoint(), httpResponse);
+            }
+        });
+    }
+
+    @Override
+    protected boolean isRejecting(Notification notification) {
+        return circuitBreaker != null && circuitBreaker.isRejecting(notification.getOrigin());
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Set the per-origin rate limiter. Notifications wait for a permit before they are encrypted.
+     *
+     * @param rateLimiter
+     * @return
+     */
+    public PushAsyncService setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+
+        return this;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Set the adaptive per-origin concurrency limiter. Notifications wait for a slot before they are encrypted, and
+     * hold it until their last attempt completes.
+     *
+     * @param concurrencyLimiter
+     * @return
+     */
+    public PushAsyncService setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+
+        return this;
+    }
+
+    public InFlightBudget getInFlightBudget() {
+        return inFlightBudget;
+    }
+
+    /**
+     * Set the global budget on requests and encrypted bytes in flight. Room is reserved when a notification is
+     * accepted by {@link #send(Notification, Encoding)}, and released when its last attempt completes.
+     *
+     * @param inFlightBudget
+     * @return
+     */
+    public PushAsyncService setInFlightBudget(InFlightBudget inFlightBudget) {
+        this.inFlightBudget = inFlightBudget;
+
+        return this;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set the per-origin circuit breaker. While an origin's circuit is open, notifications for it are rejected with a
+     * {@link CircuitBreakerOpenException} before they are encrypted. The probe calls of a half-open circuit are only
+     * taken when a request is actually sent, so every probe gets a result.
+     *
+     * @param circuitBreaker
+     * @return
+     */
+    public PushAsyncService setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+
+        return this;
+    }
+
+    public DeadEndpointCache getDeadEndpointCache() {
+        return deadEndpointCache;
+    }
+
+    /**
+     * Set the cache of expired subscriptions. Endpoints the push service answers with 404 or 410 are added to it, and
+     * later notifications for them are rejected with an {@link EndpointGoneException} before they are encrypted.
+     *
+     * @param deadEndpointCache
+     * @return
+     */
+    public PushAsyncService setDeadEndpointCache(DeadEndpointCache deadEndpointCache) {
+        this.deadEndpointCache = deadEndpointCache;
+
+        return this;
+    }
+
+    public Coalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Set the coalescer for notifications with a topic. A queued notification is replaced in place by a newer one for
+     * the same endpoint and topic, and fails with a {@link NotificationSupersededException}. Notifications with a topic
+     * always report errors through the returned future, since they may be prepared after send returns.
+     *
+     * @param coalescer
+     * @return
+     */
+    public PushAsyncService setCoalescer(Coalescer coalescer) {
+        this.coalescer = coalescer;
+
+        return this;
+    }
+
+    public PriorityScheduler getPriorityScheduler() {
+        return priorityScheduler;
+    }
+
+    /**
+     * Set the urgency-aware dispatch queue. Notifications queue up by urgency for one of its slots before anything
+     * else is acquired for them, and may be shed when the queue is overloaded.
+     *
+     * @param priorityScheduler
+     * @return
+     */
+    public PushAsyncService setPriorityScheduler(PriorityScheduler priorityScheduler) {
+        this.priorityScheduler = priorityScheduler;
+
+        return this;
+    }
+
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Set the durable outbox. Every notification passed to {@link #send(Notification, Encoding)} is appended to it
+     * before it is admitted, and acknowledged once its future completes, whatever the outcome. Use
+     * {@link #replayOutbox()} to send the notifications that were still pending when the outbox was last closed.
+     *
+     * @param outbox
+     * @return
+     */
+    public PushAsyncService setOutbox(Outbox outbox) {
+        this.outbox = outbox;
+
+        return this;
+    }
+
+    public FrequencyCap getFrequencyCap() {
+        return frequencyCap;
+    }
+
+    /**
+     * Set the per-endpoint frequency cap. Notifications for an endpoint that reached the cap are rejected with a
+     * {@link FrequencyCappedException} before they are encrypted. The cap is checked as the last admission step, so
+     * notifications that are dropped while waiting, or replaced by a newer one with the same topic, do not count
+     * towards it.
+     *
+     * @param frequencyCap
+     * @return
+     */
+    public PushAsyncService setFrequencyCap(FrequencyCap frequencyCap) {
+        this.frequencyCap = frequencyCap;
+
+        return this;
+    }
+
+    public EndpointSequencer getEndpointSequencer() {
+        return endpointSequencer;
+    }
+
+    /**
+     * Deliver notifications for the same endpoint in the order they were sent. A notification is only admitted once
+     * the previous one for its endpoint has completed, including retries. Ordered notifications always report errors
+     * through the returned future.
+     *
+     * @param endpointSequencer
+     * @return
+     */
+    public PushAsyncService setEndpointSequencer(EndpointSequencer endpointSequencer) {
+        this.endpointSequencer = endpointSequencer;
+
+        return this;
+    }
+
+    /**
+     * Get the number of scheduled notifications that have not been released or cancelled yet.
+     *
+     * @return
+     */
+    public synchronized long getScheduledCount() {
+        return timingWheel != null ? timingWheel.size() : 0;
+    }
+
+    public Duration getScheduleResolution() {
+        return scheduleResolution;
+    }
+
+    /**
+     * Set the tick of the schedule. Only takes effect before the first notification is scheduled.
+     *
+     * @param scheduleResolution
+     * @return
+     */
+    public PushAsyncService setScheduleResolution(Duration scheduleResolution) {
+        this.scheduleResolution = scheduleResolution;
+
+        return this;
     }
 }
@@ -0,0 +1,142 @@
+package nl.martijndwars.webpush;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events for the stages of sending a notification.
+ * <p>
+ * Each event has a threshold, so by default only slow operations are recorded, and the events of a recording can be
+ * correlated with GC pauses and lock contention at the same time. Lower the thresholds in a JFR configuration to see
+ * every operation, for example with {@code jfr configure nl.martijndwars.webpush.Encryption#threshold=0ms}. While no
+ * recording is running, the events are disabled and cost next to nothing.
+ */
+final class PushEvents {
+    private PushEvents() {
+    }
+
+    private static int payloadSize(Notification notification) {
+        return notification.hasPayload() ? notification.getPayload().length : 0;
+    }
+
+    @Name("nl.martijndwars.webpush.Preparation")
+    @Label("Push Notification Preparation")
+    @Description("Encrypting a notification and assembling its request, including VAPID signing")
+    @Category("Web Push")
+    @Threshold("20 ms")
+    @StackTrace(false)
+    static class Preparation extends Event {
+        @Label("Origin")
+        String origin;
+
+        @Label("Encoding")
+        String encoding;
+
+        @Label("Payload Size")
+        @DataAmount
+        int payloadSize;
+
+        void finish(Notification notification, Encoding encoding) {
+            end();
+
+            if (shouldCommit()) {
+                this.origin = notification.getOrigin();
+                this.encoding = encoding.name();
+                this.payloadSize = payloadSize(notification);
+                commit();
+            }
+        }
+    }
+
+    @Name("nl.martijndwars.webpush.Encryption")
+    @Label("Push Notification Encryption")
+    @Description("Generating a local key pair and encrypting the payload of a notification")
+    @Category("Web Push")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static class Encryption extends Event {
+        @Label("Origin")
+        String origin;
+
+        @Label("Encoding")
+        String encoding;
+
+        @Label("Payload Size")
+        @DataAmount
+        int payloadSize;
+
+        void finish(Notification notification, Encoding encoding) {
+            end();
+
+            if (shouldCommit()) {
+                this.origin = notification.getOrigin();
+                this.encoding = encoding.name();
+                this.payloadSize = payloadSize(notification);
+                commit();
+            }
+        }
+    }
+
+    @Name("nl.martijndwars.webpush.Signing")
+    @Label("VAPID Signing")
+    @Description("Signing the VAPID token of a request")
+    @Category("Web Push")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static class Signing extends Event {
+        @Label("Audience")
+        String origin;
+
+        void finish(String origin) {
+            end();
+
+            if (shouldCommit()) {
+                this.origin = origin;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The request is sent asynchronously, so the event is committed by the thread that completes the response.
+     */
+    @Name("nl.martijndwars.webpush.Dispatch")
+    @Label("Push Request Dispatch")
+    @Description("A single HTTP request to a push service, until its response arrives")
+    @Category("Web Push")
+    @Threshold("500 ms")
+    @StackTrace(false)
+    static class Dispatch extends Event {
+        @Label("Origin")
+        String origin;
+
+        @Label("Encoding")
+        String encoding;
+
+        @Label("Body Size")
+        @DataAmount
+        long bodySize;
+
+        @Label("Status Code")
+        @Description("The status code of the response, or 0 if the request failed without a response")
+        int statusCode;
+
+        void finish(Notification notification, java.net.http.HttpRequest request, int statusCode) {
+            end();
+
+            if (shouldCommit()) {
+                this.origin = notification.getOrigin();
+                this.encoding = request.headers().firstValue("Content-Encoding").map(String::toUpperCase).orElse(null);
+                this.bodySize = request.bodyPublisher().map(body -> body.contentLength()).orElse(0L);
+                this.statusCode = statusCode;
+                commit();
+            }
+        }
+    }
+}
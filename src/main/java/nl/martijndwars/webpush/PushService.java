@@ -3,7 +3,6 @@ package nl.martijndwars.webpush;
 import org.jose4j.lang.JoseException;
 
 import java.io.IOException;
-import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpResponse;
 import java.security.GeneralSecurityException;
@@ -75,7 +74,7 @@ public class PushService extends AbstractPushService<PushService> {
         var httpPost = preparePost(notification, encoding);
 
 
-        return httpClient.sendAsync(httpPost.build(), HttpResponse.BodyHandlers.ofString());
+        return dispatch(notification, encoding, httpPost.build());
     }
 
     /**
@@ -85,24 +84,4 @@ public class PushService extends AbstractPushService<PushService> {
     public Future<HttpResponse<String>> sendAsync(Notification notification) throws GeneralSecurityException, IOException, JoseException, InterruptedException {
         return sendAsync(notification, Encoding.AES128GCM);
     }
-
-    /**
-     * Prepare a HttpPost for Apache async http client
-     *
-     * @param notification
-     * @param encoding
-     * @return
-     * @throws GeneralSecurityException
-     * @throws IOException
-     * @throws JoseException
-     */
-    public java.net.http.HttpRequest.Builder preparePost(Notification notification, Encoding encoding) throws GeneralSecurityException, IOException, JoseException {
-        HttpRequest request = prepareRequest(notification, encoding);
-        var httpPost = java.net.http.HttpRequest.newBuilder(URI.create(request.getUrl()));
-        request.getHeaders().forEach(httpPost::header);
-        if (request.getBody() != null) {
-            java.net.http.HttpRequest.Builder post = httpPost.POST(java.net.http.HttpRequest.BodyPublishers.ofByteArray(request.getBody()));
-        }
-        return httpPost;
-    }
 }
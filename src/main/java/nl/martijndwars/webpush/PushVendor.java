@@ -0,0 +1,33 @@
+package nl.martijndwars.webpush;
+
+/**
+ * The operator of a push service, as recognized from the endpoint by a {@link VendorRegistry}.
+ */
+public enum PushVendor {
+    /**
+     * Legacy Google Cloud Messaging ({@code https://android.googleapis.com/gcm/send/...})
+     */
+    GCM,
+
+    /**
+     * Firebase Cloud Messaging, used by Chrome ({@code https://fcm.googleapis.com/...})
+     */
+    FCM,
+
+    /**
+     * Mozilla autopush, used by Firefox ({@code https://updates.push.services.mozilla.com/...})
+     */
+    MOZILLA,
+
+    /**
+     * Windows Push Notification Services, used by Edge ({@code https://*.notify.windows.com/...})
+     */
+    WNS,
+
+    /**
+     * Apple Push Notification service, used by Safari ({@code https://web.push.apple.com/...})
+     */
+    APPLE,
+
+    UNKNOWN
+}
@@ -0,0 +1,296 @@
+package nl.martijndwars.webpush;
+
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token-bucket rate limiter with one bucket per push service origin.
+ * <p>
+ * Each bucket starts at its base rate. When the push service answers with 429 (Too Many Requests), the rate is cut
+ * multiplicatively and, if a Retry-After header is present, the bucket is paused for the requested delay. Afterwards
+ * the rate recovers linearly back to the base rate.
+ * <p>
+ * Acquiring a permit never blocks a thread: when no token is available, the returned future completes once the
+ * reserved token becomes available.
+ */
+public class RateLimiter {
+    /**
+     * Responses that arrive within this window after a cut belong to the same burst and do not cut the rate again.
+     */
+    private static final long THROTTLE_COOLDOWN = TimeUnit.SECONDS.toNanos(1);
+
+    private final double defaultRate;
+    private final Map<String, Double> baseRates;
+    private final double burst;
+    private final double decreaseFactor;
+    private final double minRate;
+    private final Duration recoveryTime;
+    private final VendorRegistry vendorRegistry;
+
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private RateLimiter(double defaultRate, Map<String, Double> baseRates, double burst, double decreaseFactor, double minRate, Duration recoveryTime, VendorRegistry vendorRegistry) {
+        this.defaultRate = defaultRate;
+        this.baseRates = baseRates;
+        this.burst = burst;
+        this.decreaseFactor = decreaseFactor;
+        this.minRate = minRate;
+        this.recoveryTime = recoveryTime;
+        this.vendorRegistry = vendorRegistry;
+    }
+
+    /**
+     * Acquire a permit to send a message to the given origin.
+     *
+     * @param origin
+     * @return A future that completes when the message may be sent.
+     */
+    public CompletableFuture<Void> acquire(String origin) {
+        long wait = bucket(origin).reserve(System.nanoTime());
+
+        if (wait <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS).execute(() -> permit.complete(null));
+
+        return permit;
+    }
+
+    /**
+     * Feed the push service's response back into the limiter.
+     *
+     * @param origin
+     * @param response
+     */
+    public void onResponse(String origin, HttpResponse<?> response) {
+        if (response.statusCode() == 429) {
+            bucket(origin).throttle(System.nanoTime(), RetryPolicy.parseRetryAfter(response.headers()));
+        }
+    }
+
+    /**
+     * Get the current rate (in messages per second) for the given origin.
+     *
+     * @param origin
+     * @return
+     */
+    public double getRate(String origin) {
+        return bucket(origin).currentRate(System.nanoTime());
+    }
+
+    /**
+     * Get the current rate (in messages per second) of every origin that has been sent to.
+     *
+     * @return
+     */
+    public Map<String, Double> getRates() {
+        long now = System.nanoTime();
+        Map<String, Double> rates = new HashMap<>();
+        buckets.forEach((origin, bucket) -> rates.put(origin, bucket.currentRate(now)));
+
+        return rates;
+    }
+
+    private TokenBucket bucket(String origin) {
+        return buckets.computeIfAbsent(origin, key -> new TokenBucket(baseRate(key), System.nanoTime()));
+    }
+
+    /**
+     * The explicit rate of the origin, or else the rate of its vendor's profile. Only called when the origin's bucket
+     * is created.
+     */
+    private double baseRate(String origin) {
+        Double rate = baseRates.get(origin);
+
+        if (rate != null) {
+            return rate;
+        }
+
+        return vendorRegistry == null ? defaultRate : vendorRegistry.getProfile(origin).getRate().orElse(defaultRate);
+    }
+
+    /**
+     * A bucket that may go into debt: a reservation that cannot be served immediately takes a token from the future,
+     * and the caller waits until that token has been refilled.
+     */
+    class TokenBucket {
+        private final double baseRate;
+        private double rate;
+        private double tokens;
+        private long lastRefill;
+        private long lastThrottle;
+
+        TokenBucket(double baseRate, long now) {
+            this.baseRate = baseRate;
+            this.rate = baseRate;
+            this.tokens = Math.min(burst, baseRate);
+            this.lastRefill = now;
+            this.lastThrottle = now - THROTTLE_COOLDOWN;
+        }
+
+        synchronized long reserve(long now) {
+            refill(now);
+            tokens -= 1;
+
+            long paused = Math.max(0, lastRefill - now);
+            long debt = tokens < 0 ? (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1)) : 0;
+
+            return paused + debt;
+        }
+
+        synchronized void throttle(long now, Optional<Duration> retryAfter) {
+            refill(now);
+
+            if (now - lastThrottle >= THROTTLE_COOLDOWN) {
+                rate = Math.max(Math.min(minRate, baseRate), rate * decreaseFactor);
+                lastThrottle = now;
+            }
+
+            tokens = Math.min(tokens, 0);
+
+            if (retryAfter.isPresent()) {
+                lastRefill = Math.max(lastRefill, now + retryAfter.get().toNanos());
+            }
+        }
+
+        synchronized double currentRate(long now) {
+            refill(now);
+
+            return rate;
+        }
+
+        private void refill(long now) {
+            if (now <= lastRefill) {
+                return;
+            }
+
+            double elapsed = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+
+            if (rate < baseRate) {
+                rate = Math.min(baseRate, rate + baseRate * elapsed / (recoveryTime.toNanos() / (double) TimeUnit.SECONDS.toNanos(1)));
+            }
+
+            tokens = Math.min(burst, tokens + elapsed * rate);
+            lastRefill = now;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private double defaultRate = 1000;
+        private final Map<String, Double> baseRates = new HashMap<>();
+        private double burst = 100;
+        private double decreaseFactor = 0.5;
+        private double minRate = 1;
+        private Duration recoveryTime = Duration.ofMinutes(1);
+        private VendorRegistry vendorRegistry;
+
+        private Builder() {
+        }
+
+        public RateLimiter build() {
+            return new RateLimiter(defaultRate, new HashMap<>(baseRates), burst, decreaseFactor, minRate, recoveryTime, vendorRegistry);
+        }
+
+        /**
+         * The base rate (in messages per second) for origins without an explicit rate.
+         *
+         * @param defaultRate
+         * @return
+         */
+        public Builder defaultRate(double defaultRate) {
+            this.defaultRate = requirePositive(defaultRate);
+            return this;
+        }
+
+        /**
+         * The base rate (in messages per second) for the given origin, e.g. "https://fcm.googleapis.com".
+         *
+         * @param origin
+         * @param rate
+         * @return
+         */
+        public Builder rate(String origin, double rate) {
+            this.baseRates.put(origin, requirePositive(rate));
+            return this;
+        }
+
+        /**
+         * Take the base rate of origins without an explicit rate from the profile of their vendor, if it has one.
+         *
+         * @param vendorRegistry
+         * @return
+         */
+        public Builder vendorRegistry(VendorRegistry vendorRegistry) {
+            this.vendorRegistry = vendorRegistry;
+            return this;
+        }
+
+        /**
+         * The maximum number of tokens a bucket can save up.
+         *
+         * @param burst
+         * @return
+         */
+        public Builder burst(double burst) {
+            this.burst = requirePositive(burst);
+            return this;
+        }
+
+        /**
+         * The factor the rate is multiplied with on every 429 response.
+         *
+         * @param decreaseFactor
+         * @return
+         */
+        public Builder decreaseFactor(double decreaseFactor) {
+            if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+                throw new IllegalArgumentException("The decrease factor must be between 0 and 1, " + decreaseFactor + " given.");
+            }
+
+            this.decreaseFactor = decreaseFactor;
+            return this;
+        }
+
+        /**
+         * The rate is never cut below this value.
+         *
+         * @param minRate
+         * @return
+         */
+        public Builder minRate(double minRate) {
+            this.minRate = requirePositive(minRate);
+            return this;
+        }
+
+        /**
+         * The time it takes a throttled rate to grow from zero back to the base rate.
+         *
+         * @param recoveryTime
+         * @return
+         */
+        public Builder recoveryTime(Duration recoveryTime) {
+            this.recoveryTime = recoveryTime;
+            return this;
+        }
+
+        private static double requirePositive(double value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException("Expected a positive number, " + value + " given.");
+            }
+
+            return value;
+        }
+    }
+}
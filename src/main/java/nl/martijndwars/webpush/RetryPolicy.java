@@ -0,0 +1,195 @@
+package nl.martijndwars.webpush;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Describes when and how often a failed push message is re-sent.
+ * <p>
+ * A send is retried when the push service answers with a retryable status code (429 or 5xx by default) or when the
+ * request fails with an {@link IOException}. The delay between attempts grows exponentially and is fully jittered,
+ * unless the push service sends a Retry-After header, in which case that delay is used instead.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8030#section-8.4">Push Message Reliability</a>
+ */
+public class RetryPolicy {
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final double multiplier;
+    private final Duration maxRetryAfter;
+    private final boolean retryTooManyRequests;
+
+    private RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, double multiplier, Duration maxRetryAfter, boolean retryTooManyRequests) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.multiplier = multiplier;
+        this.maxRetryAfter = maxRetryAfter;
+        this.retryTooManyRequests = retryTooManyRequests;
+    }
+
+    /**
+     * The maximum number of attempts, including the first one.
+     *
+     * @return
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Check if a response with the given status code should be retried.
+     *
+     * @param statusCode
+     * @return
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode >= 500 || (retryTooManyRequests && statusCode == 429);
+    }
+
+    /**
+     * Check if the given failure is a transport error that should be retried.
+     *
+     * @param throwable
+     * @return
+     */
+    public boolean isRetryable(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+
+        return throwable instanceof IOException;
+    }
+
+    /**
+     * Compute the delay before the next attempt.
+     *
+     * @param attempt    The number of attempts made so far (starting at 1).
+     * @param retryAfter The delay requested by the push service, if any.
+     * @return
+     */
+    public Duration delay(int attempt, Optional<Duration> retryAfter) {
+        if (retryAfter.isPresent()) {
+            Duration requested = retryAfter.get();
+
+            return requested.compareTo(maxRetryAfter) > 0 ? maxRetryAfter : requested;
+        }
+
+        double ceiling = initialBackoff.toNanos() * Math.pow(multiplier, attempt - 1);
+        long bound = (long) Math.min(ceiling, maxBackoff.toNanos());
+
+        return Duration.ofNanos(ThreadLocalRandom.current().nextLong(bound + 1));
+    }
+
+    /**
+     * Parse the Retry-After header, which is either a number of seconds or an HTTP-date.
+     *
+     * @param headers
+     * @return
+     * @see <a href="https://tools.ietf.org/html/rfc7231#section-7.1.3">Retry-After</a>
+     */
+    public static Optional<Duration> parseRetryAfter(HttpHeaders headers) {
+        Optional<String> value = headers.firstValue("Retry-After");
+
+        if (value.isEmpty()) {
+            return Optional.empty();
+        }
+
+        String retryAfter = value.get().trim();
+
+        try {
+            return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(retryAfter))));
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, try an HTTP-date
+        }
+
+        try {
+            Instant date = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            Duration delay = Duration.between(Instant.now(), date);
+
+            return Optional.of(delay.isNegative() ? Duration.ZERO : delay);
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int maxAttempts = 3;
+        private Duration initialBackoff = Duration.ofMillis(500);
+        private Duration maxBackoff = Duration.ofSeconds(30);
+        private double multiplier = 2.0;
+        private Duration maxRetryAfter = Duration.ofMinutes(5);
+        private boolean retryTooManyRequests = true;
+
+        private Builder() {
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier, maxRetryAfter, retryTooManyRequests);
+        }
+
+        public Builder maxAttempts(int maxAttempts) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("The number of attempts must be at least 1, " + maxAttempts + " given.");
+            }
+
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder initialBackoff(Duration initialBackoff) {
+            this.initialBackoff = initialBackoff;
+            return this;
+        }
+
+        public Builder maxBackoff(Duration maxBackoff) {
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        public Builder multiplier(double multiplier) {
+            if (multiplier < 1.0) {
+                throw new IllegalArgumentException("The backoff multiplier must be at least 1.0, " + multiplier + " given.");
+            }
+
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Cap the delay that a push service can request through the Retry-After header.
+         *
+         * @param maxRetryAfter
+         * @return
+         */
+        public Builder maxRetryAfter(Duration maxRetryAfter) {
+            this.maxRetryAfter = maxRetryAfter;
+            return this;
+        }
+
+        /**
+         * Whether to retry 429 (Too Many Requests) responses.
+         *
+         * @param retryTooManyRequests
+         * @return
+         */
+        public Builder retryTooManyRequests(boolean retryTooManyRequests) {
+            this.retryTooManyRequests = retryTooManyRequests;
+            return this;
+        }
+    }
+}
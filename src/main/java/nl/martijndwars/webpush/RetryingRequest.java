@@ -0,0 +1,115 @@
+package nl.martijndwars.webpush;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a prepared request and re-sends it according to a {@link RetryPolicy}.
+ * <p>
+ * The encrypted body and headers are reused across attempts, so a retry costs no key generation, ECDH, HKDF or
+ * AES-GCM work. The request is only prepared again when the VAPID token it carries is about to expire. No attempt
+ * is scheduled after the notification's deadline (or TTL) has passed, since it is no longer worth sending.
+ * <p>
+ * Every attempt goes through {@link AbstractPushService#transmit}, so it passes the circuit breaker of a
+ * {@link PushAsyncService}. Once the circuit of the origin is open, the next attempt fails with a
+ * {@link CircuitBreakerOpenException}, which is not retried.
+ */
+class RetryingRequest {
+    /**
+     * Re-sign the request when the VAPID token expires within this margin.
+     */
+    private static final Duration TOKEN_REFRESH_MARGIN = Duration.ofMinutes(5);
+
+    private final AbstractPushService<?> pushService;
+    private final RetryPolicy retryPolicy;
+    private final Notification notification;
+    private final Encoding encoding;
+    private final long deadline;
+    private final CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+
+    private HttpRequest request;
+    private long refreshAt;
+    private int attempts;
+
+    RetryingRequest(AbstractPushService<?> pushService, RetryPolicy retryPolicy, Notification notification, Encoding encoding, HttpRequest request) {
+        this.pushService = pushService;
+        this.retryPolicy = retryPolicy;
+        this.notification = notification;
+        this.encoding = encoding;
+        this.request = request;
+
+        long now = System.nanoTime();
+        this.deadline = notification.getExpiresAt() != Long.MAX_VALUE ? notification.getExpiresAt() : now + TimeUnit.SECONDS.toNanos(notification.getTTL());
+        this.refreshAt = refreshAt(now);
+    }
+
+    CompletableFuture<HttpResponse<String>> execute() {
+        attempt();
+
+        return result;
+    }
+
+    private void attempt() {
+        attempts++;
+
+        pushService.transmit(notification, request).whenComplete((response, throwable) -> {
+            if (throwable == null && !retryPolicy.isRetryable(response.statusCode())) {
+                result.complete(response);
+                return;
+            }
+
+            if (throwable != null && !retryPolicy.isRetryable(throwable)) {
+                result.completeExceptionally(throwable);
+                return;
+            }
+
+            Optional<Duration> retryAfter = response != null ? RetryPolicy.parseRetryAfter(response.headers()) : Optional.empty();
+            long delay = retryPolicy.delay(attempts, retryAfter).toNanos();
+
+            if (attempts >= retryPolicy.getMaxAttempts() || System.nanoTime() + delay - deadline >= 0) {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(response);
+                }
+                return;
+            }
+
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(this::retry);
+        });
+    }
+
+    private void retry() {
+        long now = System.nanoTime();
+
+        // Don't re-sign a request that the circuit breaker will reject anyway
+        if (pushService.isRejecting(notification)) {
+            result.completeExceptionally(new CircuitBreakerOpenException(notification.getOrigin()));
+            return;
+        }
+
+        if (now >= refreshAt) {
+            try {
+                request = pushService.preparePost(notification, encoding).build();
+                refreshAt = refreshAt(now);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+                return;
+            }
+        }
+
+        attempt();
+    }
+
+    private long refreshAt(long now) {
+        if (!pushService.vapidEnabled()) {
+            return Long.MAX_VALUE;
+        }
+
+        return now + AbstractPushService.VAPID_TOKEN_VALIDITY.minus(TOKEN_REFRESH_MARGIN).toNanos();
+    }
+}
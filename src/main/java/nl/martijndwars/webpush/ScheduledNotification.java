@@ -0,0 +1,66 @@
+package nl.martijndwars.webpush;
+
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A notification that is held back until a point in time, and the future for its response.
+ * <p>
+ * Cancelling the future before the notification is released removes it from the schedule. Once the notification has
+ * been released for sending, it can no longer be cancelled.
+ */
+public class ScheduledNotification extends CompletableFuture<HttpResponse<String>> {
+    private final Notification notification;
+    private final Encoding encoding;
+    private volatile TimingWheel<ScheduledNotification>.Timeout timeout;
+    private boolean released;
+
+    ScheduledNotification(Notification notification, Encoding encoding) {
+        this.notification = notification;
+        this.encoding = encoding;
+    }
+
+    public Notification getNotification() {
+        return notification;
+    }
+
+    Encoding getEncoding() {
+        return encoding;
+    }
+
+    void setTimeout(TimingWheel<ScheduledNotification>.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Take the notification out of the schedule for sending.
+     *
+     * @return False if the notification was cancelled.
+     */
+    synchronized boolean release() {
+        if (isDone()) {
+            return false;
+        }
+
+        released = true;
+
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (released || !super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+        }
+
+        TimingWheel<ScheduledNotification>.Timeout timeout = this.timeout;
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
+
+        return true;
+    }
+}
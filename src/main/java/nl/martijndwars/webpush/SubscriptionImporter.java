@@ -0,0 +1,775 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.math.ec.ECCurve;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Imports subscriptions from an export with one JSON object per line, in the shape of the browser's
+ * {@code PushSubscription.toJSON()}:
+ * <pre>
+ * {"endpoint":"https://...","expirationTime":null,"keys":{"p256dh":"BN...","auth":"tB..."}}
+ * </pre>
+ * <p>
+ * The export is parsed straight from the bytes of the channel or mapped file. The endpoint is unescaped and the keys
+ * are base64url-decoded into buffers that are reused for every record, so no strings are created per record. Records
+ * are collected in batches of fixed size, whose public keys are validated in parallel, after which the valid records
+ * are handed to the {@link Sink} in the order of the export. Memory use depends on the batch size and the buffer
+ * size, not on the size of the export.
+ * <p>
+ * Records that cannot be parsed or that hold an invalid key are skipped and reported to the
+ * {@link RejectionListener}. Unknown fields are ignored.
+ */
+public class SubscriptionImporter {
+    /**
+     * Receives the imported subscriptions, one at a time and in order. The arrays are reused for the next record, so
+     * they must be copied if they are kept, which {@link SubscriptionTable#add(byte[], int, byte[], byte[])} does.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * @param endpoint       The endpoint as UTF-8 bytes.
+         * @param endpointLength The number of bytes of the endpoint, starting at index 0.
+         * @param userPublicKey  The uncompressed public key (65 bytes), validated to be on the curve.
+         * @param userAuth       The auth secret (16 bytes).
+         */
+        void accept(byte[] endpoint, int endpointLength, byte[] userPublicKey, byte[] userAuth);
+    }
+
+    /**
+     * Receives the records that were skipped.
+     */
+    @FunctionalInterface
+    public interface RejectionListener {
+        void onRejected(long line, String reason);
+    }
+
+    private static final ECCurve CURVE = ECNamedCurveTable.getParameterSpec(Utils.CURVE).getCurve();
+
+    private static final int KEY_SIZE = SubscriptionTable.KEY_SIZE;
+    private static final int AUTH_SIZE = SubscriptionTable.AUTH_SIZE;
+
+    /**
+     * The largest part of a file that is mapped at once
+     */
+    private static final long MAPPED_WINDOW = 1L << 30;
+
+    /**
+     * Split validation into parts of at least this many records, so small batches are not spread over threads
+     */
+    private static final int MIN_PART_SIZE = 64;
+
+    private static final byte[] BASE64 = new byte[256];
+
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = (byte) i;
+        }
+
+        // Accept both the URL-safe and the standard alphabet
+        BASE64['-'] = BASE64['+'] = 62;
+        BASE64['_'] = BASE64['/'] = 63;
+    }
+
+    private final int batchSize;
+    private final int bufferSize;
+    private final int parallelism;
+    private final Executor executor;
+    private final RejectionListener rejectionListener;
+
+    private SubscriptionImporter(int batchSize, int bufferSize, int parallelism, Executor executor, RejectionListener rejectionListener) {
+        this.batchSize = batchSize;
+        this.bufferSize = bufferSize;
+        this.parallelism = parallelism;
+        this.executor = executor;
+        this.rejectionListener = rejectionListener;
+    }
+
+    /**
+     * Import the subscriptions read from the channel. The channel is not closed.
+     *
+     * @param channel
+     * @param sink
+     * @return The number of subscriptions handed to the sink.
+     * @throws IOException
+     */
+    public long importFrom(ReadableByteChannel channel, Sink sink) throws IOException {
+        Import state = new Import(sink);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+
+        while (true) {
+            boolean end = channel.read(buffer) == -1;
+            buffer.flip();
+
+            int consumed = state.lines(buffer, end);
+
+            if (end) {
+                break;
+            }
+
+            if (consumed == 0 && buffer.limit() == buffer.capacity()) {
+                // The buffer holds part of a single line; drop it and skip to the end of the line
+                state.skipLine();
+                buffer.clear();
+            } else {
+                buffer.position(consumed);
+                buffer.compact();
+            }
+        }
+
+        return state.finish();
+    }
+
+    /**
+     * Import the subscriptions from a file, which is mapped into memory instead of read through a buffer.
+     *
+     * @param path
+     * @param sink
+     * @return The number of subscriptions handed to the sink.
+     * @throws IOException
+     */
+    public long importFrom(Path path, Sink sink) throws IOException {
+        Import state = new Import(sink);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+
+            while (position < size) {
+                long length = Math.min(MAPPED_WINDOW, size - position);
+                boolean end = position + length == size;
+                int consumed = state.lines(channel.map(FileChannel.MapMode.READ_ONLY, position, length), end);
+
+                if (consumed == 0 && !end) {
+                    state.skipLine();
+                    consumed = (int) length;
+                }
+
+                position += consumed;
+            }
+        }
+
+        return state.finish();
+    }
+
+    /**
+     * The state of a single import: the current batch and the scratch buffers handed to the sink.
+     */
+    private class Import {
+        private final Sink sink;
+
+        private final long[] lines = new long[batchSize];
+        private final String[] errors = new String[batchSize];
+        private final int[] endpointOffsets = new int[batchSize];
+        private final int[] endpointLengths = new int[batchSize];
+        private final int[] keyLengths = new int[batchSize];
+        private final byte[] keys = new byte[batchSize * KEY_SIZE];
+        private final byte[] auths = new byte[batchSize * AUTH_SIZE];
+        private byte[] endpoints = new byte[batchSize * 256];
+        private int endpointPosition;
+        private int count;
+
+        private byte[] endpoint = new byte[256];
+        private final byte[] userPublicKey = new byte[KEY_SIZE];
+        private final byte[] userAuth = new byte[AUTH_SIZE];
+
+        private long line;
+        private boolean skipping;
+        private long imported;
+
+        // The line being parsed
+        private ByteBuffer buffer;
+        private int position;
+        private int limit;
+        private int stringEnd;
+
+        private Import(Sink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Handle the complete lines in the buffer, and the trailing partial line at the end of the input.
+         *
+         * @return The index of the first byte that was not handled.
+         */
+        int lines(ByteBuffer buffer, boolean end) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+
+            for (int i = start; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    line(buffer, start, i);
+                    start = i + 1;
+                }
+            }
+
+            if (end && start < limit) {
+                line(buffer, start, limit);
+                start = limit;
+            }
+
+            return start;
+        }
+
+        /**
+         * Reject the line being read, which does not fit in the buffer, and ignore the rest of it.
+         */
+        void skipLine() {
+            if (!skipping) {
+                skipping = true;
+                reject(line + 1, "The line does not fit in the buffer of " + bufferSize + " bytes.");
+            }
+        }
+
+        long finish() {
+            flush();
+
+            return imported;
+        }
+
+        private void line(ByteBuffer buffer, int start, int end) {
+            line++;
+
+            if (skipping) {
+                skipping = false;
+                return;
+            }
+
+            this.buffer = buffer;
+            this.position = start;
+            this.limit = end;
+
+            skipWhitespace();
+
+            if (position == limit) {
+                return;
+            }
+
+            int slot = count;
+            int endpointStart = endpointPosition;
+
+            try {
+                parse(slot);
+            } catch (MalformedRecordException e) {
+                endpointPosition = endpointStart;
+                reject(line, e.getMessage());
+                return;
+            }
+
+            lines[slot] = line;
+            errors[slot] = null;
+
+            if (++count == batchSize) {
+                flush();
+            }
+        }
+
+        private void reject(long line, String reason) {
+            lines[count] = line;
+            errors[count] = reason;
+
+            if (++count == batchSize) {
+                flush();
+            }
+        }
+
+        private void parse(int slot) throws MalformedRecordException {
+            boolean hasEndpoint = false;
+            boolean hasKey = false;
+            boolean hasAuth = false;
+
+            expect('{');
+
+            if (!consume('}')) {
+                do {
+                    int name = string();
+                    expect(':');
+
+                    if (nameEquals(name, "endpoint")) {
+                        endpoint(slot);
+                        hasEndpoint = true;
+                    } else if (nameEquals(name, "keys") && peek() == '{') {
+                        expect('{');
+
+                        if (!consume('}')) {
+                            do {
+                                int key = string();
+                                expect(':');
+
+                                if (nameEquals(key, "p256dh")) {
+                                    keyLengths[slot] = base64(keys, slot * KEY_SIZE, KEY_SIZE);
+                                    hasKey = true;
+                                } else if (nameEquals(key, "auth")) {
+                                    if (base64(auths, slot * AUTH_SIZE, AUTH_SIZE) != AUTH_SIZE) {
+                                        throw new MalformedRecordException("The auth secret must be " + AUTH_SIZE + " bytes.");
+                                    }
+                                    hasAuth = true;
+                                } else {
+                                    skipValue();
+                                }
+                            } while (consume(','));
+
+                            expect('}');
+                        }
+                    } else {
+                        skipValue();
+                    }
+                } while (consume(','));
+
+                expect('}');
+            }
+
+            skipWhitespace();
+
+            if (position != limit) {
+                throw new MalformedRecordException("Unexpected characters after the object.");
+            }
+
+            if (!hasEndpoint || !hasKey || !hasAuth) {
+                throw new MalformedRecordException("The endpoint, keys.p256dh or keys.auth is missing.");
+            }
+        }
+
+        /**
+         * Unescape the endpoint string into the endpoint bytes of the batch.
+         */
+        private void endpoint(int slot) throws MalformedRecordException {
+            expect('"');
+
+            // Unescaping never makes a string longer, so the rest of the line is an upper bound
+            if (endpointPosition + limit - position > endpoints.length) {
+                endpoints = Arrays.copyOf(endpoints, Math.max(2 * endpoints.length, endpointPosition + limit - position));
+            }
+
+            int start = endpointPosition;
+            int out = start;
+
+            while (true) {
+                byte b = next();
+
+                if (b == '"') {
+                    break;
+                }
+
+                if (b != '\\') {
+                    endpoints[out++] = b;
+                    continue;
+                }
+
+                byte escaped = next();
+
+                switch (escaped) {
+                    case '"', '\\', '/' -> endpoints[out++] = escaped;
+                    case 'b' -> endpoints[out++] = '\b';
+                    case 'f' -> endpoints[out++] = '\f';
+                    case 'n' -> endpoints[out++] = '\n';
+                    case 'r' -> endpoints[out++] = '\r';
+                    case 't' -> endpoints[out++] = '\t';
+                    case 'u' -> out = utf8(codePoint(), endpoints, out);
+                    default -> throw new MalformedRecordException("Invalid escape in the endpoint.");
+                }
+            }
+
+            if (out == start) {
+                throw new MalformedRecordException("The endpoint is empty.");
+            }
+
+            endpointOffsets[slot] = start;
+            endpointLengths[slot] = out - start;
+            endpointPosition = out;
+        }
+
+        /**
+         * Read the code point of a {@code \}{@code u} escape, combining a surrogate pair.
+         */
+        private int codePoint() throws MalformedRecordException {
+            char c = hex4();
+
+            if (Character.isHighSurrogate(c) && limit - position >= 6 && buffer.get(position) == '\\' && buffer.get(position + 1) == 'u') {
+                position += 2;
+                char low = hex4();
+
+                if (Character.isLowSurrogate(low)) {
+                    return Character.toCodePoint(c, low);
+                }
+
+                throw new MalformedRecordException("Invalid surrogate pair in the endpoint.");
+            }
+
+            return c;
+        }
+
+        private char hex4() throws MalformedRecordException {
+            int value = 0;
+
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(next(), 16);
+
+                if (digit < 0) {
+                    throw new MalformedRecordException("Invalid unicode escape in the endpoint.");
+                }
+
+                value = value << 4 | digit;
+            }
+
+            return (char) value;
+        }
+
+        /**
+         * Decode a base64url string into the destination. Padding is allowed but not required.
+         *
+         * @return The number of bytes decoded.
+         */
+        private int base64(byte[] destination, int offset, int capacity) throws MalformedRecordException {
+            expect('"');
+
+            int bits = 0;
+            int bitCount = 0;
+            int out = 0;
+
+            while (true) {
+                byte b = next();
+
+                if (b == '"') {
+                    break;
+                }
+
+                if (b == '=') {
+                    continue;
+                }
+
+                int value = BASE64[b & 0xFF];
+
+                if (value < 0) {
+                    throw new MalformedRecordException("Invalid base64 in the keys.");
+                }
+
+                bits = bits << 6 | value;
+                bitCount += 6;
+
+                if (bitCount >= 8) {
+                    bitCount -= 8;
+
+                    if (out == capacity) {
+                        throw new MalformedRecordException("A key is longer than " + capacity + " bytes.");
+                    }
+
+                    destination[offset + out++] = (byte) (bits >> bitCount);
+                }
+            }
+
+            return out;
+        }
+
+        /**
+         * Read a string without unescaping it.
+         *
+         * @return The index of the first character of the string; the closing quote is at {@code stringEnd}.
+         */
+        private int string() throws MalformedRecordException {
+            expect('"');
+
+            int start = position;
+
+            while (true) {
+                byte b = next();
+
+                if (b == '"') {
+                    stringEnd = position - 1;
+                    return start;
+                }
+
+                if (b == '\\') {
+                    next();
+                }
+            }
+        }
+
+        private boolean nameEquals(int start, String name) {
+            if (stringEnd - start != name.length()) {
+                return false;
+            }
+
+            for (int i = 0; i < name.length(); i++) {
+                if (buffer.get(start + i) != name.charAt(i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void skipValue() throws MalformedRecordException {
+            skipWhitespace();
+
+            int depth = 0;
+
+            do {
+                byte b = peek();
+
+                if (b == '"') {
+                    string();
+                } else if (b == '{' || b == '[') {
+                    position++;
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (depth == 0) {
+                        throw new MalformedRecordException("Expected a value.");
+                    }
+
+                    position++;
+                    depth--;
+                } else if (b == ',' || b == ':') {
+                    if (depth == 0) {
+                        throw new MalformedRecordException("Expected a value.");
+                    }
+
+                    position++;
+                } else {
+                    // A number or a literal
+                    while (position < limit && "{}[],:\" \t\r\n".indexOf(buffer.get(position)) < 0) {
+                        position++;
+                    }
+                }
+            } while (depth > 0);
+        }
+
+        private void expect(char c) throws MalformedRecordException {
+            if (!consume(c)) {
+                throw new MalformedRecordException("Expected '" + c + "'.");
+            }
+        }
+
+        private boolean consume(char c) throws MalformedRecordException {
+            if (peek() != c) {
+                return false;
+            }
+
+            position++;
+            return true;
+        }
+
+        /**
+         * Skip whitespace and return the next byte without consuming it.
+         */
+        private byte peek() throws MalformedRecordException {
+            skipWhitespace();
+
+            if (position == limit) {
+                throw new MalformedRecordException("Unexpected end of the line.");
+            }
+
+            return buffer.get(position);
+        }
+
+        private byte next() throws MalformedRecordException {
+            if (position == limit) {
+                throw new MalformedRecordException("Unexpected end of the line.");
+            }
+
+            return buffer.get(position++);
+        }
+
+        private void skipWhitespace() {
+            while (position < limit && isWhitespace(buffer.get(position))) {
+                position++;
+            }
+        }
+
+        /**
+         * Validate the public keys of the batch in parallel, then hand the records to the sink in order.
+         */
+        private void flush() {
+            if (count == 0) {
+                return;
+            }
+
+            int parts = Math.max(1, Math.min(parallelism, count / MIN_PART_SIZE));
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[parts - 1];
+
+            for (int part = 0; part < parts - 1; part++) {
+                int from = part * count / parts;
+                int to = (part + 1) * count / parts;
+                futures[part] = CompletableFuture.runAsync(() -> validate(from, to), executor);
+            }
+
+            validate((parts - 1) * count / parts, count);
+            CompletableFuture.allOf(futures).join();
+
+            for (int i = 0; i < count; i++) {
+                if (errors[i] != null) {
+                    if (rejectionListener != null) {
+                        rejectionListener.onRejected(lines[i], errors[i]);
+                    }
+
+                    continue;
+                }
+
+                if (endpointLengths[i] > endpoint.length) {
+                    endpoint = new byte[endpointLengths[i]];
+                }
+
+                System.arraycopy(endpoints, endpointOffsets[i], endpoint, 0, endpointLengths[i]);
+                System.arraycopy(keys, i * KEY_SIZE, userPublicKey, 0, KEY_SIZE);
+                System.arraycopy(auths, i * AUTH_SIZE, userAuth, 0, AUTH_SIZE);
+
+                sink.accept(endpoint, endpointLengths[i], userPublicKey, userAuth);
+                imported++;
+            }
+
+            count = 0;
+            endpointPosition = 0;
+        }
+
+        /**
+         * Check that the public keys are points on the curve, and decompress compressed keys.
+         */
+        private void validate(int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (errors[i] != null) {
+                    continue;
+                }
+
+                int offset = i * KEY_SIZE;
+                int length = keyLengths[i];
+                boolean uncompressed = length == KEY_SIZE && keys[offset] == 0x04;
+                boolean compressed = length == SubscriptionTable.COMPRESSED_KEY_SIZE && (keys[offset] == 0x02 || keys[offset] == 0x03);
+
+                if (!uncompressed && !compressed) {
+                    errors[i] = "Expected an encoded P-256 point of 65 or 33 bytes.";
+                    continue;
+                }
+
+                try {
+                    byte[] point = CURVE.decodePoint(Arrays.copyOfRange(keys, offset, offset + length)).getEncoded(false);
+                    System.arraycopy(point, 0, keys, offset, KEY_SIZE);
+                } catch (IllegalArgumentException e) {
+                    errors[i] = "The public key is not a point on the curve.";
+                }
+            }
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * Encode a code point as UTF-8.
+     *
+     * @return The index after the last byte written.
+     */
+    private static int utf8(int codePoint, byte[] destination, int offset) {
+        if (codePoint < 0x80) {
+            destination[offset++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            destination[offset++] = (byte) (0xC0 | codePoint >> 6);
+            destination[offset++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000) {
+            destination[offset++] = (byte) (0xE0 | codePoint >> 12);
+            destination[offset++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            destination[offset++] = (byte) (0x80 | codePoint & 0x3F);
+        } else {
+            destination[offset++] = (byte) (0xF0 | codePoint >> 18);
+            destination[offset++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            destination[offset++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            destination[offset++] = (byte) (0x80 | codePoint & 0x3F);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Thrown while parsing a record that is not valid. Records are rejected without a stack trace.
+     */
+    private static class MalformedRecordException extends Exception {
+        MalformedRecordException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int batchSize = 4096;
+        private int bufferSize = 1024 * 1024;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private Executor executor = ForkJoinPool.commonPool();
+        private RejectionListener rejectionListener;
+
+        private Builder() {
+        }
+
+        public SubscriptionImporter build() {
+            return new SubscriptionImporter(batchSize, bufferSize, parallelism, executor, rejectionListener);
+        }
+
+        /**
+         * The number of records whose keys are validated together before they are handed to the sink.
+         *
+         * @param batchSize
+         * @return
+         */
+        public Builder batchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("The batch size must be at least 1, " + batchSize + " given.");
+            }
+
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * The size of the read buffer, which bounds the length of a line. Longer lines are rejected.
+         *
+         * @param bufferSize
+         * @return
+         */
+        public Builder bufferSize(int bufferSize) {
+            if (bufferSize < 256) {
+                throw new IllegalArgumentException("The buffer size must be at least 256 bytes, " + bufferSize + " given.");
+            }
+
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Validate the keys of a batch on at most this many threads of the given executor, including the importing
+         * thread.
+         *
+         * @param parallelism
+         * @param executor
+         * @return
+         */
+        public Builder parallelism(int parallelism, Executor executor) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("The parallelism must be at least 1, " + parallelism + " given.");
+            }
+
+            this.parallelism = parallelism;
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder rejectionListener(RejectionListener rejectionListener) {
+            this.rejectionListener = rejectionListener;
+            return this;
+        }
+    }
+}
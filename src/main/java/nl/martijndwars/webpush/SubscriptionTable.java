@@ -0,0 +1,442 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.math.ec.ECCurve;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A compact, append-only table of subscriptions, stored in direct (off-heap) memory.
+ * <p>
+ * Subscriptions are stored in columns of fixed-size rows: the user public key as raw bytes (65 bytes, or 33 bytes
+ * with point compression), the 16-byte auth secret, and the endpoint split into a prefix and a suffix. The prefix is
+ * everything up to the last slash (such as {@code https://fcm.googleapis.com/fcm/send/}), which is shared by many
+ * subscriptions and stored once in a dictionary. The suffix is stored in a separate heap of bytes. Memory is
+ * allocated in chunks of 64 MB, so the table holds no objects per subscription and adds nothing for the garbage
+ * collector to trace.
+ * <p>
+ * Rows are added by a single thread at a time. Rows below {@link #size()} can be read concurrently, for instance by
+ * iterating with a {@link Cursor} while more rows are added.
+ */
+public class SubscriptionTable {
+    public static final int KEY_SIZE = 65;
+    public static final int COMPRESSED_KEY_SIZE = 33;
+    public static final int AUTH_SIZE = 16;
+
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Prefix id (2 bytes), suffix length (2 bytes), suffix chunk (4 bytes) and suffix offset (4 bytes)
+     */
+    private static final int ENDPOINT_SIZE = 12;
+    private static final int MAX_PREFIXES = 1 << 16;
+
+    private static final ECCurve CURVE = ECNamedCurveTable.getParameterSpec(Utils.CURVE).getCurve();
+
+    private final boolean compressedKeys;
+    private final int chunkSize;
+    private final int keySize;
+    private final int rowSize;
+    private final int rowsPerChunk;
+
+    // Replaced by a larger copy when a chunk is added, so readers need no lock
+    private volatile ByteBuffer[] rows = new ByteBuffer[0];
+    private volatile ByteBuffer[] suffixes = new ByteBuffer[0];
+    // Prefix 0 is the empty prefix, for endpoints whose prefix does not fit in the dictionary
+    private volatile String[] prefixes = {""};
+    private int suffixPosition;
+
+    // Open addressing table from prefix bytes to prefix id, where 0 marks a free slot
+    private int[] prefixSlots = new int[256];
+    private byte[][] prefixBytes = {new byte[0]};
+
+    private volatile long size;
+
+    /**
+     * Create a table that stores keys uncompressed, which makes reading them cheaper.
+     */
+    public SubscriptionTable() {
+        this(false);
+    }
+
+    /**
+     * @param compressedKeys Store public keys with point compression, which saves 32 bytes per subscription at the
+     *                       cost of decompressing the key when it is read.
+     */
+    public SubscriptionTable(boolean compressedKeys) {
+        this(compressedKeys, DEFAULT_CHUNK_SIZE);
+    }
+
+    SubscriptionTable(boolean compressedKeys, int chunkSize) {
+        this.compressedKeys = compressedKeys;
+        this.chunkSize = chunkSize;
+        this.keySize = compressedKeys ? COMPRESSED_KEY_SIZE : KEY_SIZE;
+        this.rowSize = ENDPOINT_SIZE + keySize + AUTH_SIZE;
+        this.rowsPerChunk = chunkSize / rowSize;
+    }
+
+    /**
+     * Add a subscription as received from the browser.
+     *
+     * @param subscription
+     * @return The row of the subscription.
+     */
+    public long add(Subscription subscription) {
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+
+        return add(subscription.endpoint, decoder.decode(subscription.keys.p256dh), decoder.decode(subscription.keys.auth));
+    }
+
+    /**
+     * Add a subscription.
+     *
+     * @param endpoint
+     * @param userPublicKey The public key, uncompressed (65 bytes) or compressed (33 bytes).
+     * @param userAuth      The 16-byte auth secret.
+     * @return The row of the subscription.
+     */
+    public long add(String endpoint, byte[] userPublicKey, byte[] userAuth) {
+        byte[] bytes = endpoint.getBytes(UTF_8);
+
+        return add(bytes, bytes.length, userPublicKey, userAuth);
+    }
+
+    /**
+     * Add a subscription with the endpoint given as UTF-8 bytes. The arrays are copied, so they can be reused once
+     * this returns.
+     *
+     * @param endpoint       The endpoint, as UTF-8 bytes.
+     * @param endpointLength The number of bytes of the endpoint, starting at index 0.
+     * @param userPublicKey  The public key, uncompressed (65 bytes) or compressed (33 bytes).
+     * @param userAuth       The 16-byte auth secret.
+     * @return The row of the subscription.
+     */
+    public synchronized long add(byte[] endpoint, int endpointLength, byte[] userPublicKey, byte[] userAuth) {
+        if (userAuth.length != AUTH_SIZE) {
+            throw new IllegalArgumentException("The auth secret must be " + AUTH_SIZE + " bytes, " + userAuth.length + " given.");
+        }
+
+        byte[] key = convertKey(userPublicKey);
+
+        // A slash never occurs inside a multi-byte UTF-8 sequence, so the bytes can be split like the string
+        int split = endpointLength;
+        while (split > 0 && endpoint[split - 1] != '/') {
+            split--;
+        }
+
+        int prefixId = prefixId(endpoint, split);
+        int suffixStart = prefixId == 0 ? 0 : split;
+        int suffixLength = endpointLength - suffixStart;
+
+        if (suffixLength > 0xFFFF) {
+            throw new IllegalArgumentException("The endpoint is too long.");
+        }
+
+        ByteBuffer suffixChunk = allocateSuffix(suffixLength);
+        int suffixOffset = suffixPosition;
+        suffixChunk.put(suffixOffset, endpoint, suffixStart, suffixLength);
+        suffixPosition += suffixLength;
+
+        long row = size;
+        ByteBuffer chunk = rowChunk(row);
+        int offset = (int) (row % rowsPerChunk) * rowSize;
+
+        chunk.putShort(offset, (short) prefixId);
+        chunk.putShort(offset + 2, (short) suffixLength);
+        chunk.putInt(offset + 4, suffixes.length - 1);
+        chunk.putInt(offset + 8, suffixOffset);
+        chunk.put(offset + ENDPOINT_SIZE, key);
+        chunk.put(offset + ENDPOINT_SIZE + keySize, userAuth);
+
+        // Publishes the row to readers
+        size = row + 1;
+
+        return row;
+    }
+
+    /**
+     * Get the number of subscriptions in the table.
+     *
+     * @return
+     */
+    public long size() {
+        return size;
+    }
+
+    public boolean hasCompressedKeys() {
+        return compressedKeys;
+    }
+
+    /**
+     * Get the number of bytes of direct memory allocated by the table.
+     *
+     * @return
+     */
+    public long getMemoryUsage() {
+        return (long) (rows.length + suffixes.length) * chunkSize;
+    }
+
+    public String getEndpoint(long row) {
+        ByteBuffer chunk = chunk(row);
+        int offset = offset(row);
+
+        int prefixId = Short.toUnsignedInt(chunk.getShort(offset));
+        byte[] suffix = new byte[Short.toUnsignedInt(chunk.getShort(offset + 2))];
+        suffixes[chunk.getInt(offset + 4)].get(chunk.getInt(offset + 8), suffix);
+
+        return prefixes[prefixId] + new String(suffix, UTF_8);
+    }
+
+    /**
+     * Get the shared prefix of the endpoint, such as {@code https://fcm.googleapis.com/fcm/send/}. This does not
+     * allocate.
+     *
+     * @param row
+     * @return
+     */
+    public String getEndpointPrefix(long row) {
+        return prefixes[Short.toUnsignedInt(chunk(row).getShort(offset(row)))];
+    }
+
+    /**
+     * Copy the uncompressed public key into the given array.
+     *
+     * @param row
+     * @param destination An array of at least 65 bytes.
+     */
+    public void getUserPublicKey(long row, byte[] destination) {
+        ByteBuffer chunk = chunk(row);
+        int offset = offset(row) + ENDPOINT_SIZE;
+
+        if (!compressedKeys) {
+            chunk.get(offset, destination, 0, KEY_SIZE);
+            return;
+        }
+
+        byte[] compressed = new byte[COMPRESSED_KEY_SIZE];
+        chunk.get(offset, compressed);
+        System.arraycopy(CURVE.decodePoint(compressed).getEncoded(false), 0, destination, 0, KEY_SIZE);
+    }
+
+    /**
+     * Copy the auth secret into the given array.
+     *
+     * @param row
+     * @param destination An array of at least 16 bytes.
+     */
+    public void getUserAuth(long row, byte[] destination) {
+        chunk(row).get(offset(row) + ENDPOINT_SIZE + keySize, destination, 0, AUTH_SIZE);
+    }
+
+    /**
+     * Start a notification for the subscription in the given row, with the endpoint and keys filled in.
+     *
+     * @param row
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public Notification.NotificationBuilder notification(long row) throws GeneralSecurityException {
+        byte[] userPublicKey = new byte[KEY_SIZE];
+        byte[] userAuth = new byte[AUTH_SIZE];
+        getUserPublicKey(row, userPublicKey);
+        getUserAuth(row, userAuth);
+
+        return Notification.builder()
+                .endpoint(getEndpoint(row))
+                .userPublicKey(userPublicKey)
+                .userAuth(userAuth);
+    }
+
+    /**
+     * Iterate over the rows in order.
+     *
+     * @return
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A position in the table. Moving the cursor does not allocate.
+     */
+    public class Cursor {
+        private long row = -1;
+
+        /**
+         * Move to the next row.
+         *
+         * @return False if there are no more rows.
+         */
+        public boolean next() {
+            if (row + 1 >= size) {
+                return false;
+            }
+
+            row++;
+            return true;
+        }
+
+        public long getRow() {
+            return row;
+        }
+
+        public String getEndpoint() {
+            return SubscriptionTable.this.getEndpoint(row);
+        }
+
+        public String getEndpointPrefix() {
+            return SubscriptionTable.this.getEndpointPrefix(row);
+        }
+
+        public void getUserPublicKey(byte[] destination) {
+            SubscriptionTable.this.getUserPublicKey(row, destination);
+        }
+
+        public void getUserAuth(byte[] destination) {
+            SubscriptionTable.this.getUserAuth(row, destination);
+        }
+
+        public Notification.NotificationBuilder notification() throws GeneralSecurityException {
+            return SubscriptionTable.this.notification(row);
+        }
+    }
+
+    /**
+     * Convert a public key to the stored form. Compressing is a matter of dropping the y coordinate; only
+     * decompressing needs curve arithmetic.
+     */
+    private byte[] convertKey(byte[] userPublicKey) {
+        if (userPublicKey.length == KEY_SIZE && userPublicKey[0] == 0x04) {
+            if (!compressedKeys) {
+                return userPublicKey;
+            }
+
+            byte[] compressed = new byte[COMPRESSED_KEY_SIZE];
+            compressed[0] = (byte) (0x02 | (userPublicKey[KEY_SIZE - 1] & 1));
+            System.arraycopy(userPublicKey, 1, compressed, 1, 32);
+
+            return compressed;
+        }
+
+        if (userPublicKey.length == COMPRESSED_KEY_SIZE && (userPublicKey[0] == 0x02 || userPublicKey[0] == 0x03)) {
+            return compressedKeys ? userPublicKey : CURVE.decodePoint(userPublicKey).getEncoded(false);
+        }
+
+        throw new IllegalArgumentException("Expected an encoded P-256 point of 65 or 33 bytes, " + userPublicKey.length + " bytes given.");
+    }
+
+    /**
+     * Look up or add the prefix made up of the first bytes of the endpoint. Must be called while holding the lock.
+     */
+    private int prefixId(byte[] endpoint, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int mask = prefixSlots.length - 1;
+        int slot = (int) hash(endpoint, length) & mask;
+
+        for (int id; (id = prefixSlots[slot]) != 0; slot = (slot + 1) & mask) {
+            if (Arrays.equals(prefixBytes[id], 0, prefixBytes[id].length, endpoint, 0, length)) {
+                return id;
+            }
+        }
+
+        if (prefixes.length == MAX_PREFIXES) {
+            return 0;
+        }
+
+        int id = prefixes.length;
+        prefixBytes = Arrays.copyOf(prefixBytes, id + 1);
+        prefixBytes[id] = Arrays.copyOf(endpoint, length);
+        prefixSlots[slot] = id;
+
+        String[] grown = Arrays.copyOf(prefixes, id + 1);
+        grown[id] = new String(endpoint, 0, length, UTF_8);
+        prefixes = grown;
+
+        // Keep the open addressing table at most half full
+        if (2 * id > mask) {
+            prefixSlots = new int[2 * prefixSlots.length];
+
+            for (int i = 1; i <= id; i++) {
+                int s = (int) hash(prefixBytes[i], prefixBytes[i].length) & (prefixSlots.length - 1);
+
+                while (prefixSlots[s] != 0) {
+                    s = (s + 1) & (prefixSlots.length - 1);
+                }
+
+                prefixSlots[s] = i;
+            }
+        }
+
+        return id;
+    }
+
+    /**
+     * 64-bit FNV-1a over the bytes, followed by a finalizer that spreads the bits.
+     */
+    private static long hash(byte[] bytes, int length) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < length; i++) {
+            hash ^= bytes[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    private ByteBuffer chunk(long row) {
+        long size = this.size;
+
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " is out of bounds for a table of " + size + " rows.");
+        }
+
+        return rows[(int) (row / rowsPerChunk)];
+    }
+
+    private int offset(long row) {
+        return (int) (row % rowsPerChunk) * rowSize;
+    }
+
+    /**
+     * Get the chunk for a new row, allocating it if needed. Must be called while holding the lock.
+     */
+    private ByteBuffer rowChunk(long row) {
+        int index = (int) (row / rowsPerChunk);
+
+        if (index == rows.length) {
+            ByteBuffer[] grown = Arrays.copyOf(rows, index + 1);
+            grown[index] = ByteBuffer.allocateDirect(chunkSize);
+            rows = grown;
+        }
+
+        return rows[index];
+    }
+
+    /**
+     * Get a suffix chunk with room for the given number of bytes, allocating it if needed. Must be called while
+     * holding the lock.
+     */
+    private ByteBuffer allocateSuffix(int length) {
+        if (suffixes.length == 0 || suffixPosition + length > chunkSize) {
+            ByteBuffer[] grown = Arrays.copyOf(suffixes, suffixes.length + 1);
+            grown[suffixes.length] = ByteBuffer.allocateDirect(chunkSize);
+            suffixes = grown;
+            suffixPosition = 0;
+        }
+
+        return suffixes[suffixes.length - 1];
+    }
+}
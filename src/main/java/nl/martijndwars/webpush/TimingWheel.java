@@ -0,0 +1,326 @@
+package nl.martijndwars.webpush;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel, for holding on to large numbers of values until a point in time.
+ * <p>
+ * Time is divided into ticks, and the wheel has one bucket per tick that is reused every revolution. Scheduling and
+ * cancelling are O(1) and never take a lock: both are handed to a single worker thread through a lock-free queue. On
+ * every tick, the worker collects the values in the current bucket whose deadline has been reached, and passes them to
+ * the handler as one batch. Each scheduled value costs a single {@link Timeout} node.
+ * <p>
+ * Values are released at most one tick late. The worker thread is a daemon thread that is started on first use.
+ */
+public class TimingWheel<T> {
+    private final long tickDuration;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final Consumer<List<T>> handler;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final long startTime = System.nanoTime();
+
+    private volatile Thread worker;
+    private volatile boolean stopped;
+
+    /**
+     * Only accessed by the worker thread
+     */
+    private long tick;
+
+    /**
+     * @param tickDuration  The resolution of the wheel.
+     * @param ticksPerWheel The number of buckets, rounded up to a power of two.
+     * @param handler       Receives the values whose deadline was reached, one batch per tick. Called on the worker
+     *                      thread, so it should hand expensive work off to another thread.
+     */
+    public TimingWheel(Duration tickDuration, int ticksPerWheel, Consumer<List<T>> handler) {
+        if (tickDuration.toMillis() < 1 || ticksPerWheel < 1 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("Expected a tick of at least 1 ms and between 1 and 2^30 ticks per wheel.");
+        }
+
+        int size = ticksPerWheel == 1 ? 1 : Integer.highestOneBit(ticksPerWheel - 1) << 1;
+
+        this.tickDuration = tickDuration.toNanos();
+        this.buckets = newBuckets(size);
+        this.mask = size - 1;
+        this.handler = handler;
+
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * An array of a generic type cannot be created, so an array of wildcard buckets is cast; it only ever holds buckets
+     * of this wheel.
+     */
+    @SuppressWarnings("unchecked")
+    private Bucket[] newBuckets(int size) {
+        return (Bucket[]) new TimingWheel<?>.Bucket[size];
+    }
+
+    /**
+     * Release the given value after the given delay.
+     *
+     * @param value
+     * @param delay
+     * @return A handle that can be used to cancel the timeout.
+     */
+    public Timeout schedule(T value, Duration delay) {
+        if (stopped) {
+            throw new IllegalStateException("The timing wheel has been stopped.");
+        }
+
+        long deadline = System.nanoTime() - startTime + Math.max(0, delay.toNanos());
+        Timeout timeout = new Timeout(value, (deadline + tickDuration - 1) / tickDuration);
+
+        pending.incrementAndGet();
+        added.add(timeout);
+        start();
+
+        return timeout;
+    }
+
+    /**
+     * Release the given value at the given point in time.
+     *
+     * @param value
+     * @param at
+     * @return A handle that can be used to cancel the timeout.
+     */
+    public Timeout schedule(T value, Instant at) {
+        return schedule(value, Duration.between(Instant.now(), at));
+    }
+
+    /**
+     * Get the number of values that have been scheduled, but not yet released or cancelled.
+     *
+     * @return
+     */
+    public long size() {
+        return pending.get();
+    }
+
+    /**
+     * Stop the worker thread. Values that were not yet released are dropped.
+     */
+    public void stop() {
+        stopped = true;
+
+        Thread thread = worker;
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void start() {
+        if (worker != null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (worker == null) {
+                Thread thread = new Thread(this::run, "webpush-timing-wheel");
+                thread.setDaemon(true);
+                thread.start();
+                worker = thread;
+            }
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = startTime + (tick + 1) * tickDuration;
+            long sleep;
+
+            while ((sleep = deadline - System.nanoTime()) > 0 && !stopped) {
+                LockSupport.parkNanos(this, sleep);
+            }
+
+            if (stopped) {
+                return;
+            }
+
+            removeCancelled();
+            transferAdded();
+
+            List<T> expired = new ArrayList<>();
+            buckets[(int) (tick & mask)].expire(tick, expired);
+            tick++;
+
+            if (!expired.isEmpty()) {
+                try {
+                    handler.accept(expired);
+                } catch (RuntimeException e) {
+                    Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+                }
+            }
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state != Timeout.PENDING) {
+                continue;
+            }
+
+            // A deadline that has already passed goes into the current bucket
+            buckets[(int) (Math.max(timeout.deadline, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * A value waiting in the wheel.
+     */
+    public class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<TimingWheel.Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(TimingWheel.Timeout.class, "state");
+
+        private final T value;
+
+        /**
+         * The tick, counted from the start of the wheel, at which the value is released
+         */
+        private final long deadline;
+
+        private volatile int state;
+
+        // Only accessed by the worker thread
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(T value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout, unless its value has already been released.
+         *
+         * @return Whether the timeout was cancelled by this call.
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+
+            pending.decrementAndGet();
+            cancelled.add(this);
+
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        private boolean expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                return false;
+            }
+
+            pending.decrementAndGet();
+
+            return true;
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts. Only accessed by the worker thread.
+     */
+    private class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Remove the timeouts that are due at the given tick, and collect their values. Timeouts for a later revolution
+         * of the wheel stay in place.
+         */
+        void expire(long tick, List<T> expired) {
+            Timeout timeout = head;
+
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                if (timeout.deadline <= tick) {
+                    remove(timeout);
+
+                    if (timeout.expire()) {
+                        expired.add(timeout.value);
+                    }
+                }
+
+                timeout = next;
+            }
+        }
+    }
+}
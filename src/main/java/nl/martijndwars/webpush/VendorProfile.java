@@ -0,0 +1,153 @@
+package nl.martijndwars.webpush;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+
+/**
+ * Settings for sending to the push service of a single vendor. Settings that are left out fall back to the defaults
+ * of the HTTP client and the limiters.
+ */
+public class VendorProfile {
+    /**
+     * A profile that leaves every setting to the defaults.
+     */
+    public static final VendorProfile DEFAULT = builder().build();
+
+    private final HttpClient.Version httpVersion;
+    private final int maxConcurrency;
+    private final double rate;
+    private final Duration timeout;
+    private final String rewriteFrom;
+    private final String rewriteTo;
+
+    private VendorProfile(HttpClient.Version httpVersion, int maxConcurrency, double rate, Duration timeout, String rewriteFrom, String rewriteTo) {
+        this.httpVersion = httpVersion;
+        this.maxConcurrency = maxConcurrency;
+        this.rate = rate;
+        this.timeout = timeout;
+        this.rewriteFrom = rewriteFrom;
+        this.rewriteTo = rewriteTo;
+    }
+
+    public Optional<HttpClient.Version> getHttpVersion() {
+        return Optional.ofNullable(httpVersion);
+    }
+
+    /**
+     * The number of requests in flight a {@link ConcurrencyLimiter} starts out with.
+     *
+     * @return
+     */
+    public OptionalInt getMaxConcurrency() {
+        return maxConcurrency > 0 ? OptionalInt.of(maxConcurrency) : OptionalInt.empty();
+    }
+
+    /**
+     * The base rate (in messages per second) of a {@link RateLimiter}.
+     *
+     * @return
+     */
+    public OptionalDouble getRate() {
+        return rate > 0 ? OptionalDouble.of(rate) : OptionalDouble.empty();
+    }
+
+    public Optional<Duration> getTimeout() {
+        return Optional.ofNullable(timeout);
+    }
+
+    /**
+     * Rewrite the endpoint for a request that is sent with VAPID and the aes128gcm encoding.
+     *
+     * @param endpoint
+     * @return The rewritten endpoint, or the endpoint itself if the profile has no rewrite for it.
+     */
+    public String rewrite(String endpoint) {
+        if (rewriteFrom == null || !endpoint.startsWith(rewriteFrom)) {
+            return endpoint;
+        }
+
+        return rewriteTo + endpoint.substring(rewriteFrom.length());
+    }
+
+    /**
+     * Apply the HTTP version and timeout to a request.
+     *
+     * @param request
+     * @return
+     */
+    public java.net.http.HttpRequest.Builder apply(java.net.http.HttpRequest.Builder request) {
+        if (httpVersion != null) {
+            request.version(httpVersion);
+        }
+
+        if (timeout != null) {
+            request.timeout(timeout);
+        }
+
+        return request;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private HttpClient.Version httpVersion;
+        private int maxConcurrency;
+        private double rate;
+        private Duration timeout;
+        private String rewriteFrom;
+        private String rewriteTo;
+
+        private Builder() {
+        }
+
+        public VendorProfile build() {
+            return new VendorProfile(httpVersion, maxConcurrency, rate, timeout, rewriteFrom, rewriteTo);
+        }
+
+        public Builder httpVersion(HttpClient.Version httpVersion) {
+            this.httpVersion = httpVersion;
+            return this;
+        }
+
+        public Builder maxConcurrency(int maxConcurrency) {
+            if (maxConcurrency < 1) {
+                throw new IllegalArgumentException("The concurrency must be at least 1, " + maxConcurrency + " given.");
+            }
+
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        public Builder rate(double rate) {
+            if (rate <= 0) {
+                throw new IllegalArgumentException("Expected a positive rate, " + rate + " given.");
+            }
+
+            this.rate = rate;
+            return this;
+        }
+
+        public Builder timeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * Replace the given prefix of the endpoint when sending with VAPID and the aes128gcm encoding.
+         *
+         * @param from
+         * @param to
+         * @return
+         */
+        public Builder rewrite(String from, String to) {
+            this.rewriteFrom = from;
+            this.rewriteTo = to;
+            return this;
+        }
+    }
+}
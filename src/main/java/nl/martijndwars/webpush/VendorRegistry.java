@@ -0,0 +1,230 @@
+package nl.martijndwars.webpush;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recognizes the vendor of a push service from an endpoint or origin, and holds a {@link VendorProfile} per vendor.
+ * <p>
+ * Vendors are recognized by patterns such as {@code fcm.googleapis.com}, {@code *.notify.windows.com} or
+ * {@code android.googleapis.com/gcm/send}: a host, optionally with a wildcard for any subdomain, optionally followed
+ * by a path prefix. The patterns are stored in a trie keyed by the host in reverse followed by the path, so an
+ * endpoint is classified in a single pass over its host (and path, where needed) without creating any strings. When
+ * several patterns match, the longest one wins.
+ * <p>
+ * The default profiles are conservative starting points; tune them to the limits of your sender. They leave the HTTP
+ * version and the request timeout to the HTTP client; set those in the profiles of a registry of your own.
+ */
+public class VendorRegistry {
+    private static final VendorRegistry DEFAULT = builder().build();
+
+    private final Node root;
+    private final Map<PushVendor, VendorProfile> profiles;
+
+    private VendorRegistry(Node root, Map<PushVendor, VendorProfile> profiles) {
+        this.root = root;
+        this.profiles = profiles;
+    }
+
+    /**
+     * Get the registry with the built-in patterns and profiles.
+     *
+     * @return
+     */
+    public static VendorRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Recognize the vendor of the push service of the given endpoint or origin.
+     *
+     * @param endpoint
+     * @return
+     */
+    public PushVendor classify(String endpoint) {
+        int scheme = endpoint.indexOf("://");
+        int hostStart = scheme < 0 ? 0 : scheme + 3;
+        int hostEnd = hostStart;
+
+        while (hostEnd < endpoint.length() && "/?#:".indexOf(endpoint.charAt(hostEnd)) < 0) {
+            hostEnd++;
+        }
+
+        Node node = root;
+        PushVendor vendor = PushVendor.UNKNOWN;
+
+        // The host in reverse, so subdomains come last
+        for (int i = hostEnd - 1; i >= hostStart; i--) {
+            if ((node = node.child(Character.toLowerCase(endpoint.charAt(i)))) == null) {
+                return vendor;
+            }
+
+            if (node.vendor != null) {
+                vendor = node.vendor;
+            }
+        }
+
+        // Then the path, skipping the port; an endpoint without a path has the path "/"
+        int path = endpoint.indexOf('/', hostEnd);
+
+        if ((node = node.child('/')) == null) {
+            return vendor;
+        }
+
+        if (node.vendor != null) {
+            vendor = node.vendor;
+        }
+
+        for (int i = path + 1; path >= 0 && i < endpoint.length(); i++) {
+            if ((node = node.child(endpoint.charAt(i))) == null) {
+                return vendor;
+            }
+
+            if (node.vendor != null) {
+                vendor = node.vendor;
+            }
+        }
+
+        return vendor;
+    }
+
+    public VendorProfile getProfile(PushVendor vendor) {
+        return profiles.getOrDefault(vendor, VendorProfile.DEFAULT);
+    }
+
+    /**
+     * Get the profile of the vendor of the given endpoint or origin.
+     *
+     * @param endpoint
+     * @return
+     */
+    public VendorProfile getProfile(String endpoint) {
+        return getProfile(classify(endpoint));
+    }
+
+    /**
+     * A node of the trie. Nodes have few children, so they are kept in small arrays that are scanned.
+     */
+    private static class Node {
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        private PushVendor vendor;
+
+        Node child(char label) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) {
+                    return children[i];
+                }
+            }
+
+            return null;
+        }
+
+        Node addChild(char label) {
+            Node child = child(label);
+
+            if (child == null) {
+                child = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = label;
+                children[children.length - 1] = child;
+            }
+
+            return child;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final Map<String, PushVendor> patterns = new LinkedHashMap<>();
+        private final Map<PushVendor, VendorProfile> profiles = new EnumMap<>(PushVendor.class);
+
+        private Builder() {
+            pattern("android.googleapis.com/gcm/send", PushVendor.GCM);
+            pattern("fcm.googleapis.com", PushVendor.FCM);
+            pattern("push.services.mozilla.com", PushVendor.MOZILLA);
+            pattern("*.push.services.mozilla.com", PushVendor.MOZILLA);
+            pattern("*.notify.windows.com", PushVendor.WNS);
+            pattern("push.apple.com", PushVendor.APPLE);
+            pattern("*.push.apple.com", PushVendor.APPLE);
+
+            profile(PushVendor.GCM, VendorProfile.builder()
+                    .maxConcurrency(20)
+                    .rate(100)
+                    .build());
+
+            // The aes128gcm encoding is only accepted on the Web Push endpoint of FCM
+            profile(PushVendor.FCM, VendorProfile.builder()
+                    .maxConcurrency(100)
+                    .rate(1000)
+                    .rewrite("https://fcm.googleapis.com/fcm/send/", "https://fcm.googleapis.com/wp/")
+                    .build());
+
+            profile(PushVendor.MOZILLA, VendorProfile.builder()
+                    .maxConcurrency(100)
+                    .rate(500)
+                    .build());
+
+            profile(PushVendor.WNS, VendorProfile.builder()
+                    .maxConcurrency(50)
+                    .rate(200)
+                    .build());
+
+            profile(PushVendor.APPLE, VendorProfile.builder()
+                    .maxConcurrency(100)
+                    .rate(500)
+                    .build());
+        }
+
+        public VendorRegistry build() {
+            Node root = new Node();
+
+            patterns.forEach((pattern, vendor) -> {
+                int slash = pattern.indexOf('/');
+                String host = (slash < 0 ? pattern : pattern.substring(0, slash)).toLowerCase();
+                String path = slash < 0 ? "/" : pattern.substring(slash);
+                boolean wildcard = host.startsWith("*.");
+
+                // A wildcard matches at a label boundary, an exact host only where the host ends
+                String key = new StringBuilder(wildcard ? host.substring(1) : host).reverse() + (wildcard ? "" : path);
+                Node node = root;
+
+                for (int i = 0; i < key.length(); i++) {
+                    node = node.addChild(key.charAt(i));
+                }
+
+                node.vendor = vendor;
+            });
+
+            return new VendorRegistry(root, new EnumMap<>(profiles));
+        }
+
+        /**
+         * Recognize endpoints that match the pattern as the given vendor.
+         *
+         * @param pattern A host such as {@code push.example.com} or {@code *.push.example.com}, optionally followed by
+         *                a path prefix such as {@code /send}. Path prefixes cannot be combined with a wildcard.
+         * @param vendor
+         * @return
+         */
+        public Builder pattern(String pattern, PushVendor vendor) {
+            if (pattern.startsWith("*.") && pattern.indexOf('/') >= 0) {
+                throw new IllegalArgumentException("A wildcard pattern cannot have a path, " + pattern + " given.");
+            }
+
+            this.patterns.put(pattern, vendor);
+            return this;
+        }
+
+        public Builder profile(PushVendor vendor, VendorProfile profile) {
+            this.profiles.put(vendor, profile);
+            return this;
+        }
+    }
+}
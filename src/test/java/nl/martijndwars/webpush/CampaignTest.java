@@ -0,0 +1,183 @@
+package nl.martijndwars.webpush;
+
+import org.jose4j.lang.JoseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CampaignTest {
+    /**
+     * A push service whose notifications stay in flight until the test completes them.
+     */
+    private static class PendingPushService extends PushAsyncService {
+        private final ArrayDeque<CompletableFuture<HttpResponse<String>>> pending = new ArrayDeque<>();
+
+        PendingPushService() {
+            super(HttpClient.newHttpClient());
+        }
+
+        @Override
+        public synchronized CompletableFuture<HttpResponse<String>> send(Notification notification, Encoding encoding) {
+            CompletableFuture<HttpResponse<String>> response = new CompletableFuture<>();
+            pending.add(response);
+
+            return response;
+        }
+
+        void completeAll(int statusCode) {
+            CompletableFuture<HttpResponse<String>> response;
+
+            while ((response = poll()) != null) {
+                response.complete(new StubHttpResponse(statusCode));
+            }
+        }
+
+        private synchronized CompletableFuture<HttpResponse<String>> poll() {
+            return pending.poll();
+        }
+    }
+
+    /**
+     * Build notifications only when they are taken, counting how many were built.
+     */
+    private static Iterator<Notification> notifications(int count, AtomicInteger built) {
+        return IntStream.range(0, count).mapToObj(i -> {
+            built.incrementAndGet();
+            return new Notification("https://example.com/" + i, null, new byte[16], new byte[0], 60, null, null, null);
+        }).iterator();
+    }
+
+    @Test
+    public void testPauseResumeAndCancel() throws Exception {
+        PendingPushService pushService = new PendingPushService();
+        AtomicInteger built = new AtomicInteger();
+        Campaign campaign = Campaign.builder(pushService, notifications(100, built))
+                .maxInFlight(4)
+                .build();
+
+        CompletableFuture<Void> done = campaign.start();
+        assertEquals(4, campaign.getInFlight());
+
+        campaign.pause();
+        pushService.completeAll(201);
+
+        assertEquals(4, campaign.getSent());
+        assertEquals(0, campaign.getInFlight());
+        assertTrue(built.get() <= 5);
+
+        campaign.resume();
+        assertEquals(4, campaign.getInFlight());
+
+        // The notifications in flight are cancelled, so nothing is left to wait for
+        campaign.cancel();
+        done.get(5, TimeUnit.SECONDS);
+        pushService.completeAll(201);
+
+        assertEquals(Campaign.State.CANCELLED, campaign.getState());
+        assertEquals(4, campaign.getSent());
+        assertEquals(4, campaign.getDropped());
+        assertTrue(built.get() <= 9);
+    }
+
+    @Test
+    public void testCancelStopsEncryptionOfQueuedNotifications() throws Exception {
+        AtomicInteger prepared = new AtomicInteger();
+        RateLimiter rateLimiter = RateLimiter.builder().defaultRate(10).burst(1).build();
+        ConcurrencyLimiter concurrencyLimiter = ConcurrencyLimiter.builder().build();
+        Outbox outbox = Outbox.builder(Files.createTempDirectory("outbox")).syncInterval(Duration.ZERO).open();
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient()) {
+            @Override
+            public java.net.http.HttpRequest.Builder preparePost(Notification notification, Encoding encoding) throws GeneralSecurityException, IOException, JoseException {
+                prepared.incrementAndGet();
+                return super.preparePost(notification, encoding);
+            }
+        }.setRateLimiter(rateLimiter).setConcurrencyLimiter(concurrencyLimiter).setOutbox(outbox);
+
+        // Take the only token, so every notification waits in the rate limiter
+        rateLimiter.acquire("https://example.com").get();
+
+        Campaign campaign = Campaign.builder(pushService, notifications(100, new AtomicInteger()))
+                .maxInFlight(4)
+                .build();
+
+        campaign.start();
+        assertEquals(4, campaign.getInFlight());
+
+        campaign.cancel().get(5, TimeUnit.SECONDS);
+
+        // Give the rate limiter time to release every queued notification
+        Thread.sleep(600);
+
+        assertEquals(0, prepared.get());
+        assertEquals(4, campaign.getDropped());
+        assertEquals(0, concurrencyLimiter.getInFlight("https://example.com"));
+        assertEquals(0, outbox.getPending());
+
+        outbox.close();
+    }
+
+    @Test
+    public void testOutcomesAreCounted() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> responses = List.of(
+                CompletableFuture.completedFuture(new StubHttpResponse(201)),
+                CompletableFuture.completedFuture(new StubHttpResponse(410)),
+                CompletableFuture.completedFuture(new StubHttpResponse(500)),
+                CompletableFuture.failedFuture(new EndpointGoneException("https://example.com/3")),
+                CompletableFuture.failedFuture(new NotificationShedException(new Notification("https://example.com/4", null, new byte[16], new byte[0], 60, null, null, null))));
+        AtomicInteger index = new AtomicInteger();
+
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient()) {
+            @Override
+            public CompletableFuture<HttpResponse<String>> send(Notification notification, Encoding encoding) {
+                return responses.get(index.getAndIncrement());
+            }
+        };
+
+        Campaign campaign = Campaign.builder(pushService, notifications(5, new AtomicInteger())).build();
+        campaign.start().get(5, TimeUnit.SECONDS);
+
+        assertEquals(Campaign.State.COMPLETED, campaign.getState());
+        assertEquals(1, campaign.getSent());
+        assertEquals(2, campaign.getGone());
+        assertEquals(1, campaign.getFailed());
+        assertEquals(1, campaign.getDropped());
+    }
+
+    @Test
+    public void testRateCanBeRaisedWhileRunning() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient()) {
+            @Override
+            public CompletableFuture<HttpResponse<String>> send(Notification notification, Encoding encoding) {
+                return CompletableFuture.completedFuture(new StubHttpResponse(201));
+            }
+        };
+
+        Campaign campaign = Campaign.builder(pushService, notifications(20, new AtomicInteger()))
+                .rate(1)
+                .build();
+
+        CompletableFuture<Void> done = campaign.start();
+        Thread.sleep(100);
+
+        assertEquals(1, campaign.getSent());
+
+        campaign.setRate(Double.POSITIVE_INFINITY);
+        done.get(5, TimeUnit.SECONDS);
+
+        assertEquals(20, campaign.getSent());
+    }
+}
@@ -0,0 +1,69 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static nl.martijndwars.webpush.CircuitBreaker.State.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+    private static final String ORIGIN = "https://updates.push.services.mozilla.com";
+
+    @Test
+    public void testOpensOnFailureRateAndRecovers() throws InterruptedException {
+        List<CircuitBreaker.State> transitions = new CopyOnWriteArrayList<>();
+
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder()
+                .windowSize(10)
+                .minimumCalls(4)
+                .failureRateThreshold(0.5)
+                .openDuration(Duration.ofMillis(50))
+                .halfOpenCalls(2)
+                .build()
+                .addListener((origin, from, to) -> transitions.add(to));
+
+        circuitBreaker.onResult(ORIGIN, 0, false);
+        circuitBreaker.onResult(ORIGIN, 0, false);
+        circuitBreaker.onResult(ORIGIN, 0, true);
+        assertTrue(circuitBreaker.tryAcquire(ORIGIN));
+
+        circuitBreaker.onResult(ORIGIN, 0, true);
+        assertEquals(OPEN, circuitBreaker.getState(ORIGIN));
+        assertFalse(circuitBreaker.tryAcquire(ORIGIN));
+
+        Thread.sleep(60);
+
+        assertFalse(circuitBreaker.isRejecting(ORIGIN));
+        assertTrue(circuitBreaker.tryAcquire(ORIGIN));
+        assertTrue(circuitBreaker.tryAcquire(ORIGIN));
+        assertFalse(circuitBreaker.tryAcquire(ORIGIN));
+        assertTrue(circuitBreaker.isRejecting(ORIGIN));
+
+        circuitBreaker.onResult(ORIGIN, 0, false);
+        circuitBreaker.onResult(ORIGIN, 0, false);
+
+        assertEquals(CLOSED, circuitBreaker.getState(ORIGIN));
+        assertEquals(List.of(OPEN, HALF_OPEN, CLOSED), transitions);
+    }
+
+    @Test
+    public void testOpensOnSlowCalls() {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder()
+                .windowSize(4)
+                .minimumCalls(4)
+                .halfOpenCalls(2)
+                .slowCallRateThreshold(0.75, Duration.ofSeconds(1))
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onResult(ORIGIN, Duration.ofSeconds(2).toNanos(), false);
+        }
+        circuitBreaker.onResult(ORIGIN, Duration.ofMillis(20).toNanos(), false);
+
+        assertEquals(OPEN, circuitBreaker.getState(ORIGIN));
+        assertEquals(CLOSED, circuitBreaker.getState("https://fcm.googleapis.com"));
+    }
+}
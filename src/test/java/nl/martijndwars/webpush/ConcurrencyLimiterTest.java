@@ -0,0 +1,60 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimiterTest {
+    private static final String ORIGIN = "https://fcm.googleapis.com";
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testWaitsForFreeSlot() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(2).build();
+
+        CompletableFuture<ConcurrencyLimiter.Permit> first = limiter.acquire(ORIGIN);
+        CompletableFuture<ConcurrencyLimiter.Permit> second = limiter.acquire(ORIGIN);
+        CompletableFuture<ConcurrencyLimiter.Permit> third = limiter.acquire(ORIGIN);
+
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertFalse(third.isDone());
+
+        first.join().release();
+        assertTrue(third.isDone());
+        assertEquals(2, limiter.getInFlight(ORIGIN));
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsFlat() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(4).build();
+
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire(ORIGIN);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            limiter.onSample(ORIGIN, 50 * MILLISECOND, false);
+        }
+
+        // The window stops growing once less than half of it is in use
+        assertEquals(9, limiter.getLimit(ORIGIN));
+    }
+
+    @Test
+    public void testLimitShrinksOnQueueingDelay() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.builder().initialLimit(20).build();
+
+        limiter.onSample(ORIGIN, 50 * MILLISECOND, false);
+        limiter.onSample(ORIGIN, 200 * MILLISECOND, false);
+
+        assertEquals(19, limiter.getLimit(ORIGIN));
+
+        limiter.onSample(ORIGIN, 50 * MILLISECOND, true);
+
+        assertEquals(17, limiter.getLimit(ORIGIN));
+    }
+}
@@ -0,0 +1,84 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadEndpointCacheTest {
+    private static final String ENDPOINT = "https://fcm.googleapis.com/fcm/send/";
+
+    @Test
+    public void testGoneResponsesAreRemembered() {
+        DeadEndpointCache cache = DeadEndpointCache.builder().bloomFilter(1000, 0.01).build();
+
+        cache.onResponse(ENDPOINT + "a", new StubHttpResponse(410));
+        cache.onResponse(ENDPOINT + "b", new StubHttpResponse(404));
+        cache.onResponse(ENDPOINT + "c", new StubHttpResponse(201));
+
+        assertTrue(cache.isDead(ENDPOINT + "a"));
+        assertTrue(cache.isDead(ENDPOINT + "b"));
+        assertFalse(cache.isDead(ENDPOINT + "c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlySeenEndpointIsEvicted() {
+        DeadEndpointCache cache = DeadEndpointCache.builder().maxEntries(2).build();
+
+        cache.markDead(ENDPOINT + "a");
+        cache.markDead(ENDPOINT + "b");
+        cache.isDead(ENDPOINT + "a");
+        cache.markDead(ENDPOINT + "c");
+
+        assertTrue(cache.isDead(ENDPOINT + "a"));
+        assertFalse(cache.isDead(ENDPOINT + "b"));
+        assertTrue(cache.isDead(ENDPOINT + "c"));
+    }
+
+    @Test
+    public void testBloomFilterIsRebuiltAfterEvictions() {
+        DeadEndpointCache cache = DeadEndpointCache.builder().maxEntries(100).bloomFilter(100, 0.01).build();
+
+        for (int i = 0; i < 100_000; i++) {
+            cache.markDead(ENDPOINT + "dead-" + i);
+        }
+
+        for (int i = 100_000 - 100; i < 100_000; i++) {
+            assertTrue(cache.isDead(ENDPOINT + "dead-" + i));
+        }
+
+        int falsePositives = 0;
+
+        for (int i = 0; i < 10_000; i++) {
+            if (cache.bloomFilterMightContain(ENDPOINT + "live-" + i)) {
+                falsePositives++;
+            }
+        }
+
+        assertEquals(100, cache.size());
+        assertTrue(falsePositives < 200, falsePositives + " false positives out of 10000");
+    }
+
+    @Test
+    public void testExpiredEndpointsAreBatched() {
+        List<List<String>> batches = new CopyOnWriteArrayList<>();
+        DeadEndpointCache cache = DeadEndpointCache.builder()
+                .batchListener(batches::add, 3, Duration.ofHours(1))
+                .build();
+
+        for (int i = 0; i < 4; i++) {
+            cache.markDead(ENDPOINT + i);
+        }
+        cache.markDead(ENDPOINT + 0);
+
+        assertEquals(List.of(List.of(ENDPOINT + 0, ENDPOINT + 1, ENDPOINT + 2)), batches);
+
+        cache.flush();
+
+        assertEquals(List.of(ENDPOINT + 3), batches.get(1));
+    }
+}
@@ -0,0 +1,65 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EndpointSequencerTest {
+    @Test
+    public void testSameEndpointRunsInOrder() {
+        EndpointSequencer sequencer = new EndpointSequencer();
+        CompletableFuture<String> first = new CompletableFuture<>();
+        List<String> started = new ArrayList<>();
+
+        CompletableFuture<String> a = sequencer.submit("https://push.example/a", () -> {
+            started.add("first");
+            return first;
+        });
+        CompletableFuture<String> b = sequencer.submit("https://push.example/a", () -> {
+            started.add("second");
+            return CompletableFuture.completedFuture("second");
+        });
+
+        assertEquals(List.of("first"), started);
+        assertEquals(1, sequencer.getQueued());
+
+        first.complete("first");
+
+        assertEquals(List.of("first", "second"), started);
+        assertEquals("first", a.join());
+        assertEquals("second", b.join());
+    }
+
+    @Test
+    public void testOtherEndpointsAreNotBlocked() {
+        EndpointSequencer sequencer = new EndpointSequencer(1 << 16);
+
+        sequencer.submit("a", CompletableFuture::new);
+        CompletableFuture<String> other = sequencer.submit("b", () -> CompletableFuture.completedFuture("b"));
+
+        assertEquals("b", other.join());
+    }
+
+    @Test
+    public void testFailedTaskDoesNotBlockTheStripe() {
+        EndpointSequencer sequencer = new EndpointSequencer(1);
+
+        CompletableFuture<Object> failed = sequencer.submit("a", () -> {
+            throw new IllegalStateException();
+        });
+        CompletableFuture<Integer> next = null;
+
+        // Tasks that complete right away are run in a loop, not recursively
+        for (int i = 0; i < 100_000; i++) {
+            int value = i;
+            next = sequencer.submit("a", () -> CompletableFuture.completedFuture(value));
+        }
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(99_999, (int) next.join());
+    }
+}
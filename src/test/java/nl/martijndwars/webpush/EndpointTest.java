@@ -0,0 +1,50 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EndpointTest {
+    @Test
+    public void testParsedOnce() {
+        Endpoint a = Endpoint.of("https://fcm.googleapis.com/fcm/send/a");
+        Endpoint b = Endpoint.of("https://fcm.googleapis.com/fcm/send/b");
+
+        assertEquals("https://fcm.googleapis.com", a.getOrigin());
+        assertSame(a.getOrigin(), b.getOrigin());
+        assertEquals(PushVendor.FCM, a.getVendor());
+        assertEquals("https://fcm.googleapis.com/wp/a", a.getRewrittenUrl());
+
+        // Both forms of the endpoint map to the URIs parsed up front
+        assertSame(a.getUri(), a.toUri("https://fcm.googleapis.com/fcm/send/a"));
+        assertSame(a.toUri(a.getRewrittenUrl()), a.toUri("https://fcm.googleapis.com/wp/a"));
+        assertEquals("/wp/a", a.toUri(a.getRewrittenUrl()).getPath());
+    }
+
+    @Test
+    public void testEndpointWithoutRewrite() {
+        Endpoint endpoint = Endpoint.of("https://updates.push.services.mozilla.com:443/wpush/v2/abc");
+
+        assertEquals("https://updates.push.services.mozilla.com", endpoint.getOrigin());
+        assertSame(endpoint.getUrl(), endpoint.getRewrittenUrl());
+        assertEquals(Endpoint.of(endpoint.getUrl()), endpoint);
+    }
+
+    @Test
+    public void testNotificationReusesParsedEndpoint() {
+        Endpoint endpoint = Endpoint.of("https://web.push.apple.com/abc");
+        Notification notification = Notification.builder()
+                .endpoint(endpoint)
+                .payload(new byte[0])
+                .build();
+
+        assertSame(endpoint, notification.getParsedEndpoint());
+        assertEquals("https://web.push.apple.com/abc", notification.getEndpoint());
+        assertEquals(PushVendor.APPLE, notification.getVendor());
+
+        Notification unparsed = Notification.builder().endpoint("https://web.push.apple.com/abc").build();
+
+        assertSame(unparsed.getParsedEndpoint(), unparsed.getParsedEndpoint());
+        assertSame(endpoint.getOrigin(), unparsed.getOrigin());
+    }
+}
@@ -0,0 +1,83 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrequencyCapTest {
+    private static final String ENDPOINT = "https://fcm.googleapis.com/fcm/send/";
+
+    @Test
+    public void testCapsPerEndpoint() {
+        FrequencyCap cap = FrequencyCap.builder()
+                .limit(3, Duration.ofHours(1))
+                .sketch(3, 1 << 12)
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cap.tryAcquire(ENDPOINT + "a"));
+        }
+
+        assertFalse(cap.tryAcquire(ENDPOINT + "a"));
+        assertTrue(cap.tryAcquire(ENDPOINT + "b"));
+        assertEquals(3, cap.getCount(ENDPOINT + "a"));
+        assertEquals(4 * 3 * 4096, cap.getMemoryUsage());
+    }
+
+    @Test
+    public void testNeverUnderestimates() {
+        FrequencyCap cap = FrequencyCap.builder()
+                .limit(255, Duration.ofHours(1))
+                .sketch(2, 1 << 8)
+                .build();
+
+        // Far more endpoints than counters, so every counter is shared
+        for (int i = 0; i < 10_000; i++) {
+            cap.tryAcquire(ENDPOINT + i);
+        }
+
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(cap.getCount(ENDPOINT + i) >= 1);
+        }
+    }
+
+    @Test
+    public void testFalseCapRateAtDefaultCapacity() {
+        FrequencyCap cap = FrequencyCap.builder().build();
+
+        // The largest load the default sketch is sized for: 1M notifications in one slice
+        for (int i = 0; i < 1 << 20; i++) {
+            cap.tryAcquire(ENDPOINT + i);
+        }
+
+        int overestimated = 0;
+
+        for (int i = 0; i < 100_000; i++) {
+            int count = cap.getCount(ENDPOINT + "fresh-" + i);
+
+            assertTrue(count <= 1, "Overestimated by " + count);
+
+            overestimated += count;
+        }
+
+        assertTrue(overestimated < 2_000, overestimated + " out of 100000 endpoints overestimated");
+    }
+
+    @Test
+    public void testOldSlicesExpire() throws InterruptedException {
+        FrequencyCap cap = FrequencyCap.builder()
+                .limit(1, Duration.ofMillis(100))
+                .slices(2)
+                .sketch(3, 1 << 12)
+                .build();
+
+        assertTrue(cap.tryAcquire(ENDPOINT + "a"));
+        assertFalse(cap.tryAcquire(ENDPOINT + "a"));
+
+        Thread.sleep(150);
+
+        assertTrue(cap.tryAcquire(ENDPOINT + "a"));
+    }
+}
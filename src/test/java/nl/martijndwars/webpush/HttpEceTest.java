@@ -1,6 +1,7 @@
 package nl.martijndwars.webpush;
 
 import org.bouncycastle.jce.interfaces.ECPrivateKey;
+import org.bouncycastle.jce.interfaces.ECPublicKey;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Disabled;
@@ -84,6 +85,33 @@ class HttpEceTest {
         assertArrayEquals(plaintext, decrypted);
     }
 
+    @Test
+    public void testWebPushDecryption() throws GeneralSecurityException {
+        KeyPair userKeyPair = AbstractPushService.generateLocalKeyPair();
+        ECPublicKey userPublicKey = (ECPublicKey) userKeyPair.getPublic();
+        byte[] auth = decode("BTBZMqHH6r4Tts7J_aSIgg");
+        byte[] plaintext = "I am the walrus".getBytes();
+
+        for (Encoding encoding : Encoding.values()) {
+            Encrypted encrypted = AbstractPushService.encrypt(plaintext, userPublicKey, auth, encoding);
+            byte[] ciphertext = encrypted.getCiphertext();
+
+            // For aes128gcm, the keyid is the sender's public key in the header
+            String keyid = encoding == AES128GCM ? new String(new HttpEce().parseHeader(ciphertext)[2]) : "";
+
+            // The receiver's key pair holds the sender's public key
+            HashMap<String, KeyPair> keys = new HashMap<>();
+            keys.put(keyid, new KeyPair(encrypted.getPublicKey(), userKeyPair.getPrivate()));
+
+            HashMap<String, String> labels = new HashMap<>();
+            labels.put(keyid, "P-256");
+
+            byte[] decrypted = new HttpEce(keys, labels).decrypt(ciphertext, encrypted.getSalt(), null, keyid, userPublicKey, auth, encoding);
+
+            assertArrayEquals(plaintext, decrypted);
+        }
+    }
+
     /**
      * See https://tools.ietf.org/html/draft-ietf-httpbis-encryption-encoding-09#section-3.2
      *
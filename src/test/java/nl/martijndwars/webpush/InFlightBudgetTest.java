@@ -0,0 +1,68 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InFlightBudgetTest {
+    @BeforeAll
+    public static void addSecurityProvider() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Test
+    public void testWaitsForRoom() {
+        InFlightBudget budget = new InFlightBudget(1000, 10, InFlightBudget.OverflowPolicy.WAIT);
+
+        assertTrue(budget.acquire(600).isDone());
+        CompletableFuture<Void> second = budget.acquire(600);
+        assertFalse(second.isDone());
+        assertEquals(600, budget.getBytesInFlight());
+        assertEquals(1, budget.getWaiting());
+
+        budget.release(600);
+        assertTrue(second.isDone());
+        assertEquals(600, budget.getBytesInFlight());
+        assertEquals(1, budget.getRequestsInFlight());
+    }
+
+    @Test
+    public void testFailsFast() {
+        InFlightBudget budget = new InFlightBudget(1000, 1, InFlightBudget.OverflowPolicy.FAIL);
+
+        budget.acquire(10).join();
+        CompletionException exception = assertThrows(CompletionException.class, () -> budget.acquire(10).join());
+        assertTrue(exception.getCause() instanceof RejectedExecutionException);
+    }
+
+    @Test
+    public void testEstimatedSizeMatchesCiphertext() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+        KeyPair userKeyPair = keyPairGenerator.generateKeyPair();
+
+        Notification notification = Notification.builder()
+                .userPublicKey(userKeyPair.getPublic())
+                .userAuth(new byte[16])
+                .payload(new byte[3000])
+                .build();
+
+        for (Encoding encoding : Encoding.values()) {
+            Encrypted encrypted = AbstractPushService.encrypt(notification.getPayload(), (ECPublicKey) userKeyPair.getPublic(), new byte[16], encoding);
+            long headers = AbstractPushService.estimateRequestSize(notification, encoding) - encrypted.getCiphertext().length;
+
+            assertEquals(AbstractPushService.estimateRequestSize(Notification.builder().payload(new byte[0]).build(), encoding), headers);
+        }
+    }
+}
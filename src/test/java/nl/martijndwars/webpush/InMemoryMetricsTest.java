@@ -0,0 +1,108 @@
+package nl.martijndwars.webpush;
+
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryMetricsTest {
+    private static KeyPair serverKeyPair;
+    private static KeyPair userKeyPair;
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+        serverKeyPair = keyPairGenerator.generateKeyPair();
+        userKeyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    @Test
+    public void testHistogramQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_500, snapshot.getMean(), 0.001);
+        assertEquals(1_000_000, snapshot.getMax());
+        assertEquals(1_000_000, snapshot.getValueAtQuantile(1));
+        assertEquals(500_000, snapshot.getValueAtQuantile(0.5), 500_000 * 0.125);
+        assertEquals(990_000, snapshot.getValueAtQuantile(0.99), 990_000 * 0.125);
+        assertEquals(0, new LatencyHistogram().snapshot().getValueAtQuantile(0.5));
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+
+            assertTrue(value <= LatencyHistogram.upperBound(bucket), String.valueOf(value));
+            assertTrue(bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1), String.valueOf(value));
+        }
+    }
+
+    @Test
+    public void testStagesAndResponsesAreRecorded() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/push", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(requests.incrementAndGet() == 1 ? 201 : 410, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            InMemoryMetrics metrics = new InMemoryMetrics();
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair)
+                    .setMetricsListener(metrics);
+
+            for (int i = 0; i < 2; i++) {
+                pushService.send(Notification.builder()
+                        .endpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/push")
+                        .userPublicKey(userKeyPair.getPublic())
+                        .userAuth(new byte[16])
+                        .payload("Hello")
+                        .build()).get();
+            }
+
+            InMemoryMetrics.Snapshot snapshot = metrics.snapshot();
+
+            for (MetricsListener.Stage stage : MetricsListener.Stage.values()) {
+                assertEquals(2, snapshot.getStage(stage).getCount(), stage.name());
+            }
+
+            assertEquals(1, (long) snapshot.getResponses().get("http://127.0.0.1").get(201));
+            assertEquals(1, (long) snapshot.getResponses().get("http://127.0.0.1").get(410));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testNothingIsRecordedWithoutListener() {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient());
+
+        assertSame(MetricsListener.NONE, pushService.getMetricsListener());
+        assertSame(MetricsListener.NONE, pushService.setMetricsListener(new InMemoryMetrics()).setMetricsListener(null).getMetricsListener());
+    }
+}
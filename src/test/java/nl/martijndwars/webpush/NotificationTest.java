@@ -3,11 +3,14 @@ package nl.martijndwars.webpush;
 import java.security.GeneralSecurityException;
 import java.security.Security;
 import java.time.Duration;
+import java.time.Instant;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class NotificationTest {
 
@@ -40,4 +43,45 @@ class NotificationTest {
                 .build();
         assertEquals(28 * oneDayDurationInSeconds, notification.getTTL());
     }
+
+    @Test
+    public void testDeadlineFromTtl() throws GeneralSecurityException {
+        Notification notification = Notification.builder()
+                .userPublicKey(publicKey)
+                .payload(new byte[16])
+                .ttl(60)
+                .build();
+
+        long now = System.nanoTime();
+        notification.stamp(now);
+
+        assertEquals(now, notification.getEnqueuedAt());
+        assertFalse(notification.isExpired(now + Duration.ofSeconds(59).toNanos()));
+        assertTrue(notification.isExpired(now + Duration.ofSeconds(60).toNanos()));
+    }
+
+    @Test
+    public void testExplicitDeadline() throws GeneralSecurityException {
+        Notification notification = Notification.builder()
+                .userPublicKey(publicKey)
+                .payload(new byte[16])
+                .ttl(0)
+                .deadline(Instant.now().minusSeconds(1))
+                .build();
+
+        assertTrue(notification.isExpired());
+    }
+
+    @Test
+    public void testZeroTtlDoesNotExpireLocally() throws GeneralSecurityException {
+        Notification notification = Notification.builder()
+                .userPublicKey(publicKey)
+                .payload(new byte[16])
+                .ttl(0)
+                .build();
+
+        notification.stamp(System.nanoTime());
+
+        assertFalse(notification.isExpired());
+    }
 }
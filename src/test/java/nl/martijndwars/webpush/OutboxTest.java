@@ -0,0 +1,139 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboxTest {
+    private static KeyPair userKeyPair;
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+        userKeyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    private static Notification notification(String subscriber) {
+        return Notification.builder()
+                .endpoint("https://fcm.googleapis.com/fcm/send/" + subscriber)
+                .userPublicKey(userKeyPair.getPublic())
+                .userAuth(new byte[16])
+                .payload("Hello, " + subscriber)
+                .urgency(Urgency.HIGH)
+                .topic("greeting")
+                .build();
+    }
+
+    private static Outbox open(Path directory) throws IOException {
+        return Outbox.builder(directory).segmentSize(4096).syncInterval(Duration.ZERO).open();
+    }
+
+    @Test
+    public void testUnacknowledgedNotificationsAreRecovered() throws IOException {
+        Path directory = Files.createTempDirectory("outbox");
+
+        try (Outbox outbox = open(directory)) {
+            long a = outbox.append(notification("a"), Encoding.AES128GCM);
+            long b = outbox.append(notification("b"), Encoding.AESGCM);
+            outbox.append(notification("c"), Encoding.AES128GCM);
+
+            outbox.acknowledge(b);
+            outbox.acknowledge(b);
+
+            assertEquals(2, outbox.getPending());
+            assertTrue(a < b);
+        }
+
+        try (Outbox outbox = open(directory)) {
+            List<Outbox.Entry> recovered = outbox.takeRecovered();
+
+            assertEquals(2, recovered.size());
+            assertEquals(2, outbox.getPending());
+
+            Notification notification = recovered.get(0).getNotification();
+            assertEquals("https://fcm.googleapis.com/fcm/send/a", notification.getEndpoint());
+            assertEquals("Hello, a", new String(notification.getPayload()));
+            assertEquals(Urgency.HIGH, notification.getUrgency());
+            assertEquals("greeting", notification.getTopic());
+            assertArrayEquals(Utils.encode(notification("a").getUserPublicKey()), Utils.encode(notification.getUserPublicKey()));
+            assertEquals(Encoding.AES128GCM, recovered.get(0).getEncoding());
+            assertEquals("https://fcm.googleapis.com/fcm/send/c", recovered.get(1).getNotification().getEndpoint());
+            assertTrue(outbox.takeRecovered().isEmpty());
+        }
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws IOException {
+        Path directory = Files.createTempDirectory("outbox");
+
+        try (Outbox outbox = open(directory)) {
+            for (long id = 0; id < 100; id++) {
+                assertEquals(id, outbox.append(notification("a" + id), Encoding.AES128GCM));
+            }
+
+            assertTrue(outbox.getSegmentCount() > 1);
+
+            for (long id = 0; id < 100; id++) {
+                outbox.acknowledge(id);
+            }
+
+            assertEquals(0, outbox.getPending());
+            assertEquals(1, outbox.getSegmentCount());
+        }
+
+        try (Outbox outbox = open(directory)) {
+            assertTrue(outbox.takeRecovered().isEmpty());
+            assertEquals(100, outbox.append(notification("b"), Encoding.AES128GCM));
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDiscarded() throws IOException {
+        Path directory = Files.createTempDirectory("outbox");
+
+        try (Outbox outbox = open(directory)) {
+            outbox.append(notification("a"), Encoding.AES128GCM);
+            outbox.append(notification("b"), Encoding.AES128GCM);
+        }
+
+        // Corrupt the last byte of the second record, as if the crash happened while it was written
+        Path segment;
+        try (var files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow();
+        }
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+            int second = 8 + buffer.getInt(0);
+            int end = second + 8 + buffer.getInt(second);
+            buffer.put(end - 1, (byte) (buffer.get(end - 1) ^ 1));
+        }
+
+        try (Outbox outbox = open(directory)) {
+            assertEquals(1, outbox.takeRecovered().size());
+            outbox.append(notification("c"), Encoding.AES128GCM);
+        }
+
+        try (Outbox outbox = open(directory)) {
+            assertEquals(2, outbox.takeRecovered().size());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartitionedDispatcherTest {
+    /**
+     * A push service whose notifications stay in flight until the test completes them.
+     */
+    private static class PendingPushService extends PushAsyncService {
+        PendingPushService() {
+            super(HttpClient.newHttpClient());
+        }
+
+        @Override
+        public CompletableFuture<HttpResponse<String>> send(Notification notification, Encoding encoding) {
+            return new CompletableFuture<>();
+        }
+    }
+
+    private static PartitionedDispatcher dispatcher(String nodeId, LocalOwnershipProvider ownershipProvider) {
+        return PartitionedDispatcher.builder(new PendingPushService())
+                .nodeId(nodeId)
+                .partitions(64)
+                .ownershipProvider(ownershipProvider)
+                .build();
+    }
+
+    private static Notification notification(String endpoint) {
+        return new Notification(endpoint, null, new byte[16], new byte[0], 60, null, null, null);
+    }
+
+    @Test
+    public void testEveryPartitionHasOneOwner() throws Exception {
+        LocalOwnershipProvider ownershipProvider = new LocalOwnershipProvider();
+        List<PartitionedDispatcher> nodes = List.of(dispatcher("a", ownershipProvider), dispatcher("b", ownershipProvider), dispatcher("c", ownershipProvider));
+
+        for (PartitionedDispatcher node : nodes) {
+            node.start().get(5, TimeUnit.SECONDS);
+        }
+
+        BitSet all = new BitSet();
+
+        for (PartitionedDispatcher node : nodes) {
+            BitSet owned = node.getOwnedPartitions();
+
+            assertFalse(owned.isEmpty());
+            assertFalse(owned.intersects(all));
+            all.or(owned);
+        }
+
+        assertEquals(64, all.cardinality());
+
+        // Only the partitions of the node that leaves move
+        BitSet ownedByA = nodes.get(0).getOwnedPartitions();
+        nodes.get(2).stop().get(5, TimeUnit.SECONDS);
+        BitSet stillOwnedByA = nodes.get(0).getOwnedPartitions();
+        stillOwnedByA.and(ownedByA);
+
+        assertEquals(ownedByA, stillOwnedByA);
+        assertTrue(nodes.get(2).getOwnedPartitions().isEmpty());
+        assertEquals(64, nodes.get(0).getOwnedPartitions().cardinality() + nodes.get(1).getOwnedPartitions().cardinality());
+    }
+
+    @Test
+    public void testPartitionMovesOnceDrained() throws Exception {
+        LocalOwnershipProvider ownershipProvider = new LocalOwnershipProvider();
+        PartitionedDispatcher a = dispatcher("a", ownershipProvider);
+        PartitionedDispatcher b = dispatcher("b", ownershipProvider);
+        a.start().get(5, TimeUnit.SECONDS);
+
+        // Find an endpoint that moves to b once it joins
+        int i = 0;
+        while (!"b".equals(LocalOwnershipProvider.owner(List.of("a", "b"), a.partition("https://example.com/" + i)))) {
+            i++;
+        }
+        String endpoint = "https://example.com/" + i;
+
+        CompletableFuture<HttpResponse<String>> inFlight = a.send(notification(endpoint));
+        assertThrows(ExecutionException.class, () -> b.send(notification(endpoint)).get());
+
+        CompletableFuture<Void> joined = b.start();
+
+        // The partition was revoked from a, but is not assigned to b while a still has a notification in flight
+        assertFalse(a.owns(endpoint));
+        assertFalse(b.owns(endpoint));
+        assertFalse(joined.isDone());
+
+        Throwable rejected = assertThrows(ExecutionException.class, () -> a.send(notification(endpoint)).get()).getCause();
+        assertTrue(rejected instanceof PartitionNotOwnedException);
+
+        inFlight.complete(null);
+        joined.get(5, TimeUnit.SECONDS);
+
+        assertTrue(b.owns(endpoint));
+        assertEquals(0, a.getInFlight());
+    }
+
+    @Test
+    public void testPartitionHashIsFixed() {
+        // Nodes running different versions must agree on the partition of every endpoint
+        assertEquals(0xefd01f60ba992926L, PartitionedDispatcher.hash(""));
+        assertEquals(0x82a2a958a9bece5bL, PartitionedDispatcher.hash("a"));
+        assertEquals(0x2f5d044587f7bd51L, PartitionedDispatcher.hash("https://fcm.googleapis.com/fcm/send/a"));
+
+        PartitionedDispatcher dispatcher = dispatcher("a", new LocalOwnershipProvider());
+
+        assertEquals(Math.floorMod(0x2f5d044587f7bd51L, 64), dispatcher.partition("https://fcm.googleapis.com/fcm/send/a"));
+    }
+}
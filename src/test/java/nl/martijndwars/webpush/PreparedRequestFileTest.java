@@ -0,0 +1,193 @@
+package nl.martijndwars.webpush;
+
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreparedRequestFileTest {
+    private static KeyPair serverKeyPair;
+    private static KeyPair userKeyPair;
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+        serverKeyPair = keyPairGenerator.generateKeyPair();
+        userKeyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    private static Notification.NotificationBuilder notification(String endpoint) {
+        return Notification.builder()
+                .endpoint(endpoint)
+                .userPublicKey(userKeyPair.getPublic())
+                .userAuth(new byte[16])
+                .payload("Hello")
+                .urgency(Urgency.LOW);
+    }
+
+    @Test
+    public void testHttpRequestFollowsVendorProfile() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair);
+        Notification notification = notification("https://fcm.googleapis.com/fcm/send/a").build();
+        HttpRequest request = pushService.prepareRequest(notification, Encoding.AES128GCM);
+        PreparedRequest prepared = new PreparedRequest(notification.getEndpoint(), Encoding.AES128GCM, Instant.MAX, request.getUrl(), request.getHeaders(), request.getBody());
+
+        Endpoint endpoint = notification.getParsedEndpoint();
+        VendorProfile profile = VendorProfile.builder()
+                .httpVersion(HttpClient.Version.HTTP_2)
+                .timeout(Duration.ofSeconds(10))
+                .build();
+        java.net.http.HttpRequest httpRequest = prepared.toHttpRequest(endpoint, profile);
+
+        // The rewritten URI of the endpoint is reused rather than parsed again
+        assertSame(endpoint.toUri(endpoint.getRewrittenUrl()), httpRequest.uri());
+        assertEquals("https://fcm.googleapis.com/wp/a", httpRequest.uri().toString());
+        assertEquals(HttpClient.Version.HTTP_2, httpRequest.version().get());
+        assertEquals(Duration.ofSeconds(10), httpRequest.timeout().get());
+        assertFalse(prepared.toHttpRequest().timeout().isPresent());
+    }
+
+    @Test
+    public void testRequestsRoundTrip() throws Exception {
+        Path file = Files.createTempFile("campaign", ".bin");
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair);
+        Instant deadline = Instant.now().plus(Duration.ofHours(1));
+        PreparedRequest first;
+        PreparedRequest second;
+
+        try (PreparedRequestFile.Writer writer = PreparedRequestFile.writer(file, pushService)) {
+            first = writer.write(notification("https://updates.push.services.mozilla.com/wpush/v2/a").build(), Encoding.AES128GCM);
+            second = writer.write(notification("https://updates.push.services.mozilla.com/wpush/v2/b").deadline(deadline).build(), Encoding.AES128GCM);
+        }
+
+        try (PreparedRequestFile.Reader reader = PreparedRequestFile.reader(file)) {
+            PreparedRequest read = reader.next();
+
+            assertEquals(first.getUrl(), read.getUrl());
+            assertEquals(first.getHeaders(), read.getHeaders());
+            assertArrayEquals(first.getBody(), read.getBody());
+            assertEquals(first.getNotAfter().toEpochMilli(), read.getNotAfter().toEpochMilli());
+            assertTrue(read.getNotAfter().isBefore(Instant.now().plus(AbstractPushService.VAPID_TOKEN_VALIDITY)));
+            assertEquals(Urgency.LOW, read.toNotification().getUrgency());
+
+            read = reader.next();
+
+            assertEquals(second.getHeaders(), read.getHeaders());
+            assertEquals(deadline.toEpochMilli(), read.getNotAfter().toEpochMilli());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testFileIsStreamedToThePushService() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/push", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(201, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            String endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/push/";
+            Path file = Files.createTempFile("campaign", ".bin");
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient());
+
+            try (PreparedRequestFile.Writer writer = PreparedRequestFile.writer(file, pushService)) {
+                for (int i = 0; i < 20; i++) {
+                    writer.write(notification(endpoint + i).build(), Encoding.AES128GCM);
+                }
+
+                writer.write(notification(endpoint + "late").deadline(Instant.now().minusSeconds(1)).build(), Encoding.AES128GCM);
+            }
+
+            List<Integer> statuses = new CopyOnWriteArrayList<>();
+            List<Throwable> failures = new CopyOnWriteArrayList<>();
+
+            pushService.sendPrepared(file, 4, (request, response, throwable) -> {
+                if (throwable != null) {
+                    failures.add(throwable);
+                } else {
+                    statuses.add(response.statusCode());
+                }
+            }).get();
+
+            assertEquals(20, requests.get());
+            assertEquals(20, statuses.stream().filter(status -> status == 201).count());
+            assertEquals(1, failures.size());
+            assertTrue(failures.get(0) instanceof NotificationExpiredException);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testReadErrorWaitsForRequestsInFlight() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/push", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            exchange.sendResponseHeaders(201, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            String endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/push/";
+            Path file = Files.createTempFile("campaign", ".bin");
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient());
+
+            try (PreparedRequestFile.Writer writer = PreparedRequestFile.writer(file, pushService)) {
+                for (int i = 0; i < 3; i++) {
+                    writer.write(notification(endpoint + i).build(), Encoding.AES128GCM);
+                }
+            }
+
+            // Tear the last record
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 8);
+            }
+
+            AtomicInteger handled = new AtomicInteger();
+            CompletableFuture<Void> done = pushService.sendPrepared(file, 4, (request, response, throwable) -> handled.incrementAndGet());
+
+            assertTrue(assertThrows(ExecutionException.class, done::get).getCause() instanceof IOException);
+            assertEquals(2, handled.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrioritySchedulerTest {
+    private static Notification notification(Urgency urgency) {
+        return Notification.builder().endpoint("https://fcm.googleapis.com/fcm/send/a").urgency(urgency).build();
+    }
+
+    @Test
+    public void testHigherUrgencyIsServedMoreOften() {
+        PriorityScheduler scheduler = PriorityScheduler.builder().slots(1).build();
+        ArrayDeque<Runnable> releases = new ArrayDeque<>();
+        List<Urgency> order = new ArrayList<>();
+
+        releases.add(scheduler.schedule(notification(Urgency.NORMAL)).join());
+
+        for (int i = 0; i < 9; i++) {
+            for (Urgency urgency : List.of(Urgency.VERY_LOW, Urgency.HIGH)) {
+                scheduler.schedule(notification(urgency)).thenAccept(release -> {
+                    order.add(urgency);
+                    releases.add(release);
+                });
+            }
+        }
+
+        assertEquals(9, scheduler.getQueued(Urgency.HIGH));
+
+        // With weights 8 and 1, nine slots serve eight high and one very low notification
+        for (int i = 0; i < 9; i++) {
+            releases.poll().run();
+        }
+
+        assertEquals(8, Collections.frequency(order, Urgency.HIGH));
+        assertEquals(1, Collections.frequency(order, Urgency.VERY_LOW));
+        assertEquals(1, scheduler.getQueued(Urgency.HIGH));
+        assertEquals(8, scheduler.getQueued(Urgency.VERY_LOW));
+    }
+
+    @Test
+    public void testLowUrgencyIsShedWhenOverloaded() throws InterruptedException {
+        PriorityScheduler scheduler = PriorityScheduler.builder()
+                .slots(1)
+                .shedding(PriorityScheduler.SheddingPolicy.DROP, Duration.ofMillis(10))
+                .build();
+
+        Runnable first = scheduler.schedule(notification(Urgency.HIGH)).join();
+        CompletableFuture<Runnable> queuedLow = scheduler.schedule(notification(Urgency.LOW));
+        CompletableFuture<Runnable> queuedHigh = scheduler.schedule(notification(Urgency.HIGH));
+
+        Thread.sleep(20);
+        assertTrue(scheduler.isOverloaded());
+
+        CompletableFuture<Runnable> rejected = scheduler.schedule(notification(Urgency.VERY_LOW));
+        assertTrue(assertThrows(CompletionException.class, rejected::join).getCause() instanceof NotificationShedException);
+
+        first.run();
+
+        assertTrue(assertThrows(CompletionException.class, queuedLow::join).getCause() instanceof NotificationShedException);
+        assertNotNull(queuedHigh.join());
+        assertEquals(2, scheduler.getShedCount());
+        assertFalse(scheduler.isOverloaded());
+    }
+}
@@ -0,0 +1,280 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.jose4j.lang.JoseException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PushAsyncServiceTest {
+    /**
+     * Nothing listens here; tests that reach the network would fail with a connection error
+     */
+    private static final String ENDPOINT = "http://127.0.0.1:9/push/";
+
+    private static KeyPair userKeyPair;
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+        userKeyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    private static Notification.NotificationBuilder notification(String subscriber) {
+        return Notification.builder()
+                .endpoint(ENDPOINT + subscriber)
+                .userPublicKey(userKeyPair.getPublic())
+                .userAuth(new byte[16])
+                .payload("Hello");
+    }
+
+    /**
+     * A push service that counts the notifications it encrypts.
+     */
+    private static class CountingPushService extends PushAsyncService {
+        private final AtomicInteger prepared;
+
+        CountingPushService(AtomicInteger prepared) {
+            super(HttpClient.newHttpClient());
+            this.prepared = prepared;
+        }
+
+        @Override
+        public java.net.http.HttpRequest.Builder preparePost(Notification notification, Encoding encoding) throws GeneralSecurityException, IOException, JoseException {
+            prepared.incrementAndGet();
+            return super.preparePost(notification, encoding);
+        }
+    }
+
+    private static Throwable failure(CompletableFuture<HttpResponse<String>> response) {
+        return assertThrows(ExecutionException.class, response::get).getCause();
+    }
+
+    @Test
+    public void testNotificationExpiresWhileRateLimited() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                .setRateLimiter(RateLimiter.builder().defaultRate(1).burst(1).build());
+
+        // Uses the only token, and fails to connect
+        pushService.send(notification("a").build());
+
+        CompletableFuture<HttpResponse<String>> response = pushService.send(notification("b")
+                .deadline(Instant.now().plusMillis(100))
+                .build());
+
+        assertTrue(failure(response) instanceof NotificationExpiredException);
+    }
+
+    @Test
+    public void testDeadEndpointIsRejected() throws Exception {
+        DeadEndpointCache deadEndpointCache = DeadEndpointCache.builder().build();
+        deadEndpointCache.markDead(ENDPOINT + "a");
+
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                .setDeadEndpointCache(deadEndpointCache);
+
+        assertTrue(failure(pushService.send(notification("a").build())) instanceof EndpointGoneException);
+    }
+
+    @Test
+    public void testOpenCircuitIsRejected() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                .setCircuitBreaker(CircuitBreaker.builder().windowSize(1).halfOpenCalls(1).openDuration(Duration.ofHours(1)).build());
+
+        // The connection error opens the circuit
+        assertFalse(failure(pushService.send(notification("a").build())) instanceof CircuitBreakerOpenException);
+        assertTrue(failure(pushService.send(notification("a").build())) instanceof CircuitBreakerOpenException);
+    }
+
+    @Test
+    public void testExpiredProbeDoesNotBlockCircuit() throws Exception {
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder().windowSize(1).halfOpenCalls(1).openDuration(Duration.ofMillis(50)).build();
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                .setRateLimiter(RateLimiter.builder().defaultRate(1).burst(1).build())
+                .setCircuitBreaker(circuitBreaker);
+
+        // Uses the only token, and the connection error opens the circuit
+        assertFalse(failure(pushService.send(notification("a").build())) instanceof CircuitBreakerOpenException);
+        Thread.sleep(60);
+
+        // Admitted while half-open, then expires waiting for a token
+        CompletableFuture<HttpResponse<String>> response = pushService.send(notification("b")
+                .deadline(Instant.now().plusMillis(100))
+                .build());
+
+        assertTrue(failure(response) instanceof NotificationExpiredException);
+
+        // The probe is still available, and its result closes the circuit
+        String origin = notification("c").build().getOrigin();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(origin));
+        assertTrue(circuitBreaker.tryAcquire(origin));
+        circuitBreaker.onResult(origin, 0, false);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(origin));
+    }
+
+    @Test
+    public void testCircuitOpenedWhileQueuedSkipsEncryption() throws Exception {
+        AtomicInteger prepared = new AtomicInteger();
+        RateLimiter rateLimiter = RateLimiter.builder().defaultRate(1).burst(1).build();
+        CircuitBreaker circuitBreaker = CircuitBreaker.builder().windowSize(1).minimumCalls(1).halfOpenCalls(1).build();
+        PushAsyncService pushService = new CountingPushService(prepared)
+                .setRateLimiter(rateLimiter)
+                .setCircuitBreaker(circuitBreaker);
+        String origin = notification("a").build().getOrigin();
+
+        // Take the only token, so the notification waits for the next one
+        rateLimiter.acquire(origin).get();
+
+        CompletableFuture<HttpResponse<String>> response = pushService.send(notification("a").build());
+        circuitBreaker.onResult(origin, 0, true);
+
+        assertTrue(failure(response) instanceof CircuitBreakerOpenException);
+        assertEquals(0, prepared.get());
+    }
+
+    @Test
+    public void testEndpointGoneWhileQueuedSkipsEncryption() throws Exception {
+        AtomicInteger prepared = new AtomicInteger();
+        RateLimiter rateLimiter = RateLimiter.builder().defaultRate(1).burst(1).build();
+        DeadEndpointCache deadEndpointCache = DeadEndpointCache.builder().build();
+        PushAsyncService pushService = new CountingPushService(prepared)
+                .setRateLimiter(rateLimiter)
+                .setDeadEndpointCache(deadEndpointCache);
+
+        // Take the only token, so the notification waits for the next one
+        rateLimiter.acquire(notification("a").build().getOrigin()).get();
+
+        CompletableFuture<HttpResponse<String>> response = pushService.send(notification("a").build());
+        deadEndpointCache.markDead(ENDPOINT + "a");
+
+        assertTrue(failure(response) instanceof EndpointGoneException);
+        assertEquals(0, prepared.get());
+    }
+
+    @Test
+    public void testQueuedNotificationsWithTopicAreCoalesced() throws Exception {
+        Coalescer coalescer = new Coalescer();
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                .setRateLimiter(RateLimiter.builder().defaultRate(10).burst(1).build())
+                .setCoalescer(coalescer);
+
+        pushService.send(notification("a").build());
+
+        CompletableFuture<HttpResponse<String>> first = pushService.send(notification("b").topic("score").payload("1-0").build());
+        CompletableFuture<HttpResponse<String>> second = pushService.send(notification("b").topic("score").payload("2-0").build());
+        CompletableFuture<HttpResponse<String>> other = pushService.send(notification("c").topic("score").payload("0-1").build());
+        CompletableFuture<HttpResponse<String>> third = pushService.send(notification("b").topic("score").payload("3-0").build());
+
+        assertTrue(failure(first) instanceof NotificationSupersededException);
+        assertTrue(failure(second) instanceof NotificationSupersededException);
+        assertFalse(failure(other) instanceof NotificationSupersededException);
+        assertFalse(failure(third) instanceof NotificationSupersededException);
+        assertEquals(2, coalescer.getSupersededCount());
+        assertEquals(0, coalescer.getPending());
+    }
+
+    @Test
+    public void testScheduledNotificationIsSentWhenDue() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                .setScheduleResolution(Duration.ofMillis(10));
+
+        ScheduledNotification kept = pushService.schedule(notification("a").build(), Duration.ofMillis(50));
+        ScheduledNotification cancelled = pushService.schedule(notification("b").build(), Duration.ofMillis(50));
+
+        assertEquals(2, pushService.getScheduledCount());
+        assertTrue(cancelled.cancel(false));
+        assertEquals(1, pushService.getScheduledCount());
+
+        // Released and sent to an address nothing listens on
+        assertTrue(failure(kept) instanceof IOException);
+        assertTrue(cancelled.isCancelled());
+        assertFalse(kept.cancel(false));
+    }
+
+    @Test
+    public void testFrequencyCappedNotificationIsRejected() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                .setFrequencyCap(FrequencyCap.builder().limit(1, Duration.ofHours(1)).sketch(3, 1 << 10).build());
+
+        assertFalse(failure(pushService.send(notification("a").build())) instanceof FrequencyCappedException);
+        assertTrue(failure(pushService.send(notification("a").build())) instanceof FrequencyCappedException);
+    }
+
+    @Test
+    public void testExpiredNotificationDoesNotCountTowardsFrequencyCap() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                .setRateLimiter(RateLimiter.builder().defaultRate(1).burst(1).build())
+                .setFrequencyCap(FrequencyCap.builder().limit(1, Duration.ofHours(1)).sketch(3, 1 << 10).build());
+
+        // Uses the only token, and fails to connect
+        pushService.send(notification("a").build());
+
+        CompletableFuture<HttpResponse<String>> expired = pushService.send(notification("b")
+                .deadline(Instant.now().plusMillis(100))
+                .build());
+
+        assertTrue(failure(expired) instanceof NotificationExpiredException);
+        assertFalse(failure(pushService.send(notification("b").build())) instanceof FrequencyCappedException);
+    }
+
+    @Test
+    public void testOutboxEntryIsAcknowledgedOnCompletion() throws Exception {
+        try (Outbox outbox = Outbox.builder(Files.createTempDirectory("outbox")).syncInterval(Duration.ZERO).open()) {
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient()).setOutbox(outbox);
+
+            CompletableFuture<HttpResponse<String>> response = pushService.send(notification("a").build());
+
+            failure(response);
+            assertEquals(0, outbox.getPending());
+        }
+    }
+
+    @Test
+    public void testExpiredOutboxEntriesAreNotReplayed() throws Exception {
+        Path directory = Files.createTempDirectory("outbox");
+
+        try (Outbox outbox = Outbox.builder(directory).syncInterval(Duration.ZERO).open()) {
+            outbox.append(notification("a").ttl(1).build(), Encoding.AES128GCM);
+            outbox.append(notification("b").deadline(Instant.now().plusMillis(100)).build(), Encoding.AES128GCM);
+            outbox.append(notification("c").ttl(3600).build(), Encoding.AES128GCM);
+        }
+
+        Thread.sleep(1100);
+
+        try (Outbox outbox = Outbox.builder(directory).syncInterval(Duration.ZERO).open()) {
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient()).setOutbox(outbox);
+
+            List<CompletableFuture<HttpResponse<String>>> responses = pushService.replayOutbox();
+
+            assertTrue(failure(responses.get(0)) instanceof NotificationExpiredException);
+            assertTrue(failure(responses.get(1)) instanceof NotificationExpiredException);
+            assertTrue(failure(responses.get(2)) instanceof IOException);
+            assertEquals(0, outbox.getPending());
+        }
+
+        try (Outbox outbox = Outbox.builder(directory).syncInterval(Duration.ZERO).open()) {
+            assertTrue(outbox.takeRecovered().isEmpty());
+        }
+    }
+}
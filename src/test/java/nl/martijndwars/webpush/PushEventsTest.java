@@ -0,0 +1,93 @@
+package nl.martijndwars.webpush;
+
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PushEventsTest {
+    private static KeyPair serverKeyPair;
+    private static KeyPair userKeyPair;
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+        serverKeyPair = keyPairGenerator.generateKeyPair();
+        userKeyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    @Test
+    public void testSendIsRecorded() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/push", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(201, -1);
+            exchange.close();
+        });
+        server.start();
+
+        Path file = Files.createTempFile("push", ".jfr");
+
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{"Preparation", "Encryption", "Signing", "Dispatch"}) {
+                recording.enable("nl.martijndwars.webpush." + name).withThreshold(Duration.ZERO);
+            }
+
+            recording.start();
+
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair);
+            pushService.send(Notification.builder()
+                    .endpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/push")
+                    .userPublicKey(userKeyPair.getPublic())
+                    .userAuth(new byte[16])
+                    .payload("Hello")
+                    .build()).get();
+
+            recording.stop();
+            recording.dump(file);
+        } finally {
+            server.stop(0);
+        }
+
+        List<RecordedEvent> recorded = RecordingFile.readAllEvents(file);
+        Map<String, RecordedEvent> events = recorded.stream()
+                .collect(Collectors.toMap(event -> event.getEventType().getName(), Function.identity(), (a, b) -> a));
+
+        RecordedEvent preparation = events.get("nl.martijndwars.webpush.Preparation");
+        assertEquals("http://127.0.0.1", preparation.getString("origin"));
+        assertEquals("AES128GCM", preparation.getString("encoding"));
+        assertEquals(5, preparation.getInt("payloadSize"));
+
+        assertEquals(5, events.get("nl.martijndwars.webpush.Encryption").getInt("payloadSize"));
+        assertEquals("http://127.0.0.1", events.get("nl.martijndwars.webpush.Signing").getString("origin"));
+
+        RecordedEvent dispatch = events.get("nl.martijndwars.webpush.Dispatch");
+        assertEquals(201, dispatch.getInt("statusCode"));
+        assertEquals("AES128GCM", dispatch.getString("encoding"));
+        assertTrue(dispatch.getLong("bodySize") > 5);
+        assertFalse(dispatch.getDuration().isNegative());
+    }
+}
@@ -0,0 +1,557 @@
+package nl.martijndwars.webpush;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A push service on localhost, to test sending end to end without browsers or a testing service.
+ * <p>
+ * The simulator hands out subscriptions, and accepts messages for them like a real push service: it checks the TTL,
+ * verifies the VAPID token (signature, audience and expiry) and decrypts the payload as the user agent would, with
+ * {@link HttpEce#decrypt}. Delivered messages are kept for inspection. To test throughput and resilience, it adds
+ * latency from a distribution and injects faults at configurable rates: 429 with {@code Retry-After}, 410, 503, and
+ * connections that are closed without a response.
+ * <p>
+ * The simulator speaks HTTP/1.1 only, as the JDK's HTTP server does not support HTTP/2.
+ */
+class PushServiceSimulator implements AutoCloseable {
+    private final PublicKey applicationServerKey;
+    private final boolean requireVapid;
+    private final LatencyDistribution latency;
+    private final double tooManyRequestsRate;
+    private final Duration retryAfter;
+    private final double goneRate;
+    private final double serverErrorRate;
+    private final double resetRate;
+    private final Random random;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicInteger subscriptionIds = new AtomicInteger();
+    private final ConcurrentHashMap<String, SimulatedSubscription> subscriptions = new ConcurrentHashMap<>();
+    private final List<Message> messages = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+    private final LongAdder resets = new LongAdder();
+
+    private PushServiceSimulator(Builder builder) throws IOException {
+        this.applicationServerKey = builder.applicationServerKey;
+        this.requireVapid = builder.requireVapid;
+        this.latency = builder.latency;
+        this.tooManyRequestsRate = builder.tooManyRequestsRate;
+        this.retryAfter = builder.retryAfter;
+        this.goneRate = builder.goneRate;
+        this.serverErrorRate = builder.serverErrorRate;
+        this.resetRate = builder.resetRate;
+        this.random = new Random(builder.seed);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/push/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getOrigin() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Create a subscription, with a key pair and authentication secret as a user agent would.
+     *
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public SimulatedSubscription subscribe() throws GeneralSecurityException {
+        String path = "/push/" + subscriptionIds.incrementAndGet();
+        byte[] auth = new byte[16];
+        random.nextBytes(auth);
+
+        SimulatedSubscription subscription = new SimulatedSubscription(getOrigin() + path, AbstractPushService.generateLocalKeyPair(), auth);
+        subscriptions.put(path, subscription);
+
+        return subscription;
+    }
+
+    /**
+     * Unsubscribe, so messages for the subscription are answered with 410 Gone.
+     *
+     * @param subscription
+     */
+    public void unsubscribe(SimulatedSubscription subscription) {
+        subscription.active = false;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Get the number of responses per status code, including injected faults.
+     *
+     * @param statusCode
+     * @return
+     */
+    public long getResponseCount(int statusCode) {
+        LongAdder count = responses.get(statusCode);
+
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Get the number of connections that were closed without a response.
+     *
+     * @return
+     */
+    public long getResetCount() {
+        return resets.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            long delay = latency.sample(random);
+
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+
+            double fault = random.nextDouble();
+
+            if ((fault -= resetRate) < 0) {
+                // Closing the exchange without a response drops the connection
+                resets.increment();
+                return;
+            }
+
+            if ((fault -= tooManyRequestsRate) < 0) {
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter.getSeconds()));
+                respond(exchange, 429);
+            } else if ((fault -= serverErrorRate) < 0) {
+                respond(exchange, 503);
+            } else if ((fault -= goneRate) < 0) {
+                respond(exchange, 410);
+            } else {
+                respond(exchange, accept(exchange, body));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int statusCode) throws IOException {
+        responses.computeIfAbsent(statusCode, key -> new LongAdder()).increment();
+        exchange.sendResponseHeaders(statusCode, -1);
+    }
+
+    /**
+     * Validate and deliver a message.
+     *
+     * @param exchange
+     * @param body
+     * @return The status code of the response.
+     */
+    private int accept(HttpExchange exchange, byte[] body) {
+        SimulatedSubscription subscription = subscriptions.get(exchange.getRequestURI().getPath());
+
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            return 405;
+        }
+
+        if (subscription == null) {
+            return 404;
+        }
+
+        if (!subscription.active) {
+            return 410;
+        }
+
+        String ttl = exchange.getRequestHeaders().getFirst("TTL");
+
+        if (ttl == null || !ttl.matches("\\d+")) {
+            return 400;
+        }
+
+        int vapid = verifyVapid(exchange);
+
+        if (vapid != 0) {
+            return vapid;
+        }
+
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        Encoding encoding = null;
+        byte[] payload = new byte[0];
+
+        if (body.length > 0) {
+            try {
+                encoding = Encoding.valueOf(contentEncoding.toUpperCase());
+                payload = decrypt(exchange, subscription, body, encoding);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                return 400;
+            }
+        }
+
+        messages.add(new Message(subscription, payload, encoding, Integer.parseInt(ttl),
+                exchange.getRequestHeaders().getFirst("Urgency"), exchange.getRequestHeaders().getFirst("Topic")));
+        exchange.getResponseHeaders().add("Location", getOrigin() + "/message/" + messages.size());
+
+        return 201;
+    }
+
+    /**
+     * Verify the VAPID token of a request.
+     *
+     * @param exchange
+     * @return 0 if the request may be delivered, otherwise the status code to reject it with.
+     */
+    private int verifyVapid(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String token;
+        String key;
+
+        if (authorization != null && authorization.startsWith("vapid ")) {
+            Map<String, String> parameters = parameters(authorization.substring(6), ",");
+            token = parameters.get("t");
+            key = parameters.get("k");
+        } else if (authorization != null && authorization.startsWith("WebPush ")) {
+            token = authorization.substring(8);
+            key = parameters(String.valueOf(exchange.getRequestHeaders().getFirst("Crypto-Key")), ";").get("p256ecdsa");
+        } else {
+            return requireVapid ? 401 : 0;
+        }
+
+        try {
+            String[] parts = token.split("\\.");
+            PublicKey publicKey = Utils.loadPublicKey(key);
+
+            if (parts.length != 3) {
+                return 401;
+            }
+
+            if (applicationServerKey != null && !Arrays.equals(Utils.encode((ECPublicKey) applicationServerKey), Utils.encode((ECPublicKey) publicKey))) {
+                return 403;
+            }
+
+            // A JWS signature is the raw concatenation of r and s
+            Signature signature = Signature.getInstance("SHA256withPLAIN-ECDSA", "BC");
+            signature.initVerify(publicKey);
+            signature.update((parts[0] + "." + parts[1]).getBytes(UTF_8));
+
+            if (!signature.verify(Base64.getUrlDecoder().decode(parts[2]))) {
+                return 401;
+            }
+
+            JsonObject claims = JsonParser.parseString(new String(Base64.getUrlDecoder().decode(parts[1]), UTF_8)).getAsJsonObject();
+            String audience = claims.get("aud").getAsString();
+            long expiry = claims.get("exp").getAsLong();
+            long now = System.currentTimeMillis() / 1000;
+
+            // The audience is the origin of the push service, with or without the port
+            if (!audience.equals(getOrigin()) && !audience.equals("http://127.0.0.1")) {
+                return 401;
+            }
+
+            if (expiry <= now || expiry > now + TimeUnit.HOURS.toSeconds(24)) {
+                return 401;
+            }
+
+            return 0;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return 401;
+        }
+    }
+
+    private static byte[] decrypt(HttpExchange exchange, SimulatedSubscription subscription, byte[] body, Encoding encoding) throws GeneralSecurityException {
+        Map<String, KeyPair> keys = new HashMap<>();
+        Map<String, String> labels = new HashMap<>();
+        ECPublicKey userPublicKey = (ECPublicKey) subscription.keyPair.getPublic();
+        byte[] salt = null;
+        String keyid;
+
+        if (encoding == Encoding.AES128GCM) {
+            // The sender's public key is the keyid in the header
+            byte[] senderKey = new HttpEce().parseHeader(body)[2];
+            keyid = new String(senderKey);
+            keys.put(keyid, new KeyPair(Utils.loadPublicKey(senderKey), subscription.keyPair.getPrivate()));
+        } else {
+            Map<String, String> encryption = parameters(exchange.getRequestHeaders().getFirst("Encryption"), ";");
+            Map<String, String> cryptoKey = parameters(exchange.getRequestHeaders().getFirst("Crypto-Key"), ";");
+            salt = Base64.getUrlDecoder().decode(encryption.get("salt"));
+            keyid = AbstractPushService.SERVER_KEY_ID;
+            keys.put(keyid, new KeyPair(Utils.loadPublicKey(cryptoKey.get("dh")), subscription.keyPair.getPrivate()));
+            labels.put(keyid, AbstractPushService.SERVER_KEY_CURVE);
+        }
+
+        return new HttpEce(keys, labels).decrypt(body, salt, null, keyid, userPublicKey, subscription.auth, encoding);
+    }
+
+    /**
+     * Parse parameters such as {@code t=..., k=...} or {@code dh=...;p256ecdsa=...}.
+     */
+    private static Map<String, String> parameters(String value, String separator) {
+        Map<String, String> parameters = new HashMap<>();
+
+        for (String parameter : value.split(separator)) {
+            int equals = parameter.indexOf('=');
+
+            if (equals > 0) {
+                parameters.put(parameter.substring(0, equals).trim(), parameter.substring(equals + 1).trim());
+            }
+        }
+
+        return parameters;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A distribution of the time it takes to answer a request.
+     */
+    @FunctionalInterface
+    public interface LatencyDistribution {
+        /**
+         * @param random
+         * @return A latency in nanoseconds.
+         */
+        long sample(Random random);
+
+        static LatencyDistribution none() {
+            return random -> 0;
+        }
+
+        static LatencyDistribution fixed(Duration latency) {
+            return random -> latency.toNanos();
+        }
+
+        static LatencyDistribution uniform(Duration min, Duration max) {
+            return random -> min.toNanos() + (long) (random.nextDouble() * (max.toNanos() - min.toNanos()));
+        }
+
+        /**
+         * A long-tailed distribution: most requests are fast, a few are many times slower than the mean.
+         *
+         * @param mean
+         * @return
+         */
+        static LatencyDistribution exponential(Duration mean) {
+            return random -> (long) (-Math.log(1 - random.nextDouble()) * mean.toNanos());
+        }
+    }
+
+    /**
+     * A subscription of a simulated user agent.
+     */
+    public static class SimulatedSubscription {
+        private final String endpoint;
+        private final KeyPair keyPair;
+        private final byte[] auth;
+        private volatile boolean active = true;
+
+        private SimulatedSubscription(String endpoint, KeyPair keyPair, byte[] auth) {
+            this.endpoint = endpoint;
+            this.keyPair = keyPair;
+            this.auth = auth;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * Start a notification for this subscription.
+         *
+         * @return
+         */
+        public Notification.NotificationBuilder notification() {
+            return Notification.builder()
+                    .endpoint(endpoint)
+                    .userPublicKey(keyPair.getPublic())
+                    .userAuth(auth);
+        }
+    }
+
+    /**
+     * A message that was delivered, with its decrypted payload.
+     */
+    public static class Message {
+        private final SimulatedSubscription subscription;
+        private final byte[] payload;
+        private final Encoding encoding;
+        private final int ttl;
+        private final String urgency;
+        private final String topic;
+
+        private Message(SimulatedSubscription subscription, byte[] payload, Encoding encoding, int ttl, String urgency, String topic) {
+            this.subscription = subscription;
+            this.payload = payload;
+            this.encoding = encoding;
+            this.ttl = ttl;
+            this.urgency = urgency;
+            this.topic = topic;
+        }
+
+        public SimulatedSubscription getSubscription() {
+            return subscription;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * Get the content encoding, or null for a message without payload.
+         *
+         * @return
+         */
+        public Encoding getEncoding() {
+            return encoding;
+        }
+
+        public int getTtl() {
+            return ttl;
+        }
+
+        public String getUrgency() {
+            return urgency;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+    }
+
+    public static class Builder {
+        private PublicKey applicationServerKey;
+        private boolean requireVapid;
+        private LatencyDistribution latency = LatencyDistribution.none();
+        private double tooManyRequestsRate;
+        private Duration retryAfter = Duration.ofSeconds(1);
+        private double goneRate;
+        private double serverErrorRate;
+        private double resetRate;
+        private long seed = 42;
+
+        private Builder() {
+        }
+
+        public PushServiceSimulator build() throws IOException {
+            if (resetRate + tooManyRequestsRate + serverErrorRate + goneRate > 1) {
+                throw new IllegalArgumentException("The fault rates add up to more than 1.");
+            }
+
+            return new PushServiceSimulator(this);
+        }
+
+        /**
+         * Only accept VAPID tokens signed with the given key, like a subscription restricted to an application server.
+         * Implies {@link #requireVapid()}.
+         *
+         * @param applicationServerKey
+         * @return
+         */
+        public Builder applicationServerKey(PublicKey applicationServerKey) {
+            this.applicationServerKey = applicationServerKey;
+            this.requireVapid = true;
+            return this;
+        }
+
+        /**
+         * Reject requests without a VAPID token with 401.
+         *
+         * @return
+         */
+        public Builder requireVapid() {
+            this.requireVapid = true;
+            return this;
+        }
+
+        public Builder latency(LatencyDistribution latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * Answer the given share of requests with 429 and a {@code Retry-After} header.
+         *
+         * @param rate
+         * @param retryAfter
+         * @return
+         */
+        public Builder tooManyRequests(double rate, Duration retryAfter) {
+            this.tooManyRequestsRate = rate;
+            this.retryAfter = retryAfter;
+            return this;
+        }
+
+        /**
+         * Answer the given share of requests with 410, as if the subscription had expired.
+         *
+         * @param rate
+         * @return
+         */
+        public Builder gone(double rate) {
+            this.goneRate = rate;
+            return this;
+        }
+
+        /**
+         * Answer the given share of requests with 503.
+         *
+         * @param rate
+         * @return
+         */
+        public Builder serverErrors(double rate) {
+            this.serverErrorRate = rate;
+            return this;
+        }
+
+        /**
+         * Close the connection of the given share of requests without a response.
+         *
+         * @param rate
+         * @return
+         */
+        public Builder resets(double rate) {
+            this.resetRate = rate;
+            return this;
+        }
+
+        /**
+         * Seed the random numbers used for latencies, faults and authentication secrets.
+         *
+         * @param seed
+         * @return
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+    }
+}
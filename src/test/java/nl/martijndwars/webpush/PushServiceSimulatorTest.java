@@ -0,0 +1,158 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PushServiceSimulatorTest {
+    private static KeyPair serverKeyPair;
+    private static KeyPair otherKeyPair;
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+        serverKeyPair = keyPairGenerator.generateKeyPair();
+        otherKeyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    @Test
+    public void testMessagesAreVerifiedAndDecrypted() throws Exception {
+        try (PushServiceSimulator simulator = PushServiceSimulator.builder().applicationServerKey(serverKeyPair.getPublic()).build()) {
+            PushServiceSimulator.SimulatedSubscription subscription = simulator.subscribe();
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair, "mailto:admin@example.com");
+
+            for (Encoding encoding : Encoding.values()) {
+                HttpResponse<String> response = pushService.send(subscription.notification()
+                        .payload("Hello " + encoding)
+                        .urgency(Urgency.HIGH)
+                        .topic("greeting")
+                        .ttl(60)
+                        .build(), encoding).get();
+
+                assertEquals(201, response.statusCode());
+                assertTrue(response.headers().firstValue("Location").isPresent());
+            }
+
+            List<PushServiceSimulator.Message> messages = simulator.getMessages();
+
+            assertEquals(2, messages.size());
+            assertEquals("Hello AESGCM", new String(messages.get(0).getPayload(), UTF_8));
+            assertEquals(Encoding.AESGCM, messages.get(0).getEncoding());
+            assertEquals("Hello AES128GCM", new String(messages.get(1).getPayload(), UTF_8));
+            assertEquals(Encoding.AES128GCM, messages.get(1).getEncoding());
+            assertEquals(60, messages.get(1).getTtl());
+            assertEquals("high", messages.get(1).getUrgency());
+            assertEquals("greeting", messages.get(1).getTopic());
+            assertSame(subscription, messages.get(1).getSubscription());
+        }
+    }
+
+    @Test
+    public void testReplacementIsSentWithItsOwnEncoding() throws Exception {
+        try (PushServiceSimulator simulator = PushServiceSimulator.builder().build()) {
+            PushServiceSimulator.SimulatedSubscription subscription = simulator.subscribe();
+            RateLimiter rateLimiter = RateLimiter.builder().defaultRate(10).burst(1).build();
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair)
+                    .setRateLimiter(rateLimiter)
+                    .setCoalescer(new Coalescer());
+
+            // Take the only token, so the first notification waits in the queue
+            rateLimiter.acquire(subscription.notification().build().getOrigin()).get();
+
+            CompletableFuture<HttpResponse<String>> older = pushService.send(subscription.notification().payload("1-0").topic("score").build(), Encoding.AESGCM);
+            CompletableFuture<HttpResponse<String>> newer = pushService.send(subscription.notification().payload("2-0").topic("score").build(), Encoding.AES128GCM);
+
+            assertTrue(assertThrows(ExecutionException.class, older::get).getCause() instanceof NotificationSupersededException);
+            assertEquals(201, newer.get().statusCode());
+
+            List<PushServiceSimulator.Message> messages = simulator.getMessages();
+
+            assertEquals(1, messages.size());
+            assertEquals(Encoding.AES128GCM, messages.get(0).getEncoding());
+            assertEquals("2-0", new String(messages.get(0).getPayload(), UTF_8));
+        }
+    }
+
+    @Test
+    public void testVapidIsEnforced() throws Exception {
+        try (PushServiceSimulator simulator = PushServiceSimulator.builder().applicationServerKey(serverKeyPair.getPublic()).build()) {
+            PushServiceSimulator.SimulatedSubscription subscription = simulator.subscribe();
+            Notification notification = subscription.notification().payload("Hello").build();
+
+            assertEquals(401, new PushAsyncService(HttpClient.newHttpClient()).send(notification).get().statusCode());
+            assertEquals(403, new PushAsyncService(HttpClient.newHttpClient(), otherKeyPair).send(notification).get().statusCode());
+            assertEquals(201, new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair).send(notification).get().statusCode());
+
+            simulator.unsubscribe(subscription);
+
+            assertEquals(410, new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair).send(notification).get().statusCode());
+            assertEquals(1, simulator.getMessages().size());
+        }
+    }
+
+    @Test
+    public void testInjectedFaults() throws Exception {
+        try (PushServiceSimulator simulator = PushServiceSimulator.builder()
+                .tooManyRequests(1, Duration.ofSeconds(30))
+                .latency(PushServiceSimulator.LatencyDistribution.fixed(Duration.ofMillis(50)))
+                .build()) {
+            long start = System.nanoTime();
+            HttpResponse<String> response = new PushAsyncService(HttpClient.newHttpClient()).send(simulator.subscribe().notification().payload("Hello").build()).get();
+
+            assertEquals(429, response.statusCode());
+            assertEquals("30", response.headers().firstValue("Retry-After").get());
+            assertTrue(System.nanoTime() - start >= Duration.ofMillis(50).toNanos());
+        }
+
+        try (PushServiceSimulator simulator = PushServiceSimulator.builder().resets(1).build()) {
+            CompletableFuture<HttpResponse<String>> response = new PushAsyncService(HttpClient.newHttpClient()).send(simulator.subscribe().notification().payload("Hello").build());
+
+            assertTrue(assertThrows(ExecutionException.class, response::get).getCause() instanceof IOException);
+            assertEquals(1, simulator.getResetCount());
+        }
+    }
+
+    @Test
+    public void testRetriesRideOutServerErrors() throws Exception {
+        try (PushServiceSimulator simulator = PushServiceSimulator.builder()
+                .serverErrors(0.3)
+                .latency(PushServiceSimulator.LatencyDistribution.exponential(Duration.ofMillis(2)))
+                .seed(7)
+                .build()) {
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair)
+                    .setRetryPolicy(RetryPolicy.builder().maxAttempts(20).initialBackoff(Duration.ofMillis(1)).maxBackoff(Duration.ofMillis(5)).build());
+            List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+
+            for (int i = 0; i < 20; i++) {
+                responses.add(pushService.send(simulator.subscribe().notification().payload("Message " + i).build()));
+            }
+
+            for (CompletableFuture<HttpResponse<String>> response : responses) {
+                assertEquals(201, response.get().statusCode());
+            }
+
+            assertEquals(20, simulator.getMessages().size());
+            assertTrue(simulator.getResponseCount(503) > 0);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+    private static final String ORIGIN = "https://fcm.googleapis.com";
+
+    @Test
+    public void testBurstIsAdmittedImmediately() {
+        RateLimiter rateLimiter = RateLimiter.builder().defaultRate(10).burst(5).build();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire(ORIGIN).isDone());
+        }
+
+        CompletableFuture<Void> permit = rateLimiter.acquire(ORIGIN);
+        assertFalse(permit.isDone());
+        permit.join();
+    }
+
+    @Test
+    public void testTooManyRequestsCutsRate() {
+        RateLimiter rateLimiter = RateLimiter.builder()
+                .rate(ORIGIN, 100)
+                .recoveryTime(Duration.ofHours(1))
+                .build();
+
+        rateLimiter.onResponse(ORIGIN, new StubHttpResponse(429));
+        assertEquals(50, rateLimiter.getRate(ORIGIN), 0.5);
+
+        // A second 429 from the same burst does not cut the rate again
+        rateLimiter.onResponse(ORIGIN, new StubHttpResponse(429));
+        assertEquals(50, rateLimiter.getRate(ORIGIN), 0.5);
+
+        rateLimiter.onResponse(ORIGIN, new StubHttpResponse(201));
+        assertEquals(rateLimiter.getRate(ORIGIN), rateLimiter.getRates().get(ORIGIN), 0.5);
+    }
+
+    @Test
+    public void testRetryAfterPausesOrigin() {
+        RateLimiter rateLimiter = RateLimiter.builder().defaultRate(1000).build();
+
+        rateLimiter.onResponse(ORIGIN, new StubHttpResponse(429, Map.of("Retry-After", "60")));
+
+        assertFalse(rateLimiter.acquire(ORIGIN).isDone());
+        assertTrue(rateLimiter.acquire("https://updates.push.services.mozilla.com").isDone());
+    }
+}
@@ -0,0 +1,154 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.http.HttpClient;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestAssemblyTest {
+    private static KeyPair serverKeyPair;
+    private static KeyPair otherKeyPair;
+    private static KeyPair userKeyPair;
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+        serverKeyPair = keyPairGenerator.generateKeyPair();
+        otherKeyPair = keyPairGenerator.generateKeyPair();
+        userKeyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    private static Notification notification(String endpoint) {
+        return Notification.builder()
+                .endpoint(endpoint)
+                .userPublicKey(userKeyPair.getPublic())
+                .userAuth(new byte[16])
+                .payload("Hello")
+                .ttl(60)
+                .topic("news")
+                .build();
+    }
+
+    private static String encodedKey(KeyPair keyPair) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Utils.encode((ECPublicKey) keyPair.getPublic()));
+    }
+
+    @Test
+    public void testAssembledRequestMatchesPreparedRequest() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair);
+        Notification notification = notification("https://updates.push.services.mozilla.com/wpush/v2/a");
+
+        Map<String, String> prepared = pushService.prepareRequest(notification, Encoding.AESGCM).getHeaders();
+        Map<String, List<String>> assembled = pushService.preparePost(notification, Encoding.AESGCM).build().headers().map();
+
+        assertEquals(prepared.keySet().size(), assembled.size());
+
+        for (String name : prepared.keySet()) {
+            assertEquals(1, assembled.get(name).size(), name);
+        }
+
+        assertEquals("60", assembled.get("TTL").get(0));
+        assertEquals("news", assembled.get("Topic").get(0));
+        assertEquals("aesgcm", assembled.get("Content-Encoding").get(0));
+        assertEquals("application/octet-stream", assembled.get("Content-Type").get(0));
+        assertTrue(assembled.get("Crypto-Key").get(0).startsWith("dh="));
+        assertTrue(assembled.get("Crypto-Key").get(0).endsWith(";p256ecdsa=" + encodedKey(serverKeyPair)));
+        assertEquals(prepared.get("Crypto-Key").substring(prepared.get("Crypto-Key").indexOf(';')),
+                assembled.get("Crypto-Key").get(0).substring(assembled.get("Crypto-Key").get(0).indexOf(';')));
+        assertTrue(assembled.get("Authorization").get(0).startsWith("WebPush "));
+    }
+
+    @Test
+    public void testAes128gcmRequestIsRewrittenAndSigned() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair);
+        java.net.http.HttpRequest request = pushService.preparePost(notification("https://fcm.googleapis.com/fcm/send/a"), Encoding.AES128GCM).build();
+
+        assertEquals("POST", request.method());
+        assertEquals("https://fcm.googleapis.com/wp/a", request.uri().toString());
+        assertFalse(request.version().isPresent());
+        assertFalse(request.timeout().isPresent());
+        assertEquals("aes128gcm", request.headers().firstValue("Content-Encoding").get());
+        assertEquals("p256ecdsa=" + encodedKey(serverKeyPair), request.headers().firstValue("Crypto-Key").get());
+        assertTrue(request.headers().firstValue("Authorization").get().endsWith(", k=" + encodedKey(serverKeyPair)));
+        assertFalse(request.headers().firstValue("Encryption").isPresent());
+    }
+
+    @Test
+    public void testConfiguredProfileIsApplied() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair)
+                .setVendorRegistry(VendorRegistry.builder()
+                        .profile(PushVendor.MOZILLA, VendorProfile.builder()
+                                .httpVersion(HttpClient.Version.HTTP_2)
+                                .timeout(Duration.ofSeconds(10))
+                                .build())
+                        .build());
+        java.net.http.HttpRequest request = pushService.preparePost(notification("https://updates.push.services.mozilla.com/wpush/v2/a"), Encoding.AES128GCM).build();
+
+        assertEquals(HttpClient.Version.HTTP_2, request.version().get());
+        assertEquals(Duration.ofSeconds(10), request.timeout().get());
+    }
+
+    @Test
+    public void testTemplateFollowsKeyChanges() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient(), serverKeyPair);
+        Notification notification = notification("https://updates.push.services.mozilla.com/wpush/v2/a");
+
+        pushService.preparePost(notification, Encoding.AES128GCM);
+        pushService.setPublicKey(otherKeyPair.getPublic());
+
+        assertThrows(IllegalStateException.class, () -> pushService.preparePost(notification, Encoding.AES128GCM));
+
+        pushService.setKeyPair(otherKeyPair);
+
+        assertEquals("p256ecdsa=" + encodedKey(otherKeyPair),
+                pushService.preparePost(notification, Encoding.AES128GCM).build().headers().firstValue("Crypto-Key").get());
+    }
+
+    /**
+     * A push service from outside the library, written before preparePost existed
+     */
+    private static class CustomPushService extends AbstractPushService<CustomPushService> {
+        CustomPushService(KeyPair keyPair) {
+            super(HttpClient.newHttpClient(), keyPair);
+        }
+    }
+
+    @Test
+    public void testSubclassInheritsPreparePost() throws Exception {
+        java.net.http.HttpRequest request = new CustomPushService(serverKeyPair)
+                .preparePost(notification("https://updates.push.services.mozilla.com/wpush/v2/a"), Encoding.AES128GCM)
+                .build();
+
+        assertEquals("POST", request.method());
+        assertEquals("aes128gcm", request.headers().firstValue("Content-Encoding").get());
+    }
+
+    @Test
+    public void testGcmAuthorization() throws Exception {
+        PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient());
+        Notification notification = notification("https://android.googleapis.com/gcm/send/a");
+
+        assertThrows(IllegalStateException.class, () -> pushService.preparePost(notification, Encoding.AESGCM));
+
+        pushService.setGcmApiKey("secret");
+
+        assertEquals("key=secret", pushService.preparePost(notification, Encoding.AESGCM).build().headers().firstValue("Authorization").get());
+        assertEquals("key=secret", pushService.prepareRequest(notification, Encoding.AESGCM).getHeaders().get("Authorization"));
+    }
+}
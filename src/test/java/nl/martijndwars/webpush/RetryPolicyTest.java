@@ -0,0 +1,146 @@
+package nl.martijndwars.webpush;
+
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+    @BeforeAll
+    public static void addSecurityProvider() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private static HttpHeaders headers(String name, String value) {
+        return HttpHeaders.of(Map.of(name, List.of(value)), (a, b) -> true);
+    }
+
+    @Test
+    public void testParseRetryAfterSeconds() {
+        assertEquals(Optional.of(Duration.ofSeconds(120)), RetryPolicy.parseRetryAfter(headers("Retry-After", "120")));
+    }
+
+    @Test
+    public void testParseRetryAfterDateInThePast() {
+        assertEquals(Optional.of(Duration.ZERO), RetryPolicy.parseRetryAfter(headers("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT")));
+    }
+
+    @Test
+    public void testParseRetryAfterMissing() {
+        assertEquals(Optional.empty(), RetryPolicy.parseRetryAfter(headers("TTL", "60")));
+    }
+
+    @Test
+    public void testDelayIsBoundedAndHonoursRetryAfter() {
+        RetryPolicy retryPolicy = RetryPolicy.builder()
+                .initialBackoff(Duration.ofMillis(100))
+                .maxBackoff(Duration.ofMillis(250))
+                .maxRetryAfter(Duration.ofSeconds(10))
+                .build();
+
+        for (int attempt = 1; attempt < 10; attempt++) {
+            Duration delay = retryPolicy.delay(attempt, Optional.empty());
+            assertTrue(delay.compareTo(Duration.ofMillis(250)) <= 0, "Delay " + delay + " exceeds the maximum backoff");
+        }
+
+        assertEquals(Duration.ofSeconds(3), retryPolicy.delay(1, Optional.of(Duration.ofSeconds(3))));
+        assertEquals(Duration.ofSeconds(10), retryPolicy.delay(1, Optional.of(Duration.ofHours(1))));
+    }
+
+    @Test
+    public void testRetryReusesEncryptedBody() throws Exception {
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        AtomicInteger requests = new AtomicInteger();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/push", exchange -> {
+            bodies.add(new String(exchange.getRequestBody().readAllBytes(), ISO_8859_1));
+            int status = requests.incrementAndGet() == 1 ? 503 : 201;
+            exchange.getResponseHeaders().add("Retry-After", "0");
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+            keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+            KeyPair userKeyPair = keyPairGenerator.generateKeyPair();
+
+            Notification notification = Notification.builder()
+                    .endpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/push")
+                    .userPublicKey(userKeyPair.getPublic())
+                    .userAuth(new byte[16])
+                    .payload("Hello")
+                    .build();
+
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                    .setRetryPolicy(RetryPolicy.builder().initialBackoff(Duration.ofMillis(10)).build());
+
+            HttpResponse<String> response = pushService.send(notification).get();
+
+            assertEquals(201, response.statusCode());
+            assertEquals(2, bodies.size());
+            assertEquals(bodies.get(0), bodies.get(1));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRetriesStopWhenCircuitOpens() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/push", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+            keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+            KeyPair userKeyPair = keyPairGenerator.generateKeyPair();
+
+            Notification notification = Notification.builder()
+                    .endpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/push")
+                    .userPublicKey(userKeyPair.getPublic())
+                    .userAuth(new byte[16])
+                    .payload("Hello")
+                    .build();
+
+            PushAsyncService pushService = new PushAsyncService(HttpClient.newHttpClient())
+                    .setRetryPolicy(RetryPolicy.builder().maxAttempts(5).initialBackoff(Duration.ofMillis(10)).build())
+                    .setCircuitBreaker(CircuitBreaker.builder().windowSize(1).minimumCalls(1).halfOpenCalls(1).openDuration(Duration.ofHours(1)).build());
+
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> pushService.send(notification).get());
+
+            assertTrue(failure.getCause() instanceof CircuitBreakerOpenException);
+            assertEquals(1, requests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
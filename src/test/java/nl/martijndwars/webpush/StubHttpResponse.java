@@ -0,0 +1,70 @@
+package nl.martijndwars.webpush;
+
+import javax.net.ssl.SSLSession;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A canned response for feeding status codes and headers into components without a push service.
+ */
+class StubHttpResponse implements HttpResponse<String> {
+    private final int statusCode;
+    private final HttpHeaders headers;
+
+    StubHttpResponse(int statusCode) {
+        this(statusCode, Map.of());
+    }
+
+    StubHttpResponse(int statusCode, Map<String, String> headers) {
+        this.statusCode = statusCode;
+        this.headers = HttpHeaders.of(headers.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> List.of(entry.getValue()))), (a, b) -> true);
+    }
+
+    @Override
+    public int statusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public HttpRequest request() {
+        return null;
+    }
+
+    @Override
+    public Optional<HttpResponse<String>> previousResponse() {
+        return Optional.empty();
+    }
+
+    @Override
+    public HttpHeaders headers() {
+        return headers;
+    }
+
+    @Override
+    public String body() {
+        return "";
+    }
+
+    @Override
+    public Optional<SSLSession> sslSession() {
+        return Optional.empty();
+    }
+
+    @Override
+    public URI uri() {
+        return null;
+    }
+
+    @Override
+    public HttpClient.Version version() {
+        return HttpClient.Version.HTTP_1_1;
+    }
+}
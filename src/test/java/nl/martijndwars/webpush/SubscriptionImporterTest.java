@@ -0,0 +1,133 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubscriptionImporterTest {
+    private static final byte[][] KEYS = new byte[200][];
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = Utils.encode((ECPublicKey) keyPairGenerator.generateKeyPair().getPublic());
+        }
+    }
+
+    private static String record(String endpoint, byte[] key, int auth) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        byte[] secret = new byte[16];
+        secret[0] = (byte) auth;
+
+        return "{\"endpoint\":\"" + endpoint + "\",\"expirationTime\":null,\"keys\":{\"p256dh\":\"" + encoder.encodeToString(key) + "\",\"auth\":\"" + encoder.encodeToString(secret) + "\"}}\n";
+    }
+
+    @Test
+    public void testImportFromChannel() throws IOException {
+        byte[] offCurve = KEYS[2].clone();
+        offCurve[64] ^= 1;
+
+        String export = record("https:\\/\\/fcm.googleapis.com\\/fcm\\/send\\/token-0", KEYS[0], 0)
+                + "\n"
+                + "{\"keys\":{\"auth\":\"AAAAAAAAAAAAAAAAAAAAAA\",\"p256dh\":\"" + Base64.getUrlEncoder().encodeToString(KEYS[1]) + "\"}, \"extra\": [1, {\"a\": \"}\"}], \"endpoint\": \"https://example.com/\\u00e9\"}\r\n"
+                + "not json\n"
+                + record("https://example.com/token-2", offCurve, 2)
+                + record("https://example.com/token-3", KEYS[3], 3).trim();
+
+        List<String> endpoints = new ArrayList<>();
+        List<byte[]> keys = new ArrayList<>();
+        List<Long> rejected = new ArrayList<>();
+
+        SubscriptionImporter importer = SubscriptionImporter.builder()
+                .batchSize(2)
+                .bufferSize(256)
+                .rejectionListener((line, reason) -> rejected.add(line))
+                .build();
+
+        long imported = importer.importFrom(Channels.newChannel(new ByteArrayInputStream(export.getBytes(UTF_8))), (endpoint, length, key, auth) -> {
+            endpoints.add(new String(endpoint, 0, length, UTF_8));
+            keys.add(key.clone());
+        });
+
+        assertEquals(3, imported);
+        assertEquals(List.of("https://fcm.googleapis.com/fcm/send/token-0", "https://example.com/é", "https://example.com/token-3"), endpoints);
+        assertArrayEquals(KEYS[0], keys.get(0));
+        assertArrayEquals(KEYS[1], keys.get(1));
+        assertEquals(List.of(4L, 5L), rejected);
+    }
+
+    @Test
+    public void testLinesLongerThanTheBufferAreSkipped() throws IOException {
+        String export = record("https://example.com/" + "x".repeat(600), KEYS[0], 0) + record("https://example.com/token-1", KEYS[1], 1);
+        List<Long> rejected = new ArrayList<>();
+        List<String> endpoints = new ArrayList<>();
+
+        SubscriptionImporter importer = SubscriptionImporter.builder()
+                .bufferSize(256)
+                .rejectionListener((line, reason) -> rejected.add(line))
+                .build();
+
+        importer.importFrom(Channels.newChannel(new ByteArrayInputStream(export.getBytes(UTF_8))), (endpoint, length, key, auth) -> endpoints.add(new String(endpoint, 0, length, UTF_8)));
+
+        assertEquals(List.of(1L), rejected);
+        assertEquals(List.of("https://example.com/token-1"), endpoints);
+    }
+
+    @Test
+    public void testImportMappedFileIntoTable() throws IOException {
+        StringBuilder export = new StringBuilder();
+
+        for (int i = 0; i < KEYS.length; i++) {
+            export.append(record("https://fcm.googleapis.com/fcm/send/token-" + i, KEYS[i], i));
+        }
+
+        Path path = Files.createTempFile("subscriptions", ".jsonl");
+        Files.writeString(path, export);
+
+        try {
+            SubscriptionTable table = new SubscriptionTable(true);
+            SubscriptionImporter importer = SubscriptionImporter.builder()
+                    .batchSize(150)
+                    .parallelism(2, ForkJoinPool.commonPool())
+                    .build();
+
+            assertEquals(KEYS.length, importer.importFrom(path, table::add));
+            assertEquals(KEYS.length, table.size());
+
+            byte[] key = new byte[SubscriptionTable.KEY_SIZE];
+            byte[] auth = new byte[SubscriptionTable.AUTH_SIZE];
+            table.getUserPublicKey(170, key);
+            table.getUserAuth(170, auth);
+
+            assertEquals("https://fcm.googleapis.com/fcm/send/token-170", table.getEndpoint(170));
+            assertEquals("https://fcm.googleapis.com/fcm/send/", table.getEndpointPrefix(170));
+            assertArrayEquals(KEYS[170], key);
+            assertEquals((byte) 170, auth[0]);
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package nl.martijndwars.webpush;
+
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubscriptionTableTest {
+    private static final byte[][] KEYS = new byte[3][];
+
+    @BeforeAll
+    public static void addSecurityProvider() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("ECDH", "BC");
+        keyPairGenerator.initialize(ECNamedCurveTable.getParameterSpec("prime256v1"));
+
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = Utils.encode((ECPublicKey) keyPairGenerator.generateKeyPair().getPublic());
+        }
+    }
+
+    private static byte[] auth(int i) {
+        byte[] auth = new byte[16];
+        auth[0] = (byte) i;
+
+        return auth;
+    }
+
+    private static void fill(SubscriptionTable table) {
+        table.add("https://fcm.googleapis.com/fcm/send/token-0", KEYS[0], auth(0));
+        table.add("https://updates.push.services.mozilla.com/wpush/v2/token-1", KEYS[1], auth(1));
+        table.add("https://fcm.googleapis.com/fcm/send/token-2", KEYS[2], auth(2));
+    }
+
+    @Test
+    public void testRowsRoundTrip() {
+        SubscriptionTable table = new SubscriptionTable(false, 256);
+        fill(table);
+
+        SubscriptionTable.Cursor cursor = table.cursor();
+        byte[] key = new byte[SubscriptionTable.KEY_SIZE];
+        byte[] auth = new byte[SubscriptionTable.AUTH_SIZE];
+        int row = 0;
+
+        while (cursor.next()) {
+            cursor.getUserPublicKey(key);
+            cursor.getUserAuth(auth);
+
+            assertTrue(cursor.getEndpoint().endsWith("/token-" + row));
+            assertArrayEquals(KEYS[row], key);
+            assertArrayEquals(auth(row), auth);
+            row++;
+        }
+
+        assertEquals(3, row);
+        assertEquals("https://fcm.googleapis.com/fcm/send/", table.getEndpointPrefix(2));
+
+        // Small chunks, so the rows are spread over several of them
+        assertTrue(table.getMemoryUsage() > 2 * 256);
+    }
+
+    @Test
+    public void testCompressedKeysAreRestored() throws GeneralSecurityException {
+        SubscriptionTable table = new SubscriptionTable(true);
+        fill(table);
+
+        byte[] key = new byte[SubscriptionTable.KEY_SIZE];
+        table.getUserPublicKey(1, key);
+
+        assertArrayEquals(KEYS[1], key);
+        assertArrayEquals(KEYS[1], Utils.encode(table.notification(1).build().getUserPublicKey()));
+    }
+
+    @Test
+    public void testRejectsInvalidKeys() {
+        SubscriptionTable table = new SubscriptionTable();
+
+        assertThrows(IllegalArgumentException.class, () -> table.add("https://example.com/a", new byte[64], auth(0)));
+        assertThrows(IllegalArgumentException.class, () -> table.add("https://example.com/a", KEYS[0], new byte[8]));
+        assertThrows(IndexOutOfBoundsException.class, () -> table.getEndpoint(0));
+    }
+}
@@ -0,0 +1,59 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+    @Test
+    public void testReleasesInDeadlineOrder() throws InterruptedException {
+        BlockingQueue<List<String>> batches = new LinkedBlockingQueue<>();
+        TimingWheel<String> wheel = new TimingWheel<>(Duration.ofMillis(10), 8, batches::add);
+
+        // The second deadline lies more than one revolution ahead, in the same bucket as the first
+        wheel.schedule("later", Duration.ofMillis(100));
+        wheel.schedule("sooner", Duration.ofMillis(20));
+
+        assertEquals(List.of("sooner"), batches.poll(1, TimeUnit.SECONDS));
+        assertEquals(List.of("later"), batches.poll(1, TimeUnit.SECONDS));
+        assertEquals(0, wheel.size());
+
+        wheel.stop();
+    }
+
+    @Test
+    public void testReleasesDueValuesAsOneBatch() throws InterruptedException {
+        BlockingQueue<List<Integer>> batches = new LinkedBlockingQueue<>();
+        TimingWheel<Integer> wheel = new TimingWheel<>(Duration.ofMillis(50), 16, batches::add);
+
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule(i, Duration.ZERO);
+        }
+
+        assertEquals(100, batches.poll(1, TimeUnit.SECONDS).size());
+
+        wheel.stop();
+    }
+
+    @Test
+    public void testCancelledValueIsNotReleased() throws InterruptedException {
+        BlockingQueue<List<String>> batches = new LinkedBlockingQueue<>();
+        TimingWheel<String> wheel = new TimingWheel<>(Duration.ofMillis(10), 8, batches::add);
+
+        TimingWheel<String>.Timeout cancelled = wheel.schedule("cancelled", Duration.ofMillis(30));
+        wheel.schedule("kept", Duration.ofMillis(30));
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertEquals(List.of("kept"), batches.poll(1, TimeUnit.SECONDS));
+        assertTrue(cancelled.isCancelled());
+
+        wheel.stop();
+    }
+}
@@ -0,0 +1,48 @@
+package nl.martijndwars.webpush;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VendorRegistryTest {
+    @Test
+    public void testClassifiesKnownPushServices() {
+        VendorRegistry registry = VendorRegistry.getDefault();
+
+        assertEquals(PushVendor.GCM, registry.classify("https://android.googleapis.com/gcm/send/abc"));
+        assertEquals(PushVendor.FCM, registry.classify("https://fcm.googleapis.com/fcm/send/abc"));
+        assertEquals(PushVendor.FCM, registry.classify("https://fcm.googleapis.com"));
+        assertEquals(PushVendor.MOZILLA, registry.classify("https://updates.push.services.mozilla.com/wpush/v2/abc"));
+        assertEquals(PushVendor.WNS, registry.classify("https://wns2-par02p.notify.windows.com/w/?token=abc"));
+        assertEquals(PushVendor.APPLE, registry.classify("https://web.push.apple.com/abc"));
+        assertEquals(PushVendor.APPLE, registry.classify("https://WEB.PUSH.APPLE.COM:443/abc"));
+
+        // Near misses
+        assertEquals(PushVendor.UNKNOWN, registry.classify("https://android.googleapis.com/other"));
+        assertEquals(PushVendor.UNKNOWN, registry.classify("https://evilfcm.googleapis.com/fcm/send/abc"));
+        assertEquals(PushVendor.UNKNOWN, registry.classify("https://notify.windows.com.example.com/abc"));
+        assertEquals(PushVendor.UNKNOWN, registry.classify("http://127.0.0.1:9/push/a"));
+    }
+
+    @Test
+    public void testProfiles() {
+        VendorRegistry registry = VendorRegistry.builder()
+                .pattern("push.example.com", PushVendor.MOZILLA)
+                .profile(PushVendor.MOZILLA, VendorProfile.builder().rate(42).maxConcurrency(7).build())
+                .build();
+
+        assertEquals(PushVendor.MOZILLA, registry.classify("https://push.example.com/abc"));
+        assertFalse(registry.getProfile(PushVendor.FCM).getHttpVersion().isPresent());
+        assertFalse(registry.getProfile(PushVendor.FCM).getTimeout().isPresent());
+        assertEquals("https://fcm.googleapis.com/wp/abc", registry.getProfile(PushVendor.FCM).rewrite("https://fcm.googleapis.com/fcm/send/abc"));
+        assertFalse(registry.getProfile(PushVendor.UNKNOWN).getRate().isPresent());
+
+        RateLimiter rateLimiter = RateLimiter.builder().defaultRate(5).vendorRegistry(registry).build();
+        assertEquals(42, rateLimiter.getRate("https://push.example.com"), 0.001);
+        assertEquals(5, rateLimiter.getRate("https://other.example.com"), 0.001);
+
+        ConcurrencyLimiter concurrencyLimiter = ConcurrencyLimiter.builder().vendorRegistry(registry).build();
+        assertEquals(7, concurrencyLimiter.getLimit("https://push.example.com"));
+        assertEquals(20, concurrencyLimiter.getLimit("https://other.example.com"));
+    }
+}